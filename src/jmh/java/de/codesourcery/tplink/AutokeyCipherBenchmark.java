@@ -0,0 +1,94 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encryption/decryption of request and response payloads of different sizes.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AutokeyCipherBenchmark
+{
+    @Param({"64","1024","16384"})
+    public int size;
+
+    private String json;
+    private byte[] encrypted;
+    private byte[] scratch;
+
+    @Setup
+    public void setup()
+    {
+        final StringBuilder buffer = new StringBuilder("{\"system\":{\"set_dev_alias\":{\"alias\":\"");
+        while ( buffer.length() < size - 5 ) {
+            buffer.append( (char) ( 'a' + buffer.length() % 26 ) );
+        }
+        json = buffer.append("\"}}}").toString();
+        encrypted = json.getBytes( StandardCharsets.UTF_8 );
+        new AutokeyCipher().encrypt( encrypted , 0 , encrypted.length );
+        scratch = new byte[ encrypted.length ];
+    }
+
+    /**
+     * UTF-8 encoding + encryption of a request, including the length header.
+     */
+    @Benchmark
+    public byte[] encryptFrame() {
+        return AutokeyCipher.encryptFrame( json );
+    }
+
+    /**
+     * In-place decryption of a response (includes copying the ciphertext into a scratch buffer).
+     */
+    @Benchmark
+    public byte[] decrypt()
+    {
+        System.arraycopy( encrypted , 0 , scratch , 0 , encrypted.length );
+        new AutokeyCipher().decrypt( scratch , 0 , scratch.length );
+        return scratch;
+    }
+
+    /**
+     * Decryption + UTF-8 decoding of a response, as done by the String based API.
+     */
+    @Benchmark
+    public String decryptToString()
+    {
+        System.arraycopy( encrypted , 0 , scratch , 0 , encrypted.length );
+        return AutokeyCipher.decryptToString( scratch , 0 , scratch.length );
+    }
+}
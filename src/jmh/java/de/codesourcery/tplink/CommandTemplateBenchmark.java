@@ -0,0 +1,70 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.jsonparser.Identifier;
+import de.codesourcery.tplink.TPLink.Command;
+
+/**
+ * Placeholder resolution and request frame creation for constant and parameterized commands.
+ *
+ * <p>{@link #compileParameterized()} shows the cost of parsing a command's JSON, which is what
+ * resolving placeholders cost before commands were pre-compiled.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandTemplateBenchmark
+{
+    private final Function<Identifier,String> resolver = id -> "benchmark plug";
+
+    @Benchmark
+    public byte[] resolveConstant()
+    {
+        final CommandTemplate template = Command.GET_SYSTEM_INFO.template;
+        return template.toFrame( template.resolve( resolver ) );
+    }
+
+    @Benchmark
+    public byte[] resolveParameterized()
+    {
+        final CommandTemplate template = Command.SET_DEVICE_ALIAS.template;
+        return template.toFrame( template.resolve( resolver ) );
+    }
+
+    @Benchmark
+    public CommandTemplate compileParameterized() {
+        return CommandTemplate.compile( Command.SET_DEVICE_ALIAS.json );
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Fetching and parsing <code>/api/json</code> job lists of different sizes from a {@link JenkinsStandIn}.
+ *
+ * <p>Job lists contain no aborted jobs, so no per-job requests are made. Response caching is disabled.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JenkinsClientBenchmark
+{
+    // no aborted jobs, so no per-job lookups
+    private static final String COLORS = "blue,red,disabled,yellow,blue_anime,notbuilt";
+
+    @Param({"10","1000","50000"})
+    public int jobCount;
+
+    private JenkinsStandIn server;
+    private JenkinsClient client;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        server = new JenkinsStandIn();
+        server.setJobCount( jobCount );
+        server.setColorMix( COLORS );
+        final int port = server.start();
+
+        client = new JenkinsClient( InetAddress.getLoopbackAddress().getHostAddress() );
+        client.setPort( port );
+        client.setCacheSize( 0 );
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void getJobs(Blackhole blackhole) throws IOException {
+        client.getJobs( blackhole::consume );
+    }
+}
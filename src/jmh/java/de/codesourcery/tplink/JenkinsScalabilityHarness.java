@@ -0,0 +1,161 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import joptsimple.ArgumentAcceptingOptionSpec;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpecBuilder;
+
+/**
+ * Measures {@link JenkinsClient#getJobs(java.util.function.Consumer)} against a {@link JenkinsStandIn} 
+ * at different job counts.
+ *
+ * <p>For each job count, a new client performs one cold run (empty cache) followed by warm runs 
+ * (cached responses get revalidated). Each run reports wall time, requests (listings, per-job lookups, '304 Not Modified'), 
+ * peak heap above the post-GC baseline (sum of the per-pool peaks, so an upper bound) and bytes allocated by 
+ * all threads except the stand-in's. Both run in the same JVM, the peak heap therefore includes garbage 
+ * created by the stand-in.</p>
+ *
+ * <p>Use <code>--help</code> to see the available options.</p>
+ *
+ * @author tobias.gierke@voipfuture.com
+ */
+public class JenkinsScalabilityHarness
+{
+    private static final String USERNAME = "harness";
+    private static final String PASSWORD = "secret";
+
+    public static void main(String[] args) throws Exception
+    {
+        final OptionParser parser = new OptionParser();
+        final ArgumentAcceptingOptionSpec<String> jobsOpt = parser.accepts( "jobs" , "Comma-separated list of job counts" ).withRequiredArg().defaultsTo( "1000,5000,20000,50000" );
+        final ArgumentAcceptingOptionSpec<String> colorsOpt = parser.accepts( "colors" , "Color mix (color:weight,...)" ).withRequiredArg().defaultsTo( JenkinsStandIn.DEFAULT_COLOR_MIX );
+        final ArgumentAcceptingOptionSpec<Integer> folderDepthOpt = parser.accepts( "folderdepth" , "Folder levels above the jobs" ).withRequiredArg().ofType( Integer.class ).defaultsTo( 0 );
+        final ArgumentAcceptingOptionSpec<Integer> foldersPerLevelOpt = parser.accepts( "foldersperlevel" , "Sub-folders per folder" ).withRequiredArg().ofType( Integer.class ).defaultsTo( 10 );
+        final ArgumentAcceptingOptionSpec<Long> latencyOpt = parser.accepts( "latency" , "Server latency per request in milliseconds" ).withRequiredArg().ofType( Long.class ).defaultsTo( 0L );
+        final ArgumentAcceptingOptionSpec<JenkinsStandIn.AuthMode> authOpt = parser.accepts( "auth" , "Authentication mode (NONE, BASIC)" ).withRequiredArg().ofType( JenkinsStandIn.AuthMode.class ).defaultsTo( JenkinsStandIn.AuthMode.NONE );
+        final OptionSpecBuilder noBuildNumbersOpt = parser.accepts( "nobuildnumbers" , "Omit build numbers from job listings (forces a lookup per aborted job)" );
+        final ArgumentAcceptingOptionSpec<Integer> threadsOpt = parser.accepts( "threads" , "Client lookup parallelism" ).withRequiredArg().ofType( Integer.class ).defaultsTo( JenkinsClient.DEFAULT_LOOKUP_PARALLELISM );
+        final ArgumentAcceptingOptionSpec<Integer> iterationsOpt = parser.accepts( "iterations" , "Runs per job count (first run is cold)" ).withRequiredArg().ofType( Integer.class ).defaultsTo( 3 );
+        parser.accepts( "help" ).forHelp();
+
+        final OptionSet options = parser.parse( args );
+        if ( options.has( "help" ) ) {
+            parser.printHelpOn( System.out );
+            return;
+        }
+
+        System.out.println( String.format( "colors=%s, folders=%d x %d, latency=%d ms, auth=%s, build numbers in listing=%s, threads=%d" ,
+                options.valueOf( colorsOpt ) , options.valueOf( folderDepthOpt ) , options.valueOf( foldersPerLevelOpt ) , options.valueOf( latencyOpt ) ,
+                options.valueOf( authOpt ) , ! options.has( noBuildNumbersOpt ) , options.valueOf( threadsOpt ) ) );
+        System.out.println( String.format( "%8s %5s %10s %9s %9s %8s %6s %14s %15s" , "jobs" , "run" , "wall [ms]" , "requests" , "listings" , "lookups" , "304" , "peak heap [MB]" , "allocated [MB]" ) );
+
+        for ( String jobCount : options.valueOf( jobsOpt ).split(",") )
+        {
+            try ( JenkinsStandIn standIn = new JenkinsStandIn() )
+            {
+                standIn.setJobCount( Integer.parseInt( jobCount.trim() ) );
+                standIn.setColorMix( options.valueOf( colorsOpt ) );
+                standIn.setFolders( options.valueOf( folderDepthOpt ) , options.valueOf( foldersPerLevelOpt ) );
+                standIn.setLatencyMillis( options.valueOf( latencyOpt ) );
+                standIn.setOmitBuildNumbers( options.has( noBuildNumbersOpt ) );
+                standIn.setAuth( options.valueOf( authOpt ) , USERNAME , PASSWORD );
+                final int port = standIn.start();
+
+                try ( JenkinsClient client = new JenkinsClient( "127.0.0.1" ) )
+                {
+                    client.setPort( port );
+                    client.setLookupParallelism( options.valueOf( threadsOpt ) );
+                    client.setMaxFolderDepth( Math.max( JenkinsClient.DEFAULT_MAX_FOLDER_DEPTH , options.valueOf( folderDepthOpt ) ) );
+                    if ( standIn.getAuthMode() == JenkinsStandIn.AuthMode.BASIC ) {
+                        client.setUsername( USERNAME );
+                        client.setPassword( PASSWORD );
+                    }
+                    for ( int i = 0 , iterations = options.valueOf( iterationsOpt ) ; i < iterations ; i++ ) {
+                        run( client , standIn , jobCount.trim() , i == 0 ? "cold" : "warm" );
+                    }
+                }
+            }
+        }
+    }
+
+    private static void run(JenkinsClient client,JenkinsStandIn standIn,String jobCount,String label) throws Exception
+    {
+        System.gc();
+        final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        long baseline = 0;
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+        {
+            if ( pool.getType() == MemoryType.HEAP ) {
+                heapPools.add( pool );
+                pool.resetPeakUsage();
+                baseline += pool.getUsage().getUsed();
+            }
+        }
+        standIn.resetCounters();
+        final Map<Long,Long> allocatedBefore = getAllocatedBytes();
+
+        final AtomicInteger jobs = new AtomicInteger();
+        final long start = System.nanoTime();
+        client.getJobs( job -> jobs.incrementAndGet() );
+        final long elapsedNanos = System.nanoTime() - start;
+
+        long allocated = 0;
+        for ( Map.Entry<Long,Long> entry : getAllocatedBytes().entrySet() ) {
+            allocated += entry.getValue() - allocatedBefore.getOrDefault( entry.getKey() , 0L );
+        }
+        long peak = 0;
+        for ( MemoryPoolMXBean pool : heapPools ) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        System.out.println( String.format( "%8s %5s %10.1f %9d %9d %8d %6d %14.1f %15.1f" , jobCount , label , elapsedNanos / 1e6 ,
+                standIn.getRequestCount() , standIn.getListingCount() , standIn.getLookupCount() , standIn.getNotModifiedCount() ,
+                Math.max( 0 , peak - baseline ) / ( 1024d * 1024d ) , allocated / ( 1024d * 1024d ) ) );
+        if ( jobs.get() != Integer.parseInt( jobCount ) ) {
+            System.out.println( "WARNING: got "+jobs.get()+" jobs" );
+        }
+    }
+
+    /**
+     * Returns the bytes allocated so far by all threads not belonging to the stand-in, by thread ID.
+     */
+    private static Map<Long,Long> getAllocatedBytes()
+    {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final Map<Long,Long> result = new HashMap<>();
+        for ( Thread thread : Thread.getAllStackTraces().keySet() )
+        {
+            if ( ! JenkinsStandIn.isServerThread( thread ) )
+            {
+                final long bytes = threads.getThreadAllocatedBytes( thread.getId() );
+                if ( bytes >= 0 ) {
+                    result.put( thread.getId() , bytes );
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,483 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server that serves synthetic Jenkins <code>/api/json</code> responses for job listings
+ * (root and folders) and per-job lookups.
+ *
+ * <p>Jobs are named <code>job-&lt;n&gt;</code> and distributed round-robin across the leaf folders
+ * (<code>folder-&lt;n&gt;</code>) if a folder depth &gt; 0 is configured. Colors are assigned
+ * randomly (but reproducibly) according to a weighted mix, build numbers are chosen so that
+ * red jobs failed last, blue jobs succeeded last and aborted jobs are mixed. All responses carry
+ * an ETag and '304 Not Modified' is sent if it matches.</p>
+ *
+ * <p>Configure before calling {@link #start()}, except for the latency which can be changed at any time.</p>
+ *
+ * @author tobias.gierke@voipfuture.com
+ */
+final class JenkinsStandIn implements AutoCloseable
+{
+    public static final String DEFAULT_COLOR_MIX = "blue:80,red:5,yellow:3,aborted:7,disabled:5";
+
+    public static enum AuthMode
+    {
+        /**
+         * No authentication required.
+         */
+        NONE,
+        /**
+         * HTTP basic authentication required for every request, '401 Unauthorized' otherwise.
+         */
+        BASIC
+    }
+
+    private static final class JobEntry
+    {
+        public final String name;
+        public final String color;
+        public final int lastSuccessfulBuild;
+        public final int lastFailedBuild;
+
+        public JobEntry(String name, String color, int lastSuccessfulBuild, int lastFailedBuild)
+        {
+            this.name = name;
+            this.color = color;
+            this.lastSuccessfulBuild = lastSuccessfulBuild;
+            this.lastFailedBuild = lastFailedBuild;
+        }
+    }
+
+    private static final class Folder
+    {
+        public final String name;
+        public final Map<String,Folder> folders = new LinkedHashMap<>();
+        public final Map<String,JobEntry> jobs = new LinkedHashMap<>();
+        public byte[] listing;
+        public String etag;
+
+        public Folder(String name) {
+            this.name = name;
+        }
+    }
+
+    private int jobCount = 1000;
+    private String colorMix = DEFAULT_COLOR_MIX;
+    private int folderDepth;
+    private int foldersPerLevel = 10;
+    private boolean omitBuildNumbers;
+    private AuthMode authMode = AuthMode.NONE;
+    private String expectedAuthorization;
+    private int threads = 32;
+    private volatile long latencyMillis;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private Folder root;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong listingCount = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong unauthorizedCount = new AtomicLong();
+
+    /**
+     * Generates all jobs and starts the server on an ephemeral loopback port.
+     *
+     * @return the port
+     * @throws IOException
+     */
+    public int start() throws IOException
+    {
+        if ( server != null ) {
+            throw new IllegalStateException("Already started");
+        }
+        root = generate();
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool( threads , r ->
+        {
+            final Thread t = new Thread( r , "jenkins-standin-"+threadCount.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        });
+        server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress() , 0 ) , 1024 );
+        server.setExecutor( executor );
+        server.createContext( "/" , this::handle );
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    private Folder generate()
+    {
+        final Random random = new Random( 42 );
+        final String[] colors = parseColorMix( colorMix );
+
+        final Folder result = new Folder( "" );
+        final List<Folder> leaves = new ArrayList<>();
+        addFolders( result , folderDepth , leaves );
+        for ( int i = 0 ; i < jobCount ; i++ )
+        {
+            final String color = colors[ random.nextInt( colors.length ) ];
+            final int build = 1 + random.nextInt( 500 );
+            final boolean failedLast = color.startsWith( "red" ) || ( color.startsWith( "aborted" ) && random.nextBoolean() );
+            final JobEntry job = new JobEntry( "job-"+i , color , failedLast ? build - 1 : build , failedLast ? build : build - 1 );
+            leaves.get( i % leaves.size() ).jobs.put( job.name , job );
+        }
+        render( result );
+        return result;
+    }
+
+    private void addFolders(Folder parent,int depth,List<Folder> leaves)
+    {
+        if ( depth == 0 ) {
+            leaves.add( parent );
+            return;
+        }
+        for ( int i = 0 ; i < foldersPerLevel ; i++ )
+        {
+            final Folder folder = new Folder( "folder-"+i );
+            parent.folders.put( folder.name , folder );
+            addFolders( folder , depth - 1 , leaves );
+        }
+    }
+
+    /**
+     * Parses a color mix like <code>blue:80,red:20</code>.
+     *
+     * @return 100 colors, distributed according to the weights
+     */
+    private static String[] parseColorMix(String spec)
+    {
+        final Map<String,Integer> weights = new LinkedHashMap<>();
+        int total = 0;
+        for ( String part : spec.split(",") )
+        {
+            final String[] pair = part.trim().split(":");
+            final int weight = pair.length > 1 ? Integer.parseInt( pair[1].trim() ) : 1;
+            if ( weight < 0 ) {
+                throw new IllegalArgumentException("Invalid color mix: "+spec);
+            }
+            weights.merge( pair[0].trim() , weight , Integer::sum );
+            total += weight;
+        }
+        if ( total == 0 ) {
+            throw new IllegalArgumentException("Invalid color mix: "+spec);
+        }
+        final List<String> result = new ArrayList<>();
+        for ( Map.Entry<String,Integer> entry : weights.entrySet() )
+        {
+            for ( int i = 0 , count = Math.round( entry.getValue() * 100f / total ) ; i < count ; i++ ) {
+                result.add( entry.getKey() );
+            }
+        }
+        return result.toArray( new String[ result.size() ] );
+    }
+
+    private void render(Folder folder)
+    {
+        final StringBuilder json = new StringBuilder( "{\"_class\":\"" ).append( folder.name.isEmpty() ? "hudson.model.Hudson" : "com.cloudbees.hudson.plugins.folder.Folder" ).append( "\",\"jobs\":[" );
+        boolean first = true;
+        for ( Folder child : folder.folders.values() )
+        {
+            render( child );
+            json.append( first ? "" : "," ).append( "{\"_class\":\"com.cloudbees.hudson.plugins.folder.Folder\",\"name\":\"" ).append( child.name ).append( "\"}" );
+            first = false;
+        }
+        for ( JobEntry job : folder.jobs.values() )
+        {
+            json.append( first ? "" : "," ).append( "{\"_class\":\"hudson.model.FreeStyleProject\",\"name\":\"" ).append( job.name )
+                .append( "\",\"color\":\"" ).append( job.color ).append( '"' );
+            if ( ! omitBuildNumbers ) {
+                appendBuildNumbers( json , job );
+            }
+            json.append( '}' );
+            first = false;
+        }
+        folder.listing = json.append( "]}" ).toString().getBytes( StandardCharsets.UTF_8 );
+        folder.etag = etag( folder.listing );
+    }
+
+    private static void appendBuildNumbers(StringBuilder json,JobEntry job)
+    {
+        json.append( ",\"lastSuccessfulBuild\":{\"_class\":\"hudson.model.FreeStyleBuild\",\"number\":" ).append( job.lastSuccessfulBuild ).append( '}' )
+            .append( ",\"lastFailedBuild\":{\"_class\":\"hudson.model.FreeStyleBuild\",\"number\":" ).append( job.lastFailedBuild ).append( '}' );
+    }
+
+    private static String etag(byte[] data) {
+        return "\""+Integer.toHexString( Arrays.hashCode( data ) )+"\"";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            requestCount.incrementAndGet();
+            final long latency = latencyMillis;
+            if ( latency > 0 )
+            {
+                try {
+                    Thread.sleep( latency );
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if ( expectedAuthorization != null && ! expectedAuthorization.equals( exchange.getRequestHeaders().getFirst( "Authorization" ) ) )
+            {
+                unauthorizedCount.incrementAndGet();
+                exchange.getResponseHeaders().set( "WWW-Authenticate" , "Basic realm=\"Jenkins\"" );
+                exchange.sendResponseHeaders( 401 , -1 );
+                return;
+            }
+
+            // <folder path>/api/json[/] , folder path is a sequence of /job/<name>
+            String path = exchange.getRequestURI().getRawPath();
+            if ( path.endsWith("/") ) {
+                path = path.substring( 0 , path.length() - 1 );
+            }
+            if ( ! path.endsWith( "/api/json" ) ) {
+                exchange.sendResponseHeaders( 404 , -1 );
+                return;
+            }
+            final String[] segments = path.substring( 0 , path.length() - "/api/json".length() ).split( "/" );
+            Folder folder = root;
+            JobEntry job = null;
+            for ( int i = 1 ; i + 1 < segments.length ; i += 2 ) // segments[0] is empty
+            {
+                final String name = decode( segments[i+1] );
+                if ( job != null || ! "job".equals( segments[i] ) ) {
+                    folder = null;
+                    break;
+                }
+                final Folder child = folder.folders.get( name );
+                if ( child != null ) {
+                    folder = child;
+                } else if ( ( job = folder.jobs.get( name ) ) == null ) {
+                    folder = null;
+                    break;
+                }
+            }
+            if ( folder == null || ( segments.length & 1 ) == 0 ) {
+                exchange.sendResponseHeaders( 404 , -1 );
+                return;
+            }
+
+            final byte[] body;
+            final String etag;
+            if ( job != null )
+            {
+                lookupCount.incrementAndGet();
+                final StringBuilder json = new StringBuilder( "{\"_class\":\"hudson.model.FreeStyleProject\",\"name\":\"" ).append( job.name ).append( '"' );
+                appendBuildNumbers( json , job );
+                body = json.append( '}' ).toString().getBytes( StandardCharsets.UTF_8 );
+                etag = etag( body );
+            }
+            else
+            {
+                listingCount.incrementAndGet();
+                body = folder.listing;
+                etag = folder.etag;
+            }
+            exchange.getResponseHeaders().set( "ETag" , etag );
+            if ( etag.equals( exchange.getRequestHeaders().getFirst( "If-None-Match" ) ) )
+            {
+                notModifiedCount.incrementAndGet();
+                // the JDK's HTTP server closes the connection after a 304 reply, tell the client so it doesn't reuse it
+                exchange.getResponseHeaders().set( "Connection" , "close" );
+                exchange.sendResponseHeaders( 304 , -1 );
+                return;
+            }
+            exchange.getResponseHeaders().set( "Content-Type" , "application/json;charset=utf-8" );
+            exchange.sendResponseHeaders( 200 , body.length );
+            try ( OutputStream out = exchange.getResponseBody() ) {
+                out.write( body );
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private static String decode(String segment)
+    {
+        try {
+            return URLDecoder.decode( segment , "UTF-8" );
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException( e ); // can't happen
+        }
+    }
+
+    /**
+     * Sets the number of jobs.
+     *
+     * @param jobCount
+     */
+    public void setJobCount(int jobCount)
+    {
+        if ( jobCount < 0 ) {
+            throw new IllegalArgumentException("Job count must be >= 0");
+        }
+        this.jobCount = jobCount;
+    }
+
+    /**
+     * Sets the weighted color mix.
+     *
+     * @param colorMix comma-separated list of <code>color:weight</code> pairs, e.g. <code>blue:80,red:10,aborted:10</code>
+     */
+    public void setColorMix(String colorMix) {
+        parseColorMix( colorMix ); // validate
+        this.colorMix = colorMix;
+    }
+
+    /**
+     * Sets the folder structure.
+     *
+     * @param folderDepth number of folder levels above the jobs, 0 to put all jobs at the top level
+     * @param foldersPerLevel number of sub-folders per folder
+     */
+    public void setFolders(int folderDepth,int foldersPerLevel)
+    {
+        if ( folderDepth < 0 || foldersPerLevel < 1 ) {
+            throw new IllegalArgumentException("Folder depth must be >= 0 and folders per level >= 1");
+        }
+        this.folderDepth = folderDepth;
+        this.foldersPerLevel = foldersPerLevel;
+    }
+
+    /**
+     * Sets whether job listings omit build numbers (like Jenkins versions that ignore
+     * them in <code>tree</code> queries), which forces a lookup for every aborted job.
+     *
+     * @param omitBuildNumbers
+     */
+    public void setOmitBuildNumbers(boolean omitBuildNumbers) {
+        this.omitBuildNumbers = omitBuildNumbers;
+    }
+
+    /**
+     * Sets the authentication mode.
+     *
+     * @param authMode
+     * @param username required for {@link AuthMode#BASIC}
+     * @param password required for {@link AuthMode#BASIC}
+     */
+    public void setAuth(AuthMode authMode,String username,String password)
+    {
+        this.authMode = authMode;
+        this.expectedAuthorization = authMode == AuthMode.BASIC ?
+                "Basic "+Base64.getEncoder().encodeToString( ( username+":"+password ).getBytes( StandardCharsets.UTF_8 ) ) : null;
+    }
+
+    public AuthMode getAuthMode() {
+        return authMode;
+    }
+
+    /**
+     * Sets the number of server threads.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads)
+    {
+        if ( threads < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the time each request takes before it gets processed.
+     *
+     * @param latencyMillis
+     */
+    public void setLatencyMillis(long latencyMillis)
+    {
+        if ( latencyMillis < 0 ) {
+            throw new IllegalArgumentException("Latency must be >= 0");
+        }
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getListingCount() {
+        return listingCount.get();
+    }
+
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    public long getUnauthorizedCount() {
+        return unauthorizedCount.get();
+    }
+
+    public void resetCounters()
+    {
+        requestCount.set( 0 );
+        listingCount.set( 0 );
+        lookupCount.set( 0 );
+        notModifiedCount.set( 0 );
+        unauthorizedCount.set( 0 );
+    }
+
+    /**
+     * Returns whether a thread belongs to this server (to exclude it from client-side measurements).
+     *
+     * @param thread
+     * @return
+     */
+    public static boolean isServerThread(Thread thread) {
+        return thread.getName().startsWith( "jenkins-standin-" ) || thread.getName().startsWith( "HTTP-Dispatcher" );
+    }
+
+    @Override
+    public void close()
+    {
+        if ( server != null ) {
+            server.stop( 0 );
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Minimal stand-in plug for benchmarks, answers every request with a canned <code>get_sysinfo</code> response.
+ *
+ * <p>Listens on the loopback interface, port {@link TPLink#PORT}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class LoopbackPlug implements AutoCloseable
+{
+    private static final String RESPONSE = "{\"system\":{\"get_sysinfo\":{\"err_code\":0,\"sw_ver\":\"1.0.8 Build 151101 Rel.24452\",\"hw_ver\":\"1.0\","+
+            "\"type\":\"smartplug\",\"model\":\"HS100(EU)\",\"mac\":\"50:C7:BF:00:00:01\",\"deviceId\":\"8006000000000000000000000000000000000001\","+
+            "\"hwId\":\"45E29DA8382494D2E82688B52A0B2EB5\",\"fwId\":\"00000000000000000000000000000000\",\"oemId\":\"3D341ECE302C0642C99E31CE2430544B\","+
+            "\"alias\":\"benchmark\",\"dev_name\":\"Wi-Fi Smart Plug\",\"icon_hash\":\"\",\"relay_state\":1,\"on_time\":1234,\"active_mode\":\"schedule\","+
+            "\"feature\":\"TIM\",\"updating\":0,\"rssi\":-49,\"led_off\":0,\"latitude\":50.9412784,\"longitude\":6.9582814}}}";
+
+    private final ServerSocket serverSocket;
+    private final byte[] response = AutokeyCipher.encryptFrame( RESPONSE );
+
+    public LoopbackPlug() throws IOException
+    {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress( true );
+        serverSocket.bind( new InetSocketAddress( getAddress() , TPLink.PORT ) );
+        final Thread acceptor = new Thread( this::acceptLoop , "loopback-plug" );
+        acceptor.setDaemon( true );
+        acceptor.start();
+    }
+
+    public InetAddress getAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    private void acceptLoop()
+    {
+        while ( ! serverSocket.isClosed() )
+        {
+            try
+            {
+                final Socket socket = serverSocket.accept();
+                final Thread handler = new Thread( () -> handle( socket ) , "loopback-plug-connection" );
+                handler.setDaemon( true );
+                handler.start();
+            }
+            catch(IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void handle(Socket socket)
+    {
+        try ( Socket s = socket )
+        {
+            s.setTcpNoDelay( true );
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+            final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+            while ( true )
+            {
+                final int length = in.readInt();
+                in.skipBytes( length );
+                out.write( response );
+                out.flush();
+            }
+        }
+        catch(IOException e) {
+            // connection closed by client
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.tplink.TPLink.Command;
+
+/**
+ * End-to-end round trips against a {@link LoopbackPlug}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendCmdBenchmark
+{
+    private LoopbackPlug plug;
+    private TPLink unpooled;
+    private TPLink pooled;
+    private ConnectionPool pool;
+    private TPLinkEngine engine;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        plug = new LoopbackPlug();
+        unpooled = new TPLink( plug.getAddress() );
+        pool = new ConnectionPool();
+        pooled = new TPLink( plug.getAddress() );
+        pooled.setConnectionPool( pool );
+        engine = new TPLinkEngine( 1 );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        engine.close();
+        pool.close();
+        plug.close();
+    }
+
+    /**
+     * New TCP connection per command.
+     */
+    @Benchmark
+    public String sendCmdNewConnection() throws IOException {
+        return unpooled.sendCmd( Command.GET_SYSTEM_INFO );
+    }
+
+    /**
+     * Re-used TCP connection.
+     */
+    @Benchmark
+    public String sendCmdPooled() throws IOException {
+        return pooled.sendCmd( Command.GET_SYSTEM_INFO );
+    }
+
+    /**
+     * Re-used TCP connection, reply decoded into a {@link SysInfo}.
+     */
+    @Benchmark
+    public SysInfo sendCmdPooledTyped() throws IOException {
+        return pooled.getSysInfo();
+    }
+
+    /**
+     * Non-blocking engine, waiting for each response.
+     */
+    @Benchmark
+    public String engineSend() throws InterruptedException, ExecutionException {
+        return engine.send( plug.getAddress() , Command.GET_SYSTEM_INFO ).get();
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The XOR autokey cipher used by TP-Link plugs.
+ *
+ * <p>Each plaintext byte is XOR'ed with the previous ciphertext byte (starting with {@link #IV}).
+ * All operations work in-place on caller-supplied buffers, an instance keeps the current key
+ * so a message may be processed incrementally in arbitrary chunks. Instances are not thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class AutokeyCipher
+{
+    /**
+     * Initial key.
+     */
+    public static final int IV = 171;
+
+    private int key = IV;
+
+    /**
+     * Resets the key so the next byte processed is treated as the start of a new message.
+     */
+    public void reset() {
+        key = IV;
+    }
+
+    /**
+     * Encrypts data in-place.
+     *
+     * @param data
+     * @param offset
+     * @param len
+     */
+    public void encrypt(byte[] data,int offset,int len)
+    {
+        int k = key;
+        for ( int i = offset , end = offset + len ; i < end ; i++ )
+        {
+            k = ( k ^ data[i] ) & 0xff;
+            data[i] = (byte) k;
+        }
+        key = k;
+    }
+
+    /**
+     * Decrypts data in-place.
+     *
+     * @param data
+     * @param offset
+     * @param len
+     */
+    public void decrypt(byte[] data,int offset,int len)
+    {
+        int k = key;
+        for ( int i = offset , end = offset + len ; i < end ; i++ )
+        {
+            final int c = data[i] & 0xff;
+            data[i] = (byte) ( k ^ c );
+            k = c;
+        }
+        key = k;
+    }
+
+    /**
+     * Encrypts all remaining bytes of a buffer in-place, advancing its position to the limit.
+     *
+     * @param buffer
+     */
+    public void encrypt(ByteBuffer buffer)
+    {
+        if ( buffer.hasArray() )
+        {
+            final int offset = buffer.arrayOffset() + buffer.position();
+            encrypt( buffer.array() , offset , buffer.remaining() );
+            buffer.position( buffer.limit() );
+            return;
+        }
+        int k = key;
+        for ( int i = buffer.position() , end = buffer.limit() ; i < end ; i++ )
+        {
+            k = ( k ^ buffer.get( i ) ) & 0xff;
+            buffer.put( i , (byte) k );
+        }
+        key = k;
+        buffer.position( buffer.limit() );
+    }
+
+    /**
+     * Decrypts all remaining bytes of a buffer in-place, advancing its position to the limit.
+     *
+     * @param buffer
+     */
+    public void decrypt(ByteBuffer buffer)
+    {
+        if ( buffer.hasArray() )
+        {
+            final int offset = buffer.arrayOffset() + buffer.position();
+            decrypt( buffer.array() , offset , buffer.remaining() );
+            buffer.position( buffer.limit() );
+            return;
+        }
+        int k = key;
+        for ( int i = buffer.position() , end = buffer.limit() ; i < end ; i++ )
+        {
+            final int c = buffer.get( i ) & 0xff;
+            buffer.put( i , (byte) ( k ^ c ) );
+            k = c;
+        }
+        key = k;
+        buffer.position( buffer.limit() );
+    }
+
+    /**
+     * Creates an encrypted request frame (length header + payload) from a JSON string.
+     *
+     * <p>The string is UTF-8 encoded directly into the resulting array, no intermediate
+     * copies are created.</p>
+     *
+     * @param json
+     * @return
+     */
+    public static byte[] encryptFrame(String json)
+    {
+        final int len = utf8Length( json );
+        final byte[] out = new byte[ PlugConnection.HEADER_SIZE + len ];
+        writeHeader( out , 0 , len );
+        encodeUTF8( json , out , PlugConnection.HEADER_SIZE );
+        new AutokeyCipher().encrypt( out , PlugConnection.HEADER_SIZE , len );
+        return out;
+    }
+
+    /**
+     * Decrypts a response payload in-place and decodes it as UTF-8.
+     *
+     * @param data payload without length header, gets overwritten with the plaintext
+     * @param offset
+     * @param len
+     * @return
+     */
+    public static String decryptToString(byte[] data,int offset,int len)
+    {
+        new AutokeyCipher().decrypt( data , offset , len );
+        return new String( data , offset , len , StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Writes a big-endian length header.
+     *
+     * @param out
+     * @param offset
+     * @param payloadLength
+     */
+    public static void writeHeader(byte[] out,int offset,int payloadLength)
+    {
+        out[offset  ] = (byte) (payloadLength >>> 24);
+        out[offset+1] = (byte) (payloadLength >>> 16);
+        out[offset+2] = (byte) (payloadLength >>>  8);
+        out[offset+3] = (byte)  payloadLength;
+    }
+
+    /**
+     * Returns the number of bytes needed to UTF-8 encode a string.
+     *
+     * @param s
+     * @return
+     */
+    public static int utf8Length(CharSequence s)
+    {
+        int result = 0;
+        for ( int i = 0 , len = s.length() ; i < len ; i++ )
+        {
+            final char c = s.charAt( i );
+            if ( c < 0x80 ) {
+                result++;
+            } else if ( c < 0x800 ) {
+                result += 2;
+            } else if ( Character.isHighSurrogate( c ) && i+1 < len && Character.isLowSurrogate( s.charAt( i+1 ) ) ) {
+                result += 4;
+                i++;
+            } else if ( Character.isSurrogate( c ) ) {
+                result++; // unpaired surrogate, encoded as '?'
+            } else {
+                result += 3;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * UTF-8 encodes a string into a buffer that is large enough
+     * to hold {@link #utf8Length(CharSequence)} bytes.
+     *
+     * <p>Unpaired surrogates are encoded as '?', just like {@link String#getBytes(java.nio.charset.Charset)} does.</p>
+     *
+     * @param s
+     * @param out
+     * @param offset
+     * @return offset of the first byte after the encoded string
+     */
+    public static int encodeUTF8(CharSequence s,byte[] out,int offset)
+    {
+        int ptr = offset;
+        for ( int i = 0 , len = s.length() ; i < len ; i++ )
+        {
+            final char c = s.charAt( i );
+            if ( c < 0x80 ) {
+                out[ptr++] = (byte) c;
+            }
+            else if ( c < 0x800 )
+            {
+                out[ptr++] = (byte) ( 0xc0 | ( c >> 6 ) );
+                out[ptr++] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+            else if ( Character.isSurrogate( c ) )
+            {
+                if ( Character.isHighSurrogate( c ) && i+1 < len && Character.isLowSurrogate( s.charAt( i+1 ) ) )
+                {
+                    final int cp = Character.toCodePoint( c , s.charAt( ++i ) );
+                    out[ptr++] = (byte) ( 0xf0 | ( cp >> 18 ) );
+                    out[ptr++] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+                    out[ptr++] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+                    out[ptr++] = (byte) ( 0x80 | ( cp & 0x3f ) );
+                }
+                else
+                {
+                    out[ptr++] = (byte) '?';
+                }
+            }
+            else
+            {
+                out[ptr++] = (byte) ( 0xe0 | ( c >> 12 ) );
+                out[ptr++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                out[ptr++] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+        }
+        return ptr;
+    }
+}
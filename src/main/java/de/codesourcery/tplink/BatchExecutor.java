@@ -0,0 +1,313 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import de.codesourcery.jsonparser.Identifier;
+import de.codesourcery.tplink.TPLink.Command;
+
+/**
+ * Executes a command on many plugs concurrently and collects the per-device results.
+ *
+ * <p>Host names are resolved concurrently and the addresses are reused for subsequent executions
+ * for {@link #ADDRESS_CACHE_MILLIS}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class BatchExecutor
+{
+    /**
+     * How long resolved host names are reused.
+     */
+    public static final long ADDRESS_CACHE_MILLIS = 5 * 60 * 1000;
+
+    private final TPLinkEngine engine;
+
+    private final ConcurrentMap<String,ResolvedAddress> addresses = new ConcurrentHashMap<>();
+
+    private boolean dryRun;
+    // 0 = use the engine's default for the command
+    private long timeoutMillis;
+
+    /**
+     * Result of executing a command on a single device.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Result
+    {
+        /**
+         * Host name/IP as passed by the caller.
+         */
+        public final String host;
+        /**
+         * Response or <code>null</code> on error.
+         */
+        public final String response;
+        /**
+         * Error or <code>null</code> on success.
+         */
+        public final Throwable error;
+        public final long latencyNanos;
+
+        public Result(String host, String response, Throwable error, long latencyNanos)
+        {
+            this.host = host;
+            this.response = response;
+            this.error = error;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public long getLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis( latencyNanos );
+        }
+
+        @Override
+        public String toString()
+        {
+            return host+"[ "+( isSuccess() ? "OK" : "ERROR: "+error )+" , "+getLatencyMillis()+" ms ]";
+        }
+    }
+
+    private static final class ResolvedAddress
+    {
+        public final CompletableFuture<InetAddress> address;
+        public final long resolvedAt = System.currentTimeMillis();
+
+        public ResolvedAddress(CompletableFuture<InetAddress> address) {
+            this.address = address;
+        }
+
+        public boolean isExpired(long now) {
+            return address.isCompletedExceptionally() || ( now - resolvedAt ) > ADDRESS_CACHE_MILLIS;
+        }
+    }
+
+    public BatchExecutor(TPLinkEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * Resolves a host name without blocking the caller.
+     *
+     * @param host
+     * @return
+     */
+    private CompletableFuture<InetAddress> resolve(String host)
+    {
+        final long now = System.currentTimeMillis();
+        final ResolvedAddress resolved = addresses.compute( host , (key,existing) ->
+        {
+            if ( existing != null && ! existing.isExpired( now ) ) {
+                return existing;
+            }
+            return new ResolvedAddress( CompletableFuture.supplyAsync( () ->
+            {
+                try {
+                    return InetAddress.getByName( key );
+                } catch(IOException e) {
+                    throw new CompletionException( e );
+                }
+            }, TPLink.getDefaultExecutor() ) );
+        });
+        return resolved.address;
+    }
+
+    /**
+     * Executes a command on all devices and waits for all of them to finish.
+     *
+     * @param hosts host names/IP addresses
+     * @param cmd
+     * @param placeholderResolver invoked once per placeholder, the values are used for all devices
+     * @return results in the same order as the input hosts
+     * @throws InterruptedException
+     */
+    public List<Result> execute(Collection<String> hosts,Command cmd,Function<Identifier,String> placeholderResolver) throws InterruptedException
+    {
+        final CompletableFuture<List<Result>> future = executeAsync( hosts , cmd , placeholderResolver );
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException( e.getCause() ); // never happens, errors are reported as part of the results
+        }
+    }
+
+    /**
+     * Executes a command on all devices.
+     *
+     * @param hosts host names/IP addresses
+     * @param cmd
+     * @param placeholderResolver invoked once per placeholder (on the calling thread), the values are used for all devices
+     * @return future with results in the same order as the input hosts, never fails
+     */
+    public CompletableFuture<List<Result>> executeAsync(Collection<String> hosts,Command cmd,Function<Identifier,String> placeholderResolver)
+    {
+        final String json = cmd.template.resolve( placeholderResolver );
+        final byte[] frame = cmd.template.toFrame( json );
+        final String simulatedReply = dryRun && cmd.altersDeviceState ? new VirtualPlug().handle( json ) : null;
+        final long timeoutMillis = getTimeoutMillis( cmd );
+
+        final List<CompletableFuture<Result>> futures = new ArrayList<>( hosts.size() );
+        for ( String host : hosts )
+        {
+            final long start = System.nanoTime();
+            if ( dryRun && cmd.altersDeviceState ) {
+                futures.add( CompletableFuture.completedFuture( new Result( host , simulatedReply , null , 0 ) ) );
+                continue;
+            }
+            futures.add( resolve( host )
+                .thenCompose( address -> engine.send( new InetSocketAddress( address , TPLink.PORT ) , cmd.name() , cmd.idempotent , HealthTracker.isSlowCommand( cmd ) , frame , timeoutMillis ) )
+                .handle( (response,error) -> new Result( host , response , unwrap( error ) , System.nanoTime() - start ) ) );
+        }
+        return CompletableFuture.allOf( futures.toArray( new CompletableFuture<?>[0] ) ).thenApply( ignored ->
+        {
+            final List<Result> results = new ArrayList<>( futures.size() );
+            futures.forEach( f -> results.add( f.join() ) );
+            return results;
+        });
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    /**
+     * Reads a list of hosts from a file.
+     *
+     * <p>Expects one host name/IP address per line, blank lines and lines starting with '#' are ignored.</p>
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static List<String> readHosts(Path file) throws IOException
+    {
+        final List<String> result = new ArrayList<>();
+        for ( String line : Files.readAllLines( file , StandardCharsets.UTF_8 ) )
+        {
+            final String trimmed = line.trim();
+            if ( ! trimmed.isEmpty() && ! trimmed.startsWith("#") ) {
+                result.add( trimmed );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Prints results as a table.
+     *
+     * @param results
+     * @param verbose whether to include the device responses
+     * @param out
+     */
+    public static void printTable(List<Result> results,boolean verbose,PrintStream out)
+    {
+        int width = "HOST".length();
+        for ( Result r : results ) {
+            width = Math.max( width , r.host.length() );
+        }
+        final String format = "%-"+width+"s  %-6s  %10s  %s%n";
+        out.printf( format , "HOST" , "STATUS" , "LATENCY_MS" , verbose ? "RESPONSE/ERROR" : "ERROR" );
+        for ( Result r : results )
+        {
+            final String details;
+            if ( r.isSuccess() ) {
+                details = verbose ? r.response : "";
+            } else {
+                details = r.error.getMessage() != null ? r.error.getClass().getSimpleName()+": "+r.error.getMessage() : r.error.getClass().getSimpleName();
+            }
+            out.printf( format , r.host , r.isSuccess() ? "OK" : "ERROR" , r.getLatencyMillis() , details );
+        }
+        final long failed = results.stream().filter( r -> ! r.isSuccess() ).count();
+        out.println( results.size()+" devices, "+( results.size() - failed )+" succeeded, "+failed+" failed");
+    }
+
+    /**
+     * Enable/disable dry-run mode (commands that would alter the device state are not sent,
+     * the results contain the reply a {@link VirtualPlug} would send instead).
+     *
+     * @param dryRun
+     */
+    public void setDryRun(boolean dryRun)
+    {
+        this.dryRun = dryRun;
+    }
+
+    public boolean isDryRun()
+    {
+        return dryRun;
+    }
+
+    /**
+     * Sets the per-device timeout.
+     *
+     * <p>The timeout applies to all commands, including the ones that are known to take long
+     * and by default get a longer timeout (see {@link TPLinkEngine#getTimeoutMillis(Command)}).</p>
+     *
+     * @param timeoutMillis
+     */
+    public void setTimeoutMillis(long timeoutMillis)
+    {
+        if ( timeoutMillis <= 0 ) {
+            throw new IllegalArgumentException("Timeout must be > 0");
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the per-device timeout.
+     *
+     * @return timeout or 0 if the engine's default for the respective command is used
+     */
+    public long getTimeoutMillis()
+    {
+        return timeoutMillis;
+    }
+
+    /**
+     * Returns the per-device timeout for a command.
+     *
+     * @param cmd
+     * @return
+     */
+    public long getTimeoutMillis(Command cmd)
+    {
+        return timeoutMillis > 0 ? timeoutMillis : engine.getTimeoutMillis( cmd );
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Thrown instead of contacting a device that failed repeatedly, see {@link DeviceHealth}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class CircuitOpenException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    public final InetSocketAddress address;
+    /**
+     * Time (as returned by {@link System#currentTimeMillis()}) after which the device will be tried again.
+     */
+    public final long retryAt;
+
+    public CircuitOpenException(InetSocketAddress address,int consecutiveFailures,long retryAt)
+    {
+        super("Not contacting "+address+" , it failed "+consecutiveFailures+" times in a row (next attempt in "+Math.max( 0 , retryAt - System.currentTimeMillis() )+" ms)");
+        this.address = address;
+        this.retryAt = retryAt;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import de.codesourcery.jsonparser.Identifier;
+import de.codesourcery.jsonparser.Parser;
+import de.codesourcery.jsonparser.ast.ASTNode;
+import de.codesourcery.jsonparser.util.ASTPrinter;
+
+/**
+ * A pre-compiled JSON command.
+ *
+ * <p>Templates without placeholders are turned into a ready-to-send encrypted request frame,
+ * templates with <code>${...}</code> placeholders are split into literal segments and placeholder
+ * slots so that no JSON parsing is necessary when sending the command.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class CommandTemplate
+{
+    private static final String MARKER_PREFIX = "%%slot_";
+    private static final String MARKER_SUFFIX = "%%";
+
+    // JSON for constant templates, NULL otherwise
+    private final String json;
+    // encrypted request frame for constant templates, NULL otherwise
+    private final byte[] frame;
+
+    // literals.length == slots.length + 1
+    private final String[] literals;
+    private final Identifier[] slots;
+    private final int literalLength;
+
+    private CommandTemplate(String json)
+    {
+        this.json = json;
+        this.frame = AutokeyCipher.encryptFrame( json );
+        this.literals = new String[] { json };
+        this.slots = new Identifier[0];
+        this.literalLength = json.length();
+    }
+
+    private CommandTemplate(String[] literals,Identifier[] slots)
+    {
+        this.json = null;
+        this.frame = null;
+        this.literals = literals;
+        this.slots = slots;
+        int len = 0;
+        for ( String s : literals ) {
+            len += s.length();
+        }
+        this.literalLength = len;
+    }
+
+    /**
+     * Compiles a JSON command template.
+     *
+     * @param json
+     * @return
+     * @throws RuntimeException on invalid JSON
+     */
+    public static CommandTemplate compile(String json)
+    {
+        final ASTNode ast = new Parser().parse( json ); // throws exception on invalid JSON
+        final ASTPrinter printer = new ASTPrinter();
+        printer.setPrettyPrint( false );
+
+        // print once with unique markers in place of the placeholders
+        // and split the result at those markers
+        final List<Identifier> ids = new ArrayList<>();
+        final String printed = printer.print( ast , id ->
+        {
+            ids.add( id );
+            return MARKER_PREFIX+(ids.size()-1)+MARKER_SUFFIX;
+        });
+
+        if ( ids.isEmpty() ) {
+            return new CommandTemplate( printed );
+        }
+
+        final String[] literals = new String[ ids.size()+1 ];
+        int start = 0;
+        for ( int i = 0 ; i < ids.size() ; i++ )
+        {
+            final String marker = MARKER_PREFIX+i+MARKER_SUFFIX;
+            final int idx = printed.indexOf( marker , start );
+            if ( idx == -1 ) {
+                throw new IllegalStateException("Internal error, failed to locate placeholder '"+ids.get(i).name+"' in "+printed);
+            }
+            literals[i] = printed.substring( start , idx );
+            start = idx + marker.length();
+        }
+        literals[ ids.size() ] = printed.substring( start );
+        return new CommandTemplate( literals , ids.toArray( new Identifier[ ids.size() ] ) );
+    }
+
+    /**
+     * Returns whether this template contains no placeholders.
+     *
+     * @return
+     */
+    public boolean isConstant() {
+        return frame != null;
+    }
+
+    /**
+     * Returns the placeholders in order of appearance.
+     *
+     * @return
+     */
+    public List<Identifier> getPlaceholders()
+    {
+        final List<Identifier> result = new ArrayList<>( slots.length );
+        for ( Identifier id : slots ) {
+            result.add( id );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the JSON with all placeholders replaced.
+     *
+     * @param placeholderResolver invoked exactly once for each placeholder, never invoked for constant templates
+     * @return
+     * @throws RuntimeException if the resolver returned <code>null</code> for a placeholder
+     */
+    public String resolve(Function<Identifier,String> placeholderResolver)
+    {
+        if ( json != null ) {
+            return json;
+        }
+        final String[] values = new String[ slots.length ];
+        int len = literalLength;
+        for ( int i = 0 ; i < slots.length ; i++ )
+        {
+            final String value = placeholderResolver.apply( slots[i] );
+            if ( value == null ) {
+                throw new RuntimeException("Missing placeholder value for '"+slots[i].name+"'");
+            }
+            values[i] = value;
+            len += value.length();
+        }
+        final StringBuilder buffer = new StringBuilder( len );
+        for ( int i = 0 ; i < slots.length ; i++ ) {
+            buffer.append( literals[i] ).append( values[i] );
+        }
+        return buffer.append( literals[ slots.length ] ).toString();
+    }
+
+    /**
+     * Returns the encrypted request frame for JSON returned by {@link #resolve(Function)}.
+     *
+     * <p>The returned array must not be modified.</p>
+     *
+     * @param resolvedJson
+     * @return
+     */
+    byte[] toFrame(String resolvedJson)
+    {
+        if ( resolvedJson == json ) { // identity check on purpose
+            return frame;
+        }
+        return AutokeyCipher.encryptFrame( resolvedJson );
+    }
+
+    @Override
+    public String toString()
+    {
+        if ( json != null ) {
+            return json;
+        }
+        final StringBuilder buffer = new StringBuilder();
+        for ( int i = 0 ; i < slots.length ; i++ ) {
+            buffer.append( literals[i] ).append( "${" ).append( slots[i].name ).append( '}' );
+        }
+        return buffer.append( literals[ slots.length ] ).toString();
+    }
+}
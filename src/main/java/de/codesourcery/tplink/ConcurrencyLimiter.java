@@ -0,0 +1,196 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on an {@link Executor} while making sure that no more than a configurable number
+ * of tasks is executing at the same time.
+ *
+ * <p>Tasks exceeding the limit are queued (without occupying a thread) and handed to their executor
+ * as soon as a running task finishes.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ConcurrencyLimiter
+{
+    private final ArrayDeque<Task<?>> pending = new ArrayDeque<>();
+
+    private int maxConcurrency;
+    private int running;
+
+    private final class Task<T> implements Runnable
+    {
+        public final Executor executor;
+        public final Callable<T> callable;
+        public final CompletableFuture<T> future = new CompletableFuture<>();
+
+        public Task(Executor executor, Callable<T> callable)
+        {
+            this.executor = executor;
+            this.callable = callable;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if ( ! future.isDone() ) // cancelled while queued
+                {
+                    try {
+                        future.complete( callable.call() );
+                    } catch(Throwable t) {
+                        future.completeExceptionally( t );
+                    }
+                }
+            }
+            finally {
+                taskFinished();
+            }
+        }
+    }
+
+    public ConcurrencyLimiter(int maxConcurrency)
+    {
+        setMaxConcurrency( maxConcurrency );
+    }
+
+    /**
+     * Submits a task.
+     *
+     * @param executor executor to run the task on
+     * @param callable
+     * @return future that completes with the result of the callable or fails with whatever the callable
+     * threw or a {@link RejectedExecutionException} if the executor rejected the task
+     */
+    public <T> CompletableFuture<T> submit(Executor executor,Callable<T> callable)
+    {
+        final Task<T> task = new Task<>( executor , callable );
+        synchronized( pending )
+        {
+            if ( running >= maxConcurrency ) {
+                pending.add( task );
+                return task.future;
+            }
+            running++;
+        }
+        launch( task );
+        return task.future;
+    }
+
+    private void launch(Task<?> task)
+    {
+        try {
+            task.executor.execute( task );
+        }
+        catch(RejectedExecutionException e)
+        {
+            task.future.completeExceptionally( e );
+            taskFinished();
+        }
+    }
+
+    private void taskFinished()
+    {
+        Task<?> next;
+        synchronized( pending )
+        {
+            next = running <= maxConcurrency ? pending.poll() : null;
+            if ( next == null ) {
+                running--;
+            }
+        }
+        if ( next != null ) {
+            launch( next );
+        }
+    }
+
+    /**
+     * Sets the max. number of concurrently running tasks.
+     *
+     * <p>Lowering the limit does not affect tasks that are already running.</p>
+     *
+     * @param maxConcurrency
+     */
+    public void setMaxConcurrency(int maxConcurrency)
+    {
+        if ( maxConcurrency < 1 ) {
+            throw new IllegalArgumentException("Max. concurrency must be >= 1");
+        }
+        int toLaunch = 0;
+        synchronized( pending )
+        {
+            this.maxConcurrency = maxConcurrency;
+            while ( running + toLaunch < maxConcurrency && toLaunch < pending.size() ) {
+                toLaunch++;
+            }
+            running += toLaunch;
+        }
+        for ( ; toLaunch > 0 ; toLaunch-- )
+        {
+            final Task<?> next;
+            synchronized( pending ) {
+                next = pending.poll();
+            }
+            if ( next == null ) {
+                synchronized( pending ) {
+                    running--;
+                }
+            } else {
+                launch( next );
+            }
+        }
+    }
+
+    public int getMaxConcurrency()
+    {
+        synchronized( pending ) {
+            return maxConcurrency;
+        }
+    }
+
+    /**
+     * Returns the number of tasks currently executing.
+     *
+     * @return
+     */
+    public int getRunningCount()
+    {
+        synchronized( pending ) {
+            return running;
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting for execution.
+     *
+     * @return
+     */
+    public int getPendingCount()
+    {
+        synchronized( pending ) {
+            return pending.size();
+        }
+    }
+}
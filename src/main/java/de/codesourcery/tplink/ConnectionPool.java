@@ -0,0 +1,292 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle {@link PlugConnection}s open so they can be reused for subsequent commands
+ * to the same device.
+ *
+ * <p>Connections that have been idle for longer than the configured timeout are closed by a background thread.
+ * If a request fails on a connection that has been reused because the plug closed or reset the connection,
+ * the request is transparently retried once on a freshly opened connection (plugs tend to silently drop idle connections).
+ * Requests that have been sent completely are only retried if they are idempotent, as the plug might already have executed
+ * them before dropping the connection. Read timeouts are never retried.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ConnectionPool implements AutoCloseable
+{
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10_000;
+
+    public static final int DEFAULT_MAX_IDLE_PER_DEVICE = 1;
+
+    /**
+     * How often idle connections are checked for expiry.
+     */
+    public static final long EVICTION_INTERVAL_MILLIS = 1000;
+
+    private final Map<InetAddress,Deque<PlugConnection>> idleConnections = new HashMap<>();
+
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private int maxIdlePerDevice = DEFAULT_MAX_IDLE_PER_DEVICE;
+    private boolean closed;
+    // started when the first connection is returned to the pool
+    private ScheduledExecutorService evictor;
+
+    /**
+     * Sends a request to a device, reusing an idle connection if possible.
+     *
+     * @param address
+     * @param request encrypted request including length header
+     * @return encrypted response payload without length header
+     * @throws IOException
+     */
+    public byte[] exchange(InetAddress address,byte[] request) throws IOException
+    {
+        return exchange( address , null , false , false , request );
+    }
+
+    /**
+     * Sends a request to a device, reusing an idle connection if possible.
+     *
+     * @param address
+     * @param command command name, used to pick the read timeout, may be <code>null</code>
+     * @param idempotent whether the request may be retried even if it might already have reached the device
+     * @param slow whether the command is known to take long to complete, used to pick the read timeout
+     * @param request encrypted request including length header
+     * @return encrypted response payload without length header
+     * @throws IOException
+     */
+    public byte[] exchange(InetAddress address,String command,boolean idempotent,boolean slow,byte[] request) throws IOException
+    {
+        PlugConnection con = borrow( address );
+        try
+        {
+            byte[] result;
+            try {
+                result = con.exchange( command , slow , request );
+            }
+            catch(IOException e)
+            {
+                con.close();
+                if ( ! con.isReused() || ! isStaleConnection( e ) || ( con.isRequestSent() && ! idempotent ) ) {
+                    throw e;
+                }
+                // stale connection, retry once on a new one
+                HealthTracker.getDefault().get( address ).getCounter( Metrics.TPLINK_RETRIES ).increment();
+                con = new PlugConnection( address );
+                result = con.exchange( command , slow , request );
+            }
+            release( con );
+            con = null;
+            return result;
+        }
+        finally
+        {
+            if ( con != null ) {
+                con.close();
+            }
+        }
+    }
+
+    private static boolean isStaleConnection(IOException e) {
+        // connection closed / reset by the plug, SocketTimeoutException is not a SocketException
+        return e instanceof EOFException || e instanceof SocketException;
+    }
+
+    /**
+     * Returns an idle connection to the given device or opens a new one.
+     *
+     * <p>Connections must be returned using {@link #release(PlugConnection)} or closed by the caller.</p>
+     *
+     * @param address
+     * @return
+     * @throws IOException
+     */
+    public PlugConnection borrow(InetAddress address) throws IOException
+    {
+        final long now = System.currentTimeMillis();
+        final List<PlugConnection> toClose = new ArrayList<>();
+        PlugConnection result = null;
+        synchronized( idleConnections )
+        {
+            if ( closed ) {
+                throw new IllegalStateException("Connection pool has been closed");
+            }
+            final Deque<PlugConnection> idle = idleConnections.get( address );
+            if ( idle != null )
+            {
+                PlugConnection candidate;
+                while ( result == null && (candidate = idle.pollFirst()) != null )
+                {
+                    if ( isExpired( candidate , now ) || ! candidate.isAlive() ) {
+                        toClose.add( candidate );
+                    } else {
+                        result = candidate;
+                    }
+                }
+                if ( idle.isEmpty() ) {
+                    idleConnections.remove( address );
+                }
+            }
+        }
+        toClose.forEach( PlugConnection::close );
+        return result != null ? result : new PlugConnection( address );
+    }
+
+    /**
+     * Returns a connection to the pool.
+     *
+     * @param connection
+     */
+    public void release(PlugConnection connection)
+    {
+        synchronized( idleConnections )
+        {
+            if ( ! closed )
+            {
+                final Deque<PlugConnection> idle = idleConnections.computeIfAbsent( connection.getAddress() , key -> new ArrayDeque<>() );
+                if ( idle.size() < maxIdlePerDevice ) {
+                    idle.addFirst( connection );
+                    startEvictor();
+                    return;
+                }
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes all connections that have been idle for longer than the configured timeout.
+     */
+    public void evictIdleConnections()
+    {
+        final long now = System.currentTimeMillis();
+        final List<PlugConnection> toClose = new ArrayList<>();
+        synchronized( idleConnections )
+        {
+            for (Iterator<Deque<PlugConnection>> it = idleConnections.values().iterator(); it.hasNext();)
+            {
+                final Deque<PlugConnection> idle = it.next();
+                idle.removeIf( con ->
+                {
+                    if ( isExpired( con , now ) ) {
+                        toClose.add( con );
+                        return true;
+                    }
+                    return false;
+                });
+                if ( idle.isEmpty() ) {
+                    it.remove();
+                }
+            }
+        }
+        toClose.forEach( PlugConnection::close );
+    }
+
+    // must be called while holding the lock on idleConnections
+    private void startEvictor()
+    {
+        if ( evictor == null )
+        {
+            evictor = Executors.newSingleThreadScheduledExecutor( r ->
+            {
+                final Thread t = new Thread( r , "connection-pool-evictor" );
+                t.setDaemon( true );
+                return t;
+            });
+            evictor.scheduleWithFixedDelay( this::evictIdleConnections , EVICTION_INTERVAL_MILLIS , EVICTION_INTERVAL_MILLIS , TimeUnit.MILLISECONDS );
+        }
+    }
+
+    private boolean isExpired(PlugConnection con,long now) {
+        return ( now - con.getLastUsed() ) > idleTimeoutMillis;
+    }
+
+    /**
+     * Sets the time after which an unused connection gets closed.
+     *
+     * @param idleTimeoutMillis
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis)
+    {
+        if ( idleTimeoutMillis < 0 ) {
+            throw new IllegalArgumentException("Idle timeout must be >= 0");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getIdleTimeoutMillis()
+    {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Sets the maximum number of idle connections kept open per device.
+     *
+     * @param maxIdlePerDevice
+     */
+    public void setMaxIdlePerDevice(int maxIdlePerDevice)
+    {
+        if ( maxIdlePerDevice < 0 ) {
+            throw new IllegalArgumentException("Max. idle connections must be >= 0");
+        }
+        this.maxIdlePerDevice = maxIdlePerDevice;
+    }
+
+    public int getMaxIdlePerDevice()
+    {
+        return maxIdlePerDevice;
+    }
+
+    /**
+     * Closes all idle connections, connections that are currently in use
+     * will be closed when they are released.
+     */
+    @Override
+    public void close()
+    {
+        final List<PlugConnection> toClose = new ArrayList<>();
+        synchronized( idleConnections )
+        {
+            closed = true;
+            idleConnections.values().forEach( toClose::addAll );
+            idleConnections.clear();
+            if ( evictor != null ) {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+        toClose.forEach( PlugConnection::close );
+    }
+}
@@ -0,0 +1,472 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.codesourcery.tplink.TPLink.Command;
+
+/**
+ * Finds plugs on the local network by broadcasting <code>get_sysinfo</code> requests to UDP port 9999.
+ *
+ * <p>Replies are received by a background thread and kept in a registry keyed by device ID (or MAC address
+ * if the device reports no ID). Devices that have not replied within {@link #setTimeToLiveMillis(long) the TTL}
+ * are removed from the registry when the next probe is sent, {@link #start(long)} sends probes periodically.</p>
+ *
+ * <p>UDP requests/responses carry no length header, each datagram holds exactly one encrypted JSON document.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class DeviceDiscovery implements AutoCloseable
+{
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+
+    private static final byte[] PROBE;
+
+    static
+    {
+        final byte[] frame = Command.GET_SYSTEM_INFO.template.toFrame( Command.GET_SYSTEM_INFO.template.resolve( id -> null ) );
+        PROBE = Arrays.copyOfRange( frame , PlugConnection.HEADER_SIZE , frame.length );
+    }
+
+    private final DatagramChannel channel;
+    private final Thread receiver;
+    private final Map<String,DiscoveredDevice> devices = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private volatile long timeToLiveMillis = DEFAULT_TTL_MILLIS;
+    private volatile int port = TPLink.PORT;
+    private volatile boolean debug;
+
+    /**
+     * A device that replied to a discovery probe.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class DiscoveredDevice
+    {
+        /**
+         * Registry key, device ID or MAC address.
+         */
+        public final String key;
+        public final InetAddress address;
+        public final SysInfo sysInfo;
+        public final long firstSeen;
+        public final long lastSeen;
+
+        public DiscoveredDevice(String key, InetAddress address, SysInfo sysInfo, long firstSeen, long lastSeen)
+        {
+            this.key = key;
+            this.address = address;
+            this.sysInfo = sysInfo;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+        }
+
+        /**
+         * Checks whether this device matches a device ID, MAC address or alias (case-insensitive).
+         *
+         * @param idOrMacOrAlias
+         * @return
+         */
+        public boolean matches(String idOrMacOrAlias)
+        {
+            return idOrMacOrAlias.equalsIgnoreCase( key ) ||
+                   idOrMacOrAlias.equalsIgnoreCase( sysInfo.deviceId ) ||
+                   idOrMacOrAlias.equalsIgnoreCase( sysInfo.macAddress ) ||
+                   idOrMacOrAlias.equalsIgnoreCase( sysInfo.alias );
+        }
+
+        @Override
+        public String toString() {
+            return key+" @ "+address.getHostAddress()+" ( alias="+sysInfo.alias+", model="+sysInfo.model+", mac="+sysInfo.macAddress+", relay="+( sysInfo.relayOn ? "on" : "off" )+" )";
+        }
+    }
+
+    /**
+     * Type of change.
+     */
+    public static enum ChangeType
+    {
+        ADDED,
+        ADDRESS_CHANGED,
+        EXPIRED
+    }
+
+    /**
+     * A change of the registry.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class ChangeEvent
+    {
+        public final ChangeType type;
+        /**
+         * Previous state, <code>null</code> for {@link ChangeType#ADDED}.
+         */
+        public final DiscoveredDevice oldDevice;
+        /**
+         * New state, <code>null</code> for {@link ChangeType#EXPIRED}.
+         */
+        public final DiscoveredDevice newDevice;
+
+        public ChangeEvent(ChangeType type, DiscoveredDevice oldDevice, DiscoveredDevice newDevice)
+        {
+            this.type = type;
+            this.oldDevice = oldDevice;
+            this.newDevice = newDevice;
+        }
+
+        @Override
+        public String toString()
+        {
+            switch( type )
+            {
+                case ADDED:   return "Device added: "+newDevice;
+                case EXPIRED: return "Device expired: "+oldDevice;
+                default:
+                    return "Device "+newDevice.key+" moved "+oldDevice.address.getHostAddress()+" -> "+newDevice.address.getHostAddress();
+            }
+        }
+    }
+
+    /**
+     * Gets notified about registry changes.
+     *
+     * <p>Listeners are invoked by background threads.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    @FunctionalInterface
+    public interface Listener
+    {
+        void deviceChanged(ChangeEvent event);
+    }
+
+    /**
+     * Create instance and start receiving replies.
+     *
+     * @throws IOException
+     */
+    public DeviceDiscovery() throws IOException
+    {
+        channel = DatagramChannel.open();
+        try
+        {
+            channel.setOption( StandardSocketOptions.SO_BROADCAST , true );
+            channel.bind( new InetSocketAddress( 0 ) );
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        receiver = new Thread( this::receive , "device-discovery" );
+        receiver.setDaemon( true );
+        receiver.start();
+    }
+
+    private void receive()
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate( MAX_DATAGRAM_SIZE );
+        while ( channel.isOpen() )
+        {
+            final SocketAddress sender;
+            try
+            {
+                buffer.clear();
+                sender = channel.receive( buffer );
+            }
+            catch(ClosedChannelException e) {
+                return;
+            }
+            catch(IOException e)
+            {
+                debug("Receive failed: "+e.getMessage());
+                continue;
+            }
+            final int length = buffer.position();
+            new AutokeyCipher().decrypt( buffer.array() , 0 , length );
+            try {
+                update( ( (InetSocketAddress) sender ).getAddress() , SysInfo.decode( buffer.array() , 0 , length ) );
+            } catch(IOException | RuntimeException e) {
+                // a single bad datagram must not kill the receiver thread
+                debug("Ignoring malformed reply from "+sender+": "+e);
+            }
+        }
+    }
+
+    private void update(InetAddress address,SysInfo info)
+    {
+        final String key = info.deviceId != null ? info.deviceId : info.macAddress;
+        if ( key == null ) {
+            debug("Ignoring reply without device ID/MAC from "+address);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final DiscoveredDevice[] previous = new DiscoveredDevice[1];
+        final DiscoveredDevice current = devices.compute( key , (k,existing) ->
+        {
+            previous[0] = existing;
+            return new DiscoveredDevice( key , address , info , existing == null ? now : existing.firstSeen , now );
+        });
+        if ( previous[0] == null ) {
+            notifyListeners( new ChangeEvent( ChangeType.ADDED , null , current ) );
+        } else if ( ! previous[0].address.equals( address ) ) {
+            notifyListeners( new ChangeEvent( ChangeType.ADDRESS_CHANGED , previous[0] , current ) );
+        }
+    }
+
+    private void notifyListeners(ChangeEvent event)
+    {
+        for ( Listener l : listeners )
+        {
+            try {
+                l.deviceChanged( event );
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Removes devices that have not replied within the TTL and broadcasts a probe on all network interfaces.
+     *
+     * @throws IOException
+     */
+    public void probe() throws IOException
+    {
+        expire();
+        IOException error = null;
+        int sent = 0;
+        for ( InetAddress broadcast : getBroadcastAddresses() )
+        {
+            try
+            {
+                channel.send( ByteBuffer.wrap( PROBE ) , new InetSocketAddress( broadcast , port ) );
+                sent++;
+            }
+            catch(IOException e)
+            {
+                debug("Failed to send probe to "+broadcast+": "+e.getMessage());
+                error = e;
+            }
+        }
+        if ( sent == 0 && error != null ) {
+            throw error;
+        }
+    }
+
+    /**
+     * Sends a probe to a single address (useful for networks where broadcasts are filtered).
+     *
+     * @param address
+     * @throws IOException
+     */
+    public void probe(InetAddress address) throws IOException
+    {
+        channel.send( ByteBuffer.wrap( PROBE ) , new InetSocketAddress( address , port ) );
+    }
+
+    private void expire()
+    {
+        final long deadline = System.currentTimeMillis() - timeToLiveMillis;
+        for ( DiscoveredDevice device : devices.values() )
+        {
+            if ( device.lastSeen < deadline && devices.remove( device.key , device ) ) {
+                notifyListeners( new ChangeEvent( ChangeType.EXPIRED , device , null ) );
+            }
+        }
+    }
+
+    private static Set<InetAddress> getBroadcastAddresses() throws IOException
+    {
+        final Set<InetAddress> result = new LinkedHashSet<>();
+        final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while ( interfaces != null && interfaces.hasMoreElements() )
+        {
+            final NetworkInterface nif = interfaces.nextElement();
+            if ( ! nif.isUp() || nif.isLoopback() ) {
+                continue;
+            }
+            for ( InterfaceAddress address : nif.getInterfaceAddresses() ) {
+                if ( address.getBroadcast() != null ) {
+                    result.add( address.getBroadcast() );
+                }
+            }
+        }
+        result.add( InetAddress.getByName( "255.255.255.255" ) );
+        return result;
+    }
+
+    /**
+     * Broadcasts a probe and waits for replies.
+     *
+     * @param waitMillis how long to wait for replies
+     * @return all devices that replied while waiting
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public List<DiscoveredDevice> discover(long waitMillis) throws IOException, InterruptedException
+    {
+        final long start = System.currentTimeMillis();
+        probe();
+        Thread.sleep( waitMillis );
+        final List<DiscoveredDevice> result = new ArrayList<>();
+        for ( DiscoveredDevice device : devices.values() ) {
+            if ( device.lastSeen >= start ) {
+                result.add( device );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Broadcasts probes periodically.
+     *
+     * @param intervalMillis
+     */
+    public synchronized void start(long intervalMillis)
+    {
+        if ( intervalMillis < 1 ) {
+            throw new IllegalArgumentException("Interval must be > 0");
+        }
+        if ( scheduler != null ) {
+            throw new IllegalStateException("Already started");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor( r ->
+        {
+            final Thread t = new Thread( r , "device-discovery-probe" );
+            t.setDaemon( true );
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay( () ->
+        {
+            try {
+                probe();
+            } catch(IOException e) {
+                debug("Probe failed: "+e.getMessage());
+            }
+        }, 0 , intervalMillis , TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Looks up a device by device ID, MAC address or alias.
+     *
+     * @param idOrMacOrAlias
+     * @return device or <code>null</code>
+     */
+    public DiscoveredDevice lookup(String idOrMacOrAlias)
+    {
+        final DiscoveredDevice device = devices.get( idOrMacOrAlias );
+        if ( device != null ) {
+            return device;
+        }
+        for ( DiscoveredDevice candidate : devices.values() ) {
+            if ( candidate.matches( idOrMacOrAlias ) ) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return all devices currently in the registry
+     */
+    public List<DiscoveredDevice> getDevices() {
+        return Collections.unmodifiableList( new ArrayList<>( devices.values() ) );
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add( listener );
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove( listener );
+    }
+
+    /**
+     * Sets how long devices are kept in the registry after their last reply.
+     *
+     * @param timeToLiveMillis
+     */
+    public void setTimeToLiveMillis(long timeToLiveMillis)
+    {
+        if ( timeToLiveMillis < 1 ) {
+            throw new IllegalArgumentException("TTL must be > 0");
+        }
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    /**
+     * Sets the UDP port probes are sent to (default: {@link TPLink#PORT}).
+     *
+     * @param port
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    private void debug(String msg)
+    {
+        if ( debug ) {
+            System.out.println("DEBUG: "+msg);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if ( scheduler != null ) {
+            scheduler.shutdownNow();
+        }
+        channel.close();
+    }
+}
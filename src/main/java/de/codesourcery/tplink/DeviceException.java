@@ -0,0 +1,52 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a device reports a non-zero <code>err_code</code> in its response.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class DeviceException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Module the error was reported for (like <code>system</code>).
+     */
+    public final String module;
+    /**
+     * Method the error was reported for (like <code>set_relay_state</code>), <code>null</code>
+     * if the error was reported for the whole module.
+     */
+    public final String method;
+    public final long errorCode;
+    /**
+     * Error message or <code>null</code>.
+     */
+    public final String errorMessage;
+
+    public DeviceException(String module,String method,long errorCode,String errorMessage)
+    {
+        super("Device returned error "+errorCode+" for "+module+( method == null ? "" : "."+method )+( errorMessage == null ? "" : ": "+errorMessage ) );
+        this.module = module;
+        this.method = method;
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+    }
+}
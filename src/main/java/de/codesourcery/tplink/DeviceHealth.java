@@ -0,0 +1,385 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.codesourcery.tplink.TPLink.Command;
+
+/**
+ * Health state of a single device.
+ *
+ * <p>Keeps track of connect and response latencies to derive timeouts that match the
+ * device's actual behaviour (a multiple of the observed 99th percentile, bounded by the
+ * limits configured on the {@link HealthTracker}). Response latencies are tracked per command, as
+ * some commands take much longer than others to complete. Devices without enough samples of their own
+ * (like devices that never responded) use the percentiles observed across all devices instead, so
+ * probing a dead device costs about as much as talking to a healthy one. This class also acts as a circuit breaker: After
+ * a number of consecutive failures the device is considered dead and requests fail
+ * immediately with a {@link CircuitOpenException}. Once the (exponentially growing)
+ * backoff period has expired, a single request is let through as a probe. The probe succeeds
+ * as soon as a TCP connection could be established, so a dead device costs at most
+ * one connect timeout per backoff period.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class DeviceHealth
+{
+    /**
+     * Number of latency samples after which a new window is started, so
+     * timeouts follow changes in network conditions.
+     */
+    static final int WINDOW_SIZE = 500;
+
+    /**
+     * Min. number of latency samples before adaptive timeouts are used.
+     */
+    static final int MIN_SAMPLES = 20;
+
+    private static final double PERCENTILE = 0.99;
+
+    public static enum State
+    {
+        /**
+         * Device is healthy, requests are sent.
+         */
+        CLOSED,
+        /**
+         * Device failed repeatedly, requests are rejected until the backoff expired.
+         */
+        OPEN,
+        /**
+         * Backoff expired, a single probe request is under way.
+         */
+        HALF_OPEN
+    }
+
+    private final InetSocketAddress address;
+    private final HealthTracker tracker;
+
+    private final LatencyWindow connectLatency = new LatencyWindow();
+    // by command name
+    private final ConcurrentMap<String,LatencyWindow> responseLatency = new ConcurrentHashMap<>();
+
+    // metric series of this device, cached so recording a request neither allocates nor builds label strings
+    private final String device;
+    // by metric name
+    private final ConcurrentMap<String,LongAdder> counters = new ConcurrentHashMap<>();
+    // by error type
+    private final ConcurrentMap<String,LongAdder> errors = new ConcurrentHashMap<>();
+    // by command name
+    private final ConcurrentMap<String,LatencyHistogram> requestDuration = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long retryAt;
+    private long probeDeadline;
+
+    /**
+     * Latency histogram that gets replaced after {@link DeviceHealth#WINDOW_SIZE} samples.
+     */
+    static final class LatencyWindow
+    {
+        private volatile LatencyHistogram current = new LatencyHistogram();
+        private volatile LatencyHistogram previous;
+
+        public void record(long nanos)
+        {
+            final LatencyHistogram histogram = current;
+            histogram.record( nanos );
+            if ( histogram.getCount() >= WINDOW_SIZE )
+            {
+                synchronized( this )
+                {
+                    if ( current == histogram ) {
+                        previous = histogram;
+                        current = new LatencyHistogram();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param percentile
+         * @return percentile in milliseconds or -1 if not enough samples have been recorded yet
+         */
+        public double getPercentileMillis(double percentile)
+        {
+            final LatencyHistogram histogram = current;
+            if ( histogram.getCount() >= MIN_SAMPLES ) {
+                return histogram.getPercentileMillis( percentile );
+            }
+            final LatencyHistogram last = previous;
+            return last != null ? last.getPercentileMillis( percentile ) : -1;
+        }
+    }
+
+    DeviceHealth(InetSocketAddress address,HealthTracker tracker)
+    {
+        this.address = address;
+        this.tracker = tracker;
+        this.device = address.getAddress().getHostAddress();
+    }
+
+    /**
+     * Checks whether a request may be sent to this device.
+     *
+     * <p>Callers that got permission must report the outcome using {@link #succeeded()} or {@link #failed()}.</p>
+     *
+     * @return <code>true</code> if the request may be sent, <code>false</code> if the device
+     * is considered dead or another request is currently probing it
+     */
+    public synchronized boolean tryAcquire()
+    {
+        final long now = System.currentTimeMillis();
+        switch( state )
+        {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if ( now < retryAt ) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeDeadline = now + tracker.getConnectTimeoutMillis();
+                return true;
+            case HALF_OPEN:
+                if ( now < probeDeadline ) {
+                    return false;
+                }
+                // probe got lost (request cancelled before it was sent), allow another one
+                probeDeadline = now + tracker.getConnectTimeoutMillis();
+                return true;
+            default:
+                throw new RuntimeException("Unhandled state: "+state);
+        }
+    }
+
+    /**
+     * Checks whether a request may be sent to this device.
+     *
+     * @throws CircuitOpenException if the device is considered dead
+     * @see #tryAcquire()
+     */
+    public void acquire() throws CircuitOpenException
+    {
+        if ( ! tryAcquire() )
+        {
+            getCounter( Metrics.TPLINK_REJECTED ).increment();
+            throw newCircuitOpenException();
+        }
+    }
+
+    synchronized CircuitOpenException newCircuitOpenException() {
+        return new CircuitOpenException( address , consecutiveFailures , state == State.OPEN ? retryAt : probeDeadline );
+    }
+
+    /**
+     * Records the time it took to establish a TCP connection.
+     *
+     * <p>A successful connect also closes the circuit again if this was a probe.</p>
+     *
+     * @param nanos
+     */
+    public void connected(long nanos)
+    {
+        connectLatency.record( nanos );
+        tracker.connectLatency.record( nanos );
+        synchronized( this )
+        {
+            if ( state == State.HALF_OPEN ) {
+                state = State.CLOSED;
+            }
+        }
+    }
+
+    /**
+     * Records the time it took from sending a request until the response was received.
+     *
+     * @param command command name, may be <code>null</code>
+     * @param nanos
+     */
+    public void responded(String command,long nanos) 
+    {
+        getWindow( responseLatency , command ).record( nanos );
+        getWindow( tracker.responseLatency , command ).record( nanos );
+    }
+
+    static LatencyWindow getWindow(ConcurrentMap<String,LatencyWindow> windows,String command) {
+        return windows.computeIfAbsent( command == null ? "" : command , key -> new LatencyWindow() );
+    }
+
+    /**
+     * Reports a successful request.
+     */
+    public synchronized void succeeded()
+    {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Reports a failed request (I/O error or timeout, not errors reported by the device itself).
+     */
+    public synchronized void failed()
+    {
+        if ( state == State.OPEN ) { // request that was already under way when the circuit opened
+            return;
+        }
+        consecutiveFailures++;
+        if ( state == State.HALF_OPEN || consecutiveFailures >= tracker.getFailureThreshold() )
+        {
+            state = State.OPEN;
+            retryAt = System.currentTimeMillis() + getBackoffMillis();
+            getCounter( Metrics.TPLINK_CIRCUIT_OPENED ).increment();
+        }
+    }
+
+    private long getBackoffMillis()
+    {
+        final long min = tracker.getMinBackoffMillis();
+        final long max = tracker.getMaxBackoffMillis();
+        final int doublings = Math.min( 62 , Math.max( 0 , consecutiveFailures - tracker.getFailureThreshold() ) );
+        return min > ( max >> doublings ) ? max : min << doublings;
+    }
+
+    /**
+     * Returns the timeout for establishing a TCP connection.
+     *
+     * @return
+     */
+    public long getConnectTimeoutMillis() {
+        return getTimeoutMillis( connectLatency , tracker.connectLatency , tracker.getConnectTimeoutMillis() );
+    }
+
+    /**
+     * Returns the timeout for receiving a response after a request has been sent.
+     *
+     * @param command command name, may be <code>null</code>
+     * @param slow whether the command is known to take long to complete (see {@link HealthTracker#isSlowCommand(Command)})
+     * @return
+     */
+    public long getReadTimeoutMillis(String command,boolean slow) 
+    {
+        if ( slow ) {
+            return tracker.getSlowReadTimeoutMillis();
+        }
+        return getTimeoutMillis( getWindow( responseLatency , command ) , getWindow( tracker.responseLatency , command ) , tracker.getReadTimeoutMillis() );
+    }
+
+    /**
+     * Returns the timeout for connecting, sending a request and receiving the response.
+     *
+     * @param command command name, may be <code>null</code>
+     * @param slow whether the command is known to take long to complete (see {@link HealthTracker#isSlowCommand(Command)})
+     * @param maxTimeoutMillis upper bound
+     * @return
+     */
+    public long getRequestTimeoutMillis(String command,boolean slow,long maxTimeoutMillis) {
+        return Math.min( maxTimeoutMillis , getConnectTimeoutMillis() + getReadTimeoutMillis( command , slow ) );
+    }
+
+    private long getTimeoutMillis(LatencyWindow window,LatencyWindow fleetWindow,long maxTimeoutMillis)
+    {
+        double percentile = window.getPercentileMillis( PERCENTILE );
+        if ( percentile < 0 ) {
+            percentile = fleetWindow.getPercentileMillis( PERCENTILE );
+        }
+        if ( percentile < 0 ) {
+            return maxTimeoutMillis;
+        }
+        final long timeout = Math.max( tracker.getMinTimeoutMillis() , (long) Math.ceil( percentile * tracker.getTimeoutFactor() ) );
+        return Math.min( maxTimeoutMillis , timeout );
+    }
+
+    /**
+     * Returns a counter of this device that has no labels besides <code>device</code>.
+     *
+     * @param name metric name, e.g. {@link Metrics#TPLINK_BYTES_SENT}
+     * @return
+     */
+    LongAdder getCounter(String name)
+    {
+        final LongAdder result = counters.get( name );
+        return result != null ? result : counters.computeIfAbsent( name , key -> Metrics.getDefault().counter( key , "device" , device ) );
+    }
+
+    /**
+     * Returns the {@link Metrics#TPLINK_ERRORS} counter of this device for an error.
+     *
+     * @param error
+     * @return
+     * @see Metrics#errorType(Throwable)
+     */
+    LongAdder getErrorCounter(Throwable error)
+    {
+        final String type = Metrics.errorType( error );
+        final LongAdder result = errors.get( type );
+        return result != null ? result : errors.computeIfAbsent( type , key -> Metrics.getDefault().counter( Metrics.TPLINK_ERRORS , "device" , device , "type" , key ) );
+    }
+
+    /**
+     * Returns the {@link Metrics#TPLINK_REQUEST_DURATION} histogram of this device for a command.
+     *
+     * @param command command name, may be <code>null</code>
+     * @return
+     */
+    LatencyHistogram getRequestDuration(String command)
+    {
+        final String key = command == null ? "" : command;
+        final LatencyHistogram result = requestDuration.get( key );
+        return result != null ? result : requestDuration.computeIfAbsent( key , k -> Metrics.getDefault().histogram( Metrics.TPLINK_REQUEST_DURATION , "device" , device , "command" , k ) );
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Returns the time after which the device will be tried again.
+     *
+     * @return time as returned by {@link System#currentTimeMillis()}, only meaningful in state {@link State#OPEN}
+     */
+    public synchronized long getRetryAt() {
+        return retryAt;
+    }
+
+    @Override
+    public String toString()
+    {
+        final State state;
+        final int failures;
+        synchronized( this ) {
+            state = this.state;
+            failures = consecutiveFailures;
+        }
+        return address+" "+state+" (failures: "+failures+", connect timeout: "+getConnectTimeoutMillis()+" ms)";
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.codesourcery.tplink.TPLink.Command;
+
+/**
+ * Periodically polls the realtime power, voltage and current of many HS110 plugs
+ * and appends the samples to one {@link EmeterStore} per device.
+ *
+ * <p>All devices are polled concurrently using a {@link TPLinkEngine}, samples of a single poll
+ * share the same timestamp.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class EmeterCollector implements AutoCloseable
+{
+    public static final long DEFAULT_INTERVAL_MILLIS = 10_000;
+
+    private static final byte[] FRAME = Command.GET_CURRENT_AND_VOLATAGE.template.toFrame( Command.GET_CURRENT_AND_VOLATAGE.template.resolve( id -> null ) );
+
+    private final TPLinkEngine engine;
+    private final Path dataDirectory;
+
+    // stores by host name/IP, as passed to start()
+    private final Map<String,EmeterStore> stores = new LinkedHashMap<>();
+    private final Map<String,InetSocketAddress> addresses = new LinkedHashMap<>();
+
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    // polls that have not completed yet
+    private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+    // samples arriving after close() gave up waiting are dropped
+    private volatile boolean closing;
+
+    private ScheduledExecutorService scheduler;
+    private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private boolean verbose;
+
+    /**
+     * Create instance.
+     *
+     * @param engine engine used to talk to the devices, not closed by this collector
+     * @param dataDirectory directory holding one sub-directory per device
+     */
+    public EmeterCollector(TPLinkEngine engine,Path dataDirectory)
+    {
+        this.engine = engine;
+        this.dataDirectory = dataDirectory;
+    }
+
+    /**
+     * Opens the stores for all devices and starts polling.
+     *
+     * @param hosts host names/IP addresses
+     * @throws IOException if a host name could not be resolved or a store could not be opened
+     */
+    public synchronized void start(Collection<String> hosts) throws IOException
+    {
+        if ( scheduler != null ) {
+            throw new IllegalStateException("Already started");
+        }
+        for ( String host : hosts )
+        {
+            if ( ! stores.containsKey( host ) )
+            {
+                addresses.put( host , new InetSocketAddress( InetAddress.getByName( host ) , TPLink.PORT ) );
+                stores.put( host , EmeterStore.open( dataDirectory.resolve( toDirectoryName( host ) ) ) );
+            }
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor( r ->
+        {
+            final Thread t = new Thread( r , "emeter-collector" );
+            t.setDaemon( true );
+            return t;
+        });
+        scheduler.scheduleAtFixedRate( this::poll , 0 , intervalMillis , TimeUnit.MILLISECONDS );
+    }
+
+    private static String toDirectoryName(String host) {
+        return host.replaceAll( "[^a-zA-Z0-9._-]" , "_" );
+    }
+
+    /**
+     * Polls all devices once.
+     */
+    private void poll()
+    {
+        final long timestamp = System.currentTimeMillis();
+        final long timeoutMillis = Math.min( intervalMillis , engine.getTimeoutMillis() );
+        for ( Map.Entry<String,InetSocketAddress> entry : addresses.entrySet() )
+        {
+            final String host = entry.getKey();
+            final EmeterStore store = stores.get( host );
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            pending.add( future );
+            engine.send( entry.getValue() , Command.GET_CURRENT_AND_VOLATAGE.name() , Command.GET_CURRENT_AND_VOLATAGE.idempotent , false , FRAME , RealtimeEmeter.DECODER , timeoutMillis ).whenComplete( (reading,error) ->
+            {
+                if ( closing ) {
+                    pending.remove( future );
+                    future.complete( null );
+                    return;
+                }
+                try
+                {
+                    if ( error != null ) {
+                        throw error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    }
+                    store.append( new EmeterSample( timestamp , reading ) );
+                    sampleCount.incrementAndGet();
+                }
+                catch(Throwable t)
+                {
+                    if ( ! closing )
+                    {
+                        errorCount.incrementAndGet();
+                        if ( verbose ) {
+                            System.err.println("Failed to poll emeter of "+host+": "+t.getMessage());
+                        }
+                    }
+                }
+                finally
+                {
+                    pending.remove( future );
+                    future.complete( null );
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the store for a device.
+     *
+     * @param host host name/IP address as passed to {@link #start(Collection)}
+     * @return store or <code>null</code>
+     */
+    public synchronized EmeterStore getStore(String host) {
+        return stores.get( host );
+    }
+
+    public synchronized List<String> getHosts() {
+        return Collections.unmodifiableList( new ArrayList<>( stores.keySet() ) );
+    }
+
+    /**
+     * @return number of samples collected since this collector was started
+     */
+    public long getSampleCount() {
+        return sampleCount.get();
+    }
+
+    /**
+     * @return number of failed polls since this collector was started
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * Sets the poll interval, must be called before {@link #start(Collection)}.
+     *
+     * @param intervalMillis
+     */
+    public synchronized void setIntervalMillis(long intervalMillis)
+    {
+        if ( intervalMillis < 1 ) {
+            throw new IllegalArgumentException("Interval must be > 0");
+        }
+        if ( scheduler != null ) {
+            throw new IllegalStateException("Already started");
+        }
+        this.intervalMillis = intervalMillis;
+    }
+
+    public synchronized long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Stops polling, waits for outstanding polls to complete and closes all stores.
+     *
+     * <p>If the calling thread gets interrupted while waiting, samples that arrive afterwards are dropped
+     * and the thread's interrupted flag is set again.</p>
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            if ( scheduler != null )
+            {
+                scheduler.shutdown();
+                if ( scheduler.awaitTermination( 10 , TimeUnit.SECONDS ) ) {
+                    CompletableFuture.allOf( pending.toArray( new CompletableFuture<?>[0] ) ).get( engine.getTimeoutMillis() , TimeUnit.MILLISECONDS );
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException | TimeoutException e) {
+            // polls still outstanding, drop their samples
+        }
+        closing = true;
+        IOException error = null;
+        for ( EmeterStore store : stores.values() )
+        {
+            try {
+                store.close();
+            } catch(IOException e) {
+                error = e;
+            }
+        }
+        if ( error != null ) {
+            throw error;
+        }
+    }
+}
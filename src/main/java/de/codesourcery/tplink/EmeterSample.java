@@ -0,0 +1,113 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single realtime reading from the energy meter of a HS110 plug.
+ *
+ * <p>Values are stored as integers (milli-units resp. watt hours) so that they can
+ * be delta-encoded without loss.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class EmeterSample
+{
+    /**
+     * The measured quantities of a sample.
+     */
+    public enum Column
+    {
+        POWER("mW"),
+        VOLTAGE("mV"),
+        CURRENT("mA"),
+        TOTAL("Wh");
+
+        public final String unit;
+
+        private Column(String unit) {
+            this.unit = unit;
+        }
+    }
+
+    public final long timestamp;
+    public final long powerMilliWatts;
+    public final long voltageMilliVolts;
+    public final long currentMilliAmps;
+    public final long totalWattHours;
+
+    public EmeterSample(long timestamp, long powerMilliWatts, long voltageMilliVolts, long currentMilliAmps, long totalWattHours)
+    {
+        this.timestamp = timestamp;
+        this.powerMilliWatts = powerMilliWatts;
+        this.voltageMilliVolts = voltageMilliVolts;
+        this.currentMilliAmps = currentMilliAmps;
+        this.totalWattHours = totalWattHours;
+    }
+
+    /**
+     * Returns the value of a column.
+     *
+     * @param column
+     * @return
+     */
+    public long get(Column column)
+    {
+        switch( column )
+        {
+            case POWER:   return powerMilliWatts;
+            case VOLTAGE: return voltageMilliVolts;
+            case CURRENT: return currentMilliAmps;
+            case TOTAL:   return totalWattHours;
+            default:
+                throw new RuntimeException("Unhandled switch/case: "+column);
+        }
+    }
+
+    /**
+     * Create sample from an emeter reading.
+     *
+     * @param timestamp time the sample was taken (milliseconds since the epoch)
+     * @param reading
+     */
+    public EmeterSample(long timestamp,RealtimeEmeter reading)
+    {
+        this( timestamp , reading.powerMilliWatts , reading.voltageMilliVolts , reading.currentMilliAmps , reading.totalWattHours );
+    }
+
+    /**
+     * Parses the response to {@link TPLink.Command#GET_CURRENT_AND_VOLATAGE}.
+     *
+     * @param timestamp time the sample was taken (milliseconds since the epoch)
+     * @param json device response
+     * @return
+     * @throws IOException if the response is malformed or the device reported an error
+     * @see RealtimeEmeter
+     */
+    public static EmeterSample parse(long timestamp,String json) throws IOException
+    {
+        final byte[] data = json.getBytes( StandardCharsets.UTF_8 );
+        return new EmeterSample( timestamp , RealtimeEmeter.decode( data , 0 , data.length ) );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "EmeterSample[ timestamp="+timestamp+", power="+powerMilliWatts+" mW, voltage="+voltageMilliVolts+" mV, current="+currentMilliAmps+" mA, total="+totalWattHours+" Wh ]";
+    }
+}
@@ -0,0 +1,535 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import de.codesourcery.tplink.EmeterSample.Column;
+
+/**
+ * Append-only, memory-mapped columnar storage for the emeter samples of a single device.
+ *
+ * <p>Each column (timestamp, power, voltage, current, total) is stored in its own file as a stream of
+ * zig-zag encoded variable-length integers. Timestamps are delta-of-delta encoded (one byte per sample
+ * when polling at a fixed interval), all other values are delta encoded.</p>
+ *
+ * <p>Every {@link #BLOCK_SIZE} samples the encoding restarts from zero and a checkpoint with the timestamp
+ * and column file offsets is written to the index file, so range queries only decode the blocks they need.
+ * The index file also holds a header with the number of samples and the encoder state, which is updated
+ * after every append.</p>
+ *
+ * <p>Files are grown in chunks, each file is limited to 2 GB. Instances are thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class EmeterStore implements AutoCloseable
+{
+    /**
+     * Number of samples between two checkpoints.
+     */
+    public static final int BLOCK_SIZE = 256;
+
+    private static final int MAGIC = 0x454d5452; // 'EMTR'
+    private static final int VERSION = 1;
+
+    // column 0 is the timestamp, columns 1..n are EmeterSample.Column values
+    private static final int COLUMN_COUNT = 1 + Column.values().length;
+
+    // header layout
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_SAMPLE_COUNT = 8;
+    private static final int OFFSET_TIMESTAMP_DELTA = 16;
+    private static final int OFFSET_LAST_VALUES = 24;
+    private static final int OFFSET_COLUMN_ENDS = OFFSET_LAST_VALUES + 8 * COLUMN_COUNT;
+    private static final int HEADER_SIZE = 128;
+
+    // checkpoint: timestamp + offset of each column
+    private static final int CHECKPOINT_SIZE = 8 * ( 1 + COLUMN_COUNT );
+
+    private static final int INITIAL_FILE_SIZE = 64 * 1024;
+    private static final int MAX_GROWTH = 16 * 1024 * 1024;
+
+    // max. length of a var-long
+    private static final int MAX_VARLONG_SIZE = 10;
+
+    private final Path directory;
+    private final MappedFile index;
+    private final MappedFile[] columns = new MappedFile[ COLUMN_COUNT ];
+
+    private long sampleCount;
+    private long timestampDelta;
+    private final long[] last = new long[ COLUMN_COUNT ];
+    private final int[] columnEnds = new int[ COLUMN_COUNT ];
+    private boolean closed;
+
+    /**
+     * Aggregated values of all samples within a time interval.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Bucket
+    {
+        /** Start of this bucket (inclusive, milliseconds since the epoch). */
+        public final long start;
+        /** End of this bucket (exclusive, milliseconds since the epoch). */
+        public final long end;
+
+        private int count;
+        private final long[] min = new long[ Column.values().length ];
+        private final long[] max = new long[ Column.values().length ];
+        private final long[] sum = new long[ Column.values().length ];
+
+        private Bucket(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        private void add(long[] values)
+        {
+            for ( int i = 0 ; i < sum.length ; i++ )
+            {
+                final long value = values[ i + 1 ];
+                if ( count == 0 ) {
+                    min[i] = max[i] = value;
+                } else {
+                    min[i] = Math.min( min[i] , value );
+                    max[i] = Math.max( max[i] , value );
+                }
+                sum[i] += value;
+            }
+            count++;
+        }
+
+        /**
+         * @return number of samples in this bucket
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public long getMin(Column column) {
+            return min[ column.ordinal() ];
+        }
+
+        public long getMax(Column column) {
+            return max[ column.ordinal() ];
+        }
+
+        public double getAverage(Column column) {
+            return sum[ column.ordinal() ] / (double) count;
+        }
+
+        @Override
+        public String toString()
+        {
+            final StringBuilder result = new StringBuilder("Bucket[ start="+start+", end="+end+", count="+count);
+            for ( Column c : Column.values() ) {
+                result.append(", ").append( c.name().toLowerCase() ).append("=").append( getMin( c ) ).append("/")
+                    .append( String.format( "%.1f" , getAverage( c ) ) ).append("/").append( getMax( c ) ).append(" ").append( c.unit );
+            }
+            return result.append(" ]").toString();
+        }
+    }
+
+    /**
+     * A memory-mapped file that is grown on demand.
+     */
+    private static final class MappedFile
+    {
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        public MappedFile(Path file) throws IOException
+        {
+            channel = FileChannel.open( file , StandardOpenOption.CREATE , StandardOpenOption.READ , StandardOpenOption.WRITE );
+            try {
+                buffer = channel.map( FileChannel.MapMode.READ_WRITE , 0 , Math.max( channel.size() , INITIAL_FILE_SIZE ) );
+            } catch(IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public boolean isEmpty() throws IOException {
+            return channel.size() <= INITIAL_FILE_SIZE && buffer.getInt( 0 ) == 0;
+        }
+
+        public void ensureCapacity(long required) throws IOException
+        {
+            if ( required <= buffer.capacity() ) {
+                return;
+            }
+            final long newSize = Math.max( required , Math.min( 2L * buffer.capacity() , (long) buffer.capacity() + MAX_GROWTH ) );
+            if ( newSize > Integer.MAX_VALUE ) {
+                throw new IOException("File size limit of 2 GB exceeded");
+            }
+            buffer = channel.map( FileChannel.MapMode.READ_WRITE , 0 , newSize );
+        }
+
+        public void close() throws IOException
+        {
+            buffer.force();
+            channel.close();
+        }
+    }
+
+    private EmeterStore(Path directory) throws IOException
+    {
+        this.directory = directory;
+        Files.createDirectories( directory );
+
+        this.index = new MappedFile( directory.resolve( "index.dat" ) );
+        try
+        {
+            columns[0] = new MappedFile( directory.resolve( "timestamp.col" ) );
+            for ( Column c : Column.values() ) {
+                columns[ 1 + c.ordinal() ] = new MappedFile( directory.resolve( c.name().toLowerCase()+".col" ) );
+            }
+            readHeader();
+        }
+        catch(IOException | RuntimeException e)
+        {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a store, creating it if necessary.
+     *
+     * @param directory directory holding the files of this store
+     * @return
+     * @throws IOException
+     */
+    public static EmeterStore open(Path directory) throws IOException
+    {
+        return new EmeterStore( directory );
+    }
+
+    private void readHeader() throws IOException
+    {
+        final MappedByteBuffer header = index.buffer;
+        if ( index.isEmpty() )
+        {
+            header.putInt( OFFSET_MAGIC , MAGIC );
+            header.putInt( OFFSET_VERSION , VERSION );
+            return;
+        }
+        if ( header.getInt( OFFSET_MAGIC ) != MAGIC ) {
+            throw new IOException("Not an emeter store: "+directory);
+        }
+        if ( header.getInt( OFFSET_VERSION ) != VERSION ) {
+            throw new IOException("Unsupported emeter store version "+header.getInt( OFFSET_VERSION )+": "+directory);
+        }
+        sampleCount = header.getLong( OFFSET_SAMPLE_COUNT );
+        timestampDelta = header.getLong( OFFSET_TIMESTAMP_DELTA );
+        for ( int i = 0 ; i < COLUMN_COUNT ; i++ )
+        {
+            last[i] = header.getLong( OFFSET_LAST_VALUES + 8 * i );
+            columnEnds[i] = (int) header.getLong( OFFSET_COLUMN_ENDS + 8 * i );
+        }
+    }
+
+    private void writeHeader()
+    {
+        final MappedByteBuffer header = index.buffer;
+        header.putLong( OFFSET_TIMESTAMP_DELTA , timestampDelta );
+        for ( int i = 0 ; i < COLUMN_COUNT ; i++ )
+        {
+            header.putLong( OFFSET_LAST_VALUES + 8 * i , last[i] );
+            header.putLong( OFFSET_COLUMN_ENDS + 8 * i , columnEnds[i] );
+        }
+        // written last so that a partially written sample is ignored
+        header.putLong( OFFSET_SAMPLE_COUNT , sampleCount );
+    }
+
+    /**
+     * Appends a sample.
+     *
+     * @param sample
+     * @throws IOException
+     * @throws IllegalArgumentException if the sample is older than the last sample
+     */
+    public synchronized void append(EmeterSample sample) throws IOException
+    {
+        checkOpen();
+        if ( sampleCount > 0 && sample.timestamp < last[0] ) {
+            throw new IllegalArgumentException("Samples must be appended in chronological order, "+sample.timestamp+" < "+last[0]);
+        }
+
+        final boolean blockStart = ( sampleCount % BLOCK_SIZE ) == 0;
+        if ( blockStart )
+        {
+            final long offset = HEADER_SIZE + ( sampleCount / BLOCK_SIZE ) * CHECKPOINT_SIZE;
+            index.ensureCapacity( offset + CHECKPOINT_SIZE );
+            final MappedByteBuffer buffer = index.buffer;
+            buffer.putLong( (int) offset , sample.timestamp );
+            for ( int i = 0 ; i < COLUMN_COUNT ; i++ ) {
+                buffer.putLong( (int) offset + 8 * ( i + 1 ) , columnEnds[i] );
+            }
+            Arrays.fill( last , 0 );
+            timestampDelta = 0;
+        }
+        for ( int i = 0 ; i < COLUMN_COUNT ; i++ ) {
+            columns[i].ensureCapacity( columnEnds[i] + MAX_VARLONG_SIZE );
+        }
+
+        final long delta = sample.timestamp - last[0];
+        columnEnds[0] = writeVarLong( columns[0].buffer , columnEnds[0] , delta - timestampDelta );
+        timestampDelta = blockStart ? 0 : delta;
+        last[0] = sample.timestamp;
+        for ( Column c : Column.values() )
+        {
+            final int col = 1 + c.ordinal();
+            final long value = sample.get( c );
+            columnEnds[col] = writeVarLong( columns[col].buffer , columnEnds[col] , value - last[col] );
+            last[col] = value;
+        }
+        sampleCount++;
+        writeHeader();
+    }
+
+    /**
+     * Passes all samples within a time range to a consumer, in chronological order.
+     *
+     * @param from start of time range (inclusive, milliseconds since the epoch)
+     * @param to end of time range (inclusive, milliseconds since the epoch)
+     * @param consumer
+     */
+    public void query(long from,long to,Consumer<EmeterSample> consumer)
+    {
+        scan( from , to , v -> consumer.accept( new EmeterSample( v[0] , v[1] , v[2] , v[3] , v[4] ) ) );
+    }
+
+    /**
+     * Returns all samples within a time range.
+     *
+     * @param from start of time range (inclusive, milliseconds since the epoch)
+     * @param to end of time range (inclusive, milliseconds since the epoch)
+     * @return samples in chronological order
+     */
+    public List<EmeterSample> query(long from,long to)
+    {
+        final List<EmeterSample> result = new ArrayList<>();
+        query( from , to , result::add );
+        return result;
+    }
+
+    /**
+     * Aggregates all samples within a time range into fixed-size buckets.
+     *
+     * @param from start of time range (inclusive, milliseconds since the epoch), also the start of the first bucket
+     * @param to end of time range (inclusive, milliseconds since the epoch)
+     * @param bucketMillis bucket size in milliseconds
+     * @return non-empty buckets in chronological order
+     */
+    public List<Bucket> downsample(long from,long to,long bucketMillis)
+    {
+        if ( bucketMillis < 1 ) {
+            throw new IllegalArgumentException("Bucket size must be > 0");
+        }
+        final List<Bucket> result = new ArrayList<>();
+        scan( from , to , values ->
+        {
+            Bucket bucket = result.isEmpty() ? null : result.get( result.size() - 1 );
+            if ( bucket == null || values[0] >= bucket.end )
+            {
+                final long start = from + ( ( values[0] - from ) / bucketMillis ) * bucketMillis;
+                bucket = new Bucket( start , start + bucketMillis );
+                result.add( bucket );
+            }
+            bucket.add( values );
+        });
+        return result;
+    }
+
+    private synchronized void scan(long from,long to,Consumer<long[]> visitor)
+    {
+        checkOpen();
+        if ( sampleCount == 0 || from > to ) {
+            return;
+        }
+
+        // find last checkpoint before 'from' (or the first one), samples with equal
+        // timestamps may span a block boundary so a checkpoint at 'from' is not good enough
+        final long blockCount = ( sampleCount + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+        long low = 0;
+        long high = blockCount - 1;
+        while ( low < high )
+        {
+            final long mid = ( low + high + 1 ) >>> 1;
+            if ( checkpointTimestamp( mid ) < from ) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        final int checkpoint = (int) ( HEADER_SIZE + low * CHECKPOINT_SIZE );
+        final int[] positions = new int[ COLUMN_COUNT ];
+        for ( int i = 0 ; i < COLUMN_COUNT ; i++ ) {
+            positions[i] = (int) index.buffer.getLong( checkpoint + 8 * ( i + 1 ) );
+        }
+
+        final long[] values = new long[ COLUMN_COUNT ];
+        long delta = 0;
+        for ( long sample = low * BLOCK_SIZE ; sample < sampleCount ; sample++ )
+        {
+            final boolean blockStart = ( sample % BLOCK_SIZE ) == 0;
+            if ( blockStart ) {
+                Arrays.fill( values , 0 );
+                delta = 0;
+            }
+            for ( int i = 0 ; i < COLUMN_COUNT ; i++ )
+            {
+                final MappedByteBuffer buffer = columns[i].buffer;
+                long raw = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buffer.get( positions[i]++ );
+                    raw |= (long) ( b & 0x7f ) << shift;
+                    shift += 7;
+                } while ( b < 0 );
+                final long decoded = ( raw >>> 1 ) ^ -( raw & 1 );
+                if ( i == 0 )
+                {
+                    final long newDelta = delta + decoded;
+                    values[0] += newDelta;
+                    delta = blockStart ? 0 : newDelta;
+                } else {
+                    values[i] += decoded;
+                }
+            }
+            if ( values[0] > to ) {
+                break;
+            }
+            if ( values[0] >= from ) {
+                visitor.accept( values );
+            }
+        }
+    }
+
+    private long checkpointTimestamp(long block) {
+        return index.buffer.getLong( (int) ( HEADER_SIZE + block * CHECKPOINT_SIZE ) );
+    }
+
+    private static int writeVarLong(MappedByteBuffer buffer,int offset,long value)
+    {
+        long zigZag = ( value << 1 ) ^ ( value >> 63 );
+        while ( ( zigZag & ~0x7fL ) != 0 )
+        {
+            buffer.put( offset++ , (byte) ( ( zigZag & 0x7f ) | 0x80 ) );
+            zigZag >>>= 7;
+        }
+        buffer.put( offset++ , (byte) zigZag );
+        return offset;
+    }
+
+    /**
+     * @return number of samples in this store
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return timestamp of the most recent sample or -1 if the store is empty
+     */
+    public synchronized long getLastTimestamp() {
+        return sampleCount > 0 ? last[0] : -1;
+    }
+
+    /**
+     * @return total number of bytes used by the stored samples (excluding the index)
+     */
+    public synchronized long getSizeInBytes()
+    {
+        long result = 0;
+        for ( int end : columnEnds ) {
+            result += end;
+        }
+        return result;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes all changes to disk.
+     */
+    public synchronized void flush()
+    {
+        checkOpen();
+        index.buffer.force();
+        for ( MappedFile column : columns ) {
+            column.buffer.force();
+        }
+    }
+
+    private void checkOpen()
+    {
+        if ( closed ) {
+            throw new IllegalStateException("Store already closed: "+directory);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if ( ! closed )
+        {
+            closed = true;
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() throws IOException
+    {
+        IOException error = null;
+        for ( MappedFile file : columns )
+        {
+            if ( file != null ) {
+                try {
+                    file.close();
+                } catch(IOException e) {
+                    error = e;
+                }
+            }
+        }
+        index.close();
+        if ( error != null ) {
+            throw error;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EmeterStore[ "+directory+", samples="+getSampleCount()+" ]";
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.codesourcery.tplink.TPLink.Command;
+
+/**
+ * Keeps track of the {@link DeviceHealth} of all devices and holds the
+ * settings for adaptive timeouts and circuit breaking.
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class HealthTracker
+{
+    /**
+     * Connect timeout used until enough latency samples have been collected, also upper bound for adaptive connect timeouts.
+     */
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 3000;
+
+    /**
+     * Read timeout used until enough latency samples have been collected, also upper bound for adaptive read timeouts.
+     */
+    public static final long DEFAULT_READ_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Read timeout for {@link #isSlowCommand(Command) slow commands}.
+     */
+    public static final long DEFAULT_SLOW_READ_TIMEOUT_MILLIS = 30000;
+
+    public static final long DEFAULT_MIN_TIMEOUT_MILLIS = 250;
+
+    public static final int DEFAULT_TIMEOUT_FACTOR = 4;
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    public static final long DEFAULT_MIN_BACKOFF_MILLIS = 1000;
+
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    private static final HealthTracker DEFAULT = new HealthTracker();
+
+    /**
+     * Commands that make the device do lengthy work (scanning for access points, aggregating
+     * emeter statistics, talking to the cloud, rebooting) before it responds.
+     */
+    private static final Set<Command> SLOW_COMMANDS = EnumSet.of( 
+            Command.REBOOT, 
+            Command.FACTORY_RESET, 
+            Command.DOWNLOAD_FIRMWARE, 
+            Command.FLASH_FIRMWARE, 
+            Command.CHECK_CONFIG, 
+            Command.SCAN_APS, 
+            Command.CONNECT_TO_AP, 
+            Command.GET_FIRMWARE_LIST, 
+            Command.CONNECT_TO_CLOUD_SERVER, 
+            Command.CALIBRATE_EMETER, 
+            Command.GET_EMETER_DAILY, 
+            Command.GET_EMETER_MONTHLY, 
+            Command.GET_EMETER_YEARLY );
+
+    private final ConcurrentMap<InetSocketAddress,DeviceHealth> devices = new ConcurrentHashMap<>();
+
+    // latencies across all devices, used for devices without enough samples of their own
+    final DeviceHealth.LatencyWindow connectLatency = new DeviceHealth.LatencyWindow();
+    final ConcurrentMap<String,DeviceHealth.LatencyWindow> responseLatency = new ConcurrentHashMap<>();
+
+    private volatile long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile long readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private volatile long slowReadTimeoutMillis = DEFAULT_SLOW_READ_TIMEOUT_MILLIS;
+    private volatile long minTimeoutMillis = DEFAULT_MIN_TIMEOUT_MILLIS;
+    private volatile int timeoutFactor = DEFAULT_TIMEOUT_FACTOR;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long minBackoffMillis = DEFAULT_MIN_BACKOFF_MILLIS;
+    private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    /**
+     * Returns the tracker used by this library.
+     *
+     * @return
+     */
+    public static HealthTracker getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the health state of a device, creating it if necessary.
+     *
+     * @param address
+     * @return
+     */
+    public DeviceHealth get(InetSocketAddress address) 
+    {
+        final DeviceHealth result = devices.get( address );
+        return result != null ? result : devices.computeIfAbsent( address , key -> new DeviceHealth( key , this ) );
+    }
+
+    /**
+     * Returns the health state of a device listening on {@link TPLink#PORT}, creating it if necessary.
+     *
+     * @param address
+     * @return
+     */
+    public DeviceHealth get(InetAddress address) {
+        return get( new InetSocketAddress( address , TPLink.PORT ) );
+    }
+
+    /**
+     * Returns the health state of all devices that have been contacted so far.
+     *
+     * @return
+     */
+    public List<DeviceHealth> getDevices() {
+        return new ArrayList<>( devices.values() );
+    }
+
+    /**
+     * Forgets about all devices (the latencies observed across all devices are kept).
+     */
+    public void clear() {
+        devices.clear();
+    }
+
+    /**
+     * Sets the connect timeout used for devices without enough latency samples, this is also the upper
+     * bound for adaptive connect timeouts.
+     *
+     * @param connectTimeoutMillis
+     */
+    public void setConnectTimeoutMillis(long connectTimeoutMillis)
+    {
+        if ( connectTimeoutMillis <= 0 ) {
+            throw new IllegalArgumentException("Connect timeout must be > 0");
+        }
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Sets the read timeout used for devices without enough latency samples, this is also the upper
+     * bound for adaptive read timeouts.
+     *
+     * @param readTimeoutMillis
+     */
+    public void setReadTimeoutMillis(long readTimeoutMillis)
+    {
+        if ( readTimeoutMillis <= 0 ) {
+            throw new IllegalArgumentException("Read timeout must be > 0");
+        }
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * Sets the read timeout for {@link #isSlowCommand(Command) slow commands}.
+     *
+     * @param slowReadTimeoutMillis
+     */
+    public void setSlowReadTimeoutMillis(long slowReadTimeoutMillis)
+    {
+        if ( slowReadTimeoutMillis <= 0 ) {
+            throw new IllegalArgumentException("Read timeout must be > 0");
+        }
+        this.slowReadTimeoutMillis = slowReadTimeoutMillis;
+    }
+
+    public long getSlowReadTimeoutMillis() {
+        return slowReadTimeoutMillis;
+    }
+
+    /**
+     * Checks whether a command is known to take long to complete.
+     *
+     * <p>The response times of these commands vary a lot and don't say anything about the device's
+     * health, so they always use the {@link #getSlowReadTimeoutMillis() slow read timeout} instead of an adaptive one.</p>
+     *
+     * @param command
+     * @return
+     * @see MultiCommand#isSlow()
+     */
+    public static boolean isSlowCommand(Command command) {
+        return SLOW_COMMANDS.contains( command );
+    }
+
+    /**
+     * Sets the lower bound for adaptive timeouts.
+     *
+     * @param minTimeoutMillis
+     */
+    public void setMinTimeoutMillis(long minTimeoutMillis)
+    {
+        if ( minTimeoutMillis <= 0 ) {
+            throw new IllegalArgumentException("Min. timeout must be > 0");
+        }
+        this.minTimeoutMillis = minTimeoutMillis;
+    }
+
+    public long getMinTimeoutMillis() {
+        return minTimeoutMillis;
+    }
+
+    /**
+     * Sets the factor the 99th latency percentile gets multiplied with to derive a timeout.
+     *
+     * @param timeoutFactor
+     */
+    public void setTimeoutFactor(int timeoutFactor)
+    {
+        if ( timeoutFactor < 1 ) {
+            throw new IllegalArgumentException("Timeout factor must be >= 1");
+        }
+        this.timeoutFactor = timeoutFactor;
+    }
+
+    public int getTimeoutFactor() {
+        return timeoutFactor;
+    }
+
+    /**
+     * Sets the number of consecutive failures after which a device is considered dead.
+     *
+     * @param failureThreshold
+     */
+    public void setFailureThreshold(int failureThreshold)
+    {
+        if ( failureThreshold < 1 ) {
+            throw new IllegalArgumentException("Failure threshold must be >= 1");
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Sets the range for the time a dead device is not contacted, the backoff doubles
+     * with every failed probe.
+     *
+     * @param minBackoffMillis backoff after the failure threshold has been reached
+     * @param maxBackoffMillis upper bound
+     */
+    public void setBackoffMillis(long minBackoffMillis,long maxBackoffMillis)
+    {
+        if ( minBackoffMillis <= 0 || maxBackoffMillis < minBackoffMillis ) {
+            throw new IllegalArgumentException("Backoff must be > 0 and min. backoff must be <= max. backoff");
+        }
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public long getMinBackoffMillis() {
+        return minBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+}
@@ -17,42 +17,67 @@ package de.codesourcery.tplink;
 
 import static org.apache.commons.lang3.StringUtils.EMPTY;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NoHttpResponseException;
 import org.apache.http.auth.AuthScheme;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.AuthState;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.xml.sax.SAXException;
 
 /**
@@ -64,6 +89,29 @@ import org.xml.sax.SAXException;
 @SuppressWarnings("deprecation")
 public class JenkinsClient implements AutoCloseable
 {
+    public static final int DEFAULT_LOOKUP_PARALLELISM = 4;
+
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    public static final int DEFAULT_MAX_FOLDER_DEPTH = 5;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10_000;
+    public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 60_000;
+    public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 60_000;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60_000;
+    public static final long DEFAULT_HOST_CACHE_TTL_MILLIS = 60_000;
+
+    /*
+     * Jenkins 'tree' query parameters to fetch only the attributes we actually need
+     * ('[' and ']' need to be URL-encoded).
+     */
+    private static final String BUILD_NUMBERS_TREE = "lastSuccessfulBuild%5Bnumber%5D,lastFailedBuild%5Bnumber%5D";
+    private static final String JOB_TREE_QUERY = "?tree=name,"+BUILD_NUMBERS_TREE;
+    private static final String JOBS_TREE_QUERY = "?tree=jobs%5Bname,color,"+BUILD_NUMBERS_TREE+"%5D";
+
+    // one or more (nested) job/folder names in an URL path
+    private static final Pattern JOB_PATH = Pattern.compile("(/job/[^/?]+)+");
+
     private String username;
     private String password;
     private int port = 80;
@@ -71,8 +119,26 @@ public class JenkinsClient implements AutoCloseable
     private String host;
 
     private CloseableHttpClient httpClient;
+    private PoolingHttpClientConnectionManager connectionManager;
     private BasicHttpContext clientContext;
 
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int socketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+    private int connectionRequestTimeoutMillis = DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS;
+    private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private int maxConnectionsPerRoute = -1; // derived from lookup parallelism
+    private int maxConnectionsTotal = -1;
+    private long hostCacheTtlMillis = DEFAULT_HOST_CACHE_TTL_MILLIS;
+    private volatile CachedHost cachedHost;
+
+    private int lookupParallelism = DEFAULT_LOOKUP_PARALLELISM;
+
+    private volatile long cacheTtlMillis;
+    private final ResponseCache<String> documentCache = new ResponseCache<>( DEFAULT_CACHE_SIZE );
+    private final ResponseCache<JobListing> jobListCache = new ResponseCache<>( DEFAULT_CACHE_SIZE );
+    private int maxFolderDepth = DEFAULT_MAX_FOLDER_DEPTH;
+    private ExecutorService lookupExecutor;
+
     private boolean debug;
     private boolean verbose;
 
@@ -171,8 +237,11 @@ public class JenkinsClient implements AutoCloseable
     }
 
     /**
-     * Returns all Jenkins jobs whose status is accessible to the current user
-     * without the jenkins jobs with the <code>ignoreme</code> prefix.
+     * Returns all Jenkins jobs whose status is accessible to the current user.
+     *
+     * <p>No jobs are filtered out, excluding jobs (e.g. the <code>ignoreme</code> ones) is up to the caller.</p>
+     *
+     * <p>Unlike {@link #getJobs(Consumer)}, aborted jobs keep their position in the job listing.</p>
      *
      * @return
      * @throws IOException
@@ -181,64 +250,447 @@ public class JenkinsClient implements AutoCloseable
      */
     public List<Job> getJobs() throws IOException, ParserConfigurationException, SAXException
     {
-        try ( InputStream in = scrape() )
+        final List<Job> result = new ArrayList<>();
+        getJobs( result::add , true );
+        verbose("Got "+result.size()+" jobs");
+        return result;
+    }
+
+    /**
+     * Streams all Jenkins jobs whose status is accessible to the current user.
+     *
+     * <p>The job list is parsed straight from the HTTP response and jobs are passed to the consumer
+     * while parsing, so memory usage does not depend on the number of jobs.</p>
+     *
+     * <p>Folders and multibranch projects are traversed (concurrently, up to {@link #setMaxFolderDepth(int) the max. depth})
+     * and jobs inside them are reported using their full name (<code>folder/job</code>). Jobs inside folders
+     * as well as aborted jobs whose last build numbers were not part of the job list are passed to the
+     * consumer after all top-level jobs. Use {@link #getJobs()} if jobs are needed in listing order.</p>
+     *
+     * <p>The consumer is always invoked by the calling thread.</p>
+     *
+     * @param consumer
+     * @throws IOException
+     */
+    public void getJobs(Consumer<Job> consumer) throws IOException
+    {
+        getJobs( consumer , false );
+    }
+
+    /**
+     * @param consumer
+     * @param inListingOrder whether to pass aborted jobs to the consumer at their position in the listing,
+     * their status is updated in place once it has been looked up so the consumer must not inspect it right away
+     * @throws IOException
+     */
+    private void getJobs(Consumer<Job> consumer,boolean inListingOrder) throws IOException
+    {
+        final Consumer<Job> wrapper = ! debug ? consumer : job -> {
+            debug( job.toString() );
+            consumer.accept( job );
+        };
+        evictIdleConnections();
+
+        final List<Job> aborted = new ArrayList<>();
+        final Consumer<ListedJob> emitter = listed ->
         {
-            String jsonString;
-            try (BufferedReader buffer = new BufferedReader(new InputStreamReader(in)))
-            {
-                jsonString = buffer.lines().collect(Collectors.joining("\n"));
+            final Job job = new Job( listed.name , listed.status );
+            if ( listed.needsLookup ) {
+                aborted.add( job );
+                if ( inListingOrder ) {
+                    consumer.accept( job );
+                }
+            } else {
+                wrapper.accept( job );
             }
+        };
 
-            final List<Job> result = new ArrayList<>();
-            final JSONObject obj = new JSONObject( jsonString );
-            final JSONArray jobs = obj.getJSONArray("jobs");
-            for ( int i = 0 ; i < jobs.length() ; i++ )
-            {
-                final JSONObject job = jobs.getJSONObject( i );
-                final String jobName = job.getString( "name" );
+        final JobListing root = fetchJobListing( "" , "" , emitter );
+        if ( maxFolderDepth > 0 ) {
+            crawlFolders( root.folders , emitter );
+        }
+
+        // don't ignore the failed jobs if they were aborted
+        resolveAbortedJobs( aborted );
+        if ( ! inListingOrder ) {
+            aborted.forEach( wrapper );
+        } else if ( debug ) {
+            aborted.forEach( job -> debug( job.toString() ) );
+        }
+    }
+
+    /**
+     * A job as listed by the server, before looking up the
+     * build status of aborted jobs.
+     */
+    private static final class ListedJob
+    {
+        public final String name;
+        public final JobStatus status;
+        public final boolean needsLookup;
+
+        public ListedJob(String name, JobStatus status, boolean needsLookup)
+        {
+            this.name = name;
+            this.status = status;
+            this.needsLookup = needsLookup;
+        }
+    }
 
-                if( ! job.has("color") ) { // jobs of class 'org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject' do not have this attribute 
-                    continue;
+    /**
+     * Contents of the Jenkins root or a folder.
+     */
+    private static final class JobListing
+    {
+        public final List<ListedJob> jobs = new ArrayList<>();
+        public final List<String> folders = new ArrayList<>();
+    }
+
+    /**
+     * Result of crawling a single folder.
+     */
+    private static final class CrawledFolder
+    {
+        public final int depth;
+        public final List<ListedJob> jobs;
+        public final List<String> folders;
+
+        public CrawledFolder(int depth, List<ListedJob> jobs, List<String> folders)
+        {
+            this.depth = depth;
+            this.jobs = jobs;
+            this.folders = folders;
+        }
+    }
+
+    /**
+     * Fetches the contents of the Jenkins root or a folder.
+     *
+     * @param folderPath URL path of the folder, empty string for the root
+     * @param namePrefix prefix for job names (full name of the folder + '/', empty string for the root)
+     * @param consumer receives jobs while the listing is being parsed
+     * @return listing, the list of jobs is only populated if listings are being cached
+     * @throws IOException
+     */
+    private JobListing fetchJobListing(String folderPath,String namePrefix,Consumer<ListedJob> consumer) throws IOException
+    {
+        final String url = folderPath+"/api/json"+JOBS_TREE_QUERY;
+        final ResponseCache.Entry<JobListing> cached = jobListCache.get( url );
+        if ( cached != null && cached.isFresh( cacheTtlMillis ) )
+        {
+            verbose("CACHED: "+url);
+            Metrics.getDefault().counter( Metrics.JENKINS_CACHE_HITS , "endpoint" , toEndpoint( url ) ).increment();
+            cached.value.jobs.forEach( consumer );
+            return cached.value;
+        }
+
+        final JobListing listing = new JobListing();
+        final ResponseCache.Entry<JobListing> entry = doGetRequest( url , cached , (response,reader) ->
+        {
+            // only hold on to the jobs if the cached listing can actually be used later on
+            final boolean cacheResult = jobListCache.getMaxEntries() > 0 && ( cacheTtlMillis > 0 ||
+                    getHeader( response , HttpHeaders.ETAG ) != null || getHeader( response , HttpHeaders.LAST_MODIFIED ) != null );
+            parseJobList( reader , json ->
+            {
+                final String fullName = namePrefix + json.getString( "name" );
+                final Job job = toJob( json , fullName );
+                if ( job == null ) { // folder or multibranch project
+                    listing.folders.add( fullName );
+                    return;
+                }
+                final ListedJob listed = new ListedJob( fullName , job.status , job.status.isAborted() && ! hasBuildNumbers( json ) );
+                if ( cacheResult ) {
+                    listing.jobs.add( listed );
                 }
+                consumer.accept( listed );
+            });
+            return listing;
+        });
 
-                final String jobColor = job.getString( "color" );
+        if ( entry == cached ) // 304 Not Modified
+        {
+            cached.value.jobs.forEach( consumer );
+            return cached.value;
+        }
+        if ( jobListCache.getMaxEntries() > 0 && isCacheable( entry ) ) {
+            jobListCache.put( url , entry );
+        }
+        return listing;
+    }
 
-                JobStatus jobstatus;
-                try {
-                    jobstatus = JobStatus.fromString( jobColor );
+    /**
+     * Recursively fetches the contents of folders, using up to {@link #getLookupParallelism()} concurrent requests.
+     *
+     * @param folders full names of top-level folders
+     * @param consumer invoked by the calling thread
+     * @throws IOException
+     */
+    private void crawlFolders(List<String> folders,Consumer<ListedJob> consumer) throws IOException
+    {
+        if ( folders.isEmpty() ) {
+            return;
+        }
+        final CompletionService<CrawledFolder> completionService = new ExecutorCompletionService<>( getLookupExecutor() );
+        final List<Future<CrawledFolder>> futures = new ArrayList<>();
+        try
+        {
+            int pending = 0;
+            for ( String folder : folders ) {
+                futures.add( completionService.submit( () -> crawlFolder( folder , 1 ) ) );
+                pending++;
+            }
+            while ( pending > 0 )
+            {
+                final CrawledFolder result = completionService.take().get();
+                pending--;
+                result.jobs.forEach( consumer );
+                if ( result.depth < maxFolderDepth )
+                {
+                    for ( String folder : result.folders ) {
+                        futures.add( completionService.submit( () -> crawlFolder( folder , result.depth + 1 ) ) );
+                        pending++;
+                    }
+                }
+                else if ( ! result.folders.isEmpty() ) {
+                    verbose("Not descending into "+result.folders.size()+" folders, max. depth "+maxFolderDepth+" reached");
                 }
-                catch(RuntimeException e)
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while crawling folders",e);
+        }
+        catch (ExecutionException e)
+        {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( e.getCause() );
+        }
+        finally {
+            futures.forEach( f -> f.cancel( true ) );
+        }
+    }
+
+    private CrawledFolder crawlFolder(String fullName,int depth) throws IOException
+    {
+        final List<ListedJob> jobs = new ArrayList<>();
+        final JobListing listing = fetchJobListing( toJobPath( fullName ) , fullName+"/" , jobs::add );
+        return new CrawledFolder( depth , jobs , listing.folders );
+    }
+
+    /**
+     * Turns a full job name into the URL path of the job.
+     *
+     * @param fullName job name, nested jobs are separated by '/'
+     * @return
+     */
+    private static String toJobPath(String fullName)
+    {
+        final StringBuilder result = new StringBuilder();
+        for ( String segment : fullName.split("/") )
+        {
+            try {
+                result.append("/job/").append( URLEncoder.encode( segment , "UTF-8" ).replace("+","%20") );
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e); // never happens
+            }
+        }
+        return result.toString();
+    }
+
+    private boolean isCacheable(ResponseCache.Entry<?> entry) {
+        return entry.hasValidators() || cacheTtlMillis > 0;
+    }
+
+    /**
+     * Parses the <code>jobs</code> array of a job list, passing each job to the consumer
+     * as soon as it has been read.
+     *
+     * @param reader
+     * @param consumer
+     */
+    private static void parseJobList(Reader reader,Consumer<JSONObject> consumer)
+    {
+        final JSONTokener tokener = new JSONTokener( reader );
+        expect( tokener , '{' );
+        if ( tokener.nextClean() == '}' ) {
+            return;
+        }
+        tokener.back();
+        while ( true )
+        {
+            final Object key = tokener.nextValue();
+            expect( tokener , ':' );
+            if ( "jobs".equals( key ) )
+            {
+                expect( tokener , '[' );
+                char c = tokener.nextClean();
+                if ( c != ']' )
                 {
-                    System.err.println("Failed to parse status '"+jobColor+" for job '"+jobName+"'");
-                    throw e;
+                    tokener.back();
+                    do
+                    {
+                        final Object job = tokener.nextValue();
+                        if ( ! ( job instanceof JSONObject ) ) {
+                            throw tokener.syntaxError("Expected a JSON object");
+                        }
+                        consumer.accept( (JSONObject) job );
+                        c = tokener.nextClean();
+                        if ( c != ',' && c != ']' ) {
+                            throw tokener.syntaxError("Expected ',' or ']'");
+                        }
+                    } while ( c != ']' );
                 }
+            } else {
+                tokener.nextValue(); // skip
+            }
+            final char c = tokener.nextClean();
+            if ( c == '}' ) {
+                return;
+            }
+            if ( c != ',' ) {
+                throw tokener.syntaxError("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private static void expect(JSONTokener tokener,char expected)
+    {
+        if ( tokener.nextClean() != expected ) {
+            throw tokener.syntaxError("Expected '"+expected+"'");
+        }
+    }
+
+    /**
+     * Creates a job from its JSON representation.
+     *
+     * @param job
+     * @param jobName full job name
+     * @return job or <code>null</code> if the JSON is not describing a buildable job
+     */
+    private static Job toJob(JSONObject job,String jobName)
+    {
+        if( ! job.has("color") ) { // jobs of class 'org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject' do not have this attribute
+            return null;
+        }
+
+        final String jobColor = job.getString( "color" );
 
-                // don't ignore the failed jobs if they were aborted
-                if (jobstatus.isAborted() && wasFailedJob(job)) {
-                    jobstatus = JobStatus.FAILURE;
+        JobStatus jobstatus;
+        try {
+            jobstatus = JobStatus.fromString( jobColor );
+        }
+        catch(RuntimeException e)
+        {
+            System.err.println("Failed to parse status '"+jobColor+" for job '"+jobName+"'");
+            throw e;
+        }
+
+        // don't ignore the failed jobs if they were aborted
+        // (job list was requested with build numbers included, no need for another request)
+        if ( jobstatus.isAborted() && hasBuildNumbers( job ) && wasFailedJob( job ) ) {
+            jobstatus = JobStatus.FAILURE;
+        }
+        return new Job( jobName , jobstatus );
+    }
+
+    /**
+     * Marks aborted jobs as failed if their most recent completed build failed.
+     *
+     * <p>Lookups are done concurrently, using at most {@link #setLookupParallelism(int)} requests at the same time.</p>
+     *
+     * @param aborted
+     * @throws IOException
+     */
+    private void resolveAbortedJobs(List<Job> aborted) throws IOException
+    {
+        if ( aborted.isEmpty() ) {
+            return;
+        }
+        if ( aborted.size() == 1 || lookupParallelism == 1 )
+        {
+            for ( Job job : aborted ) {
+                if ( wasFailedJob( job.name ) ) {
+                    job.status = JobStatus.FAILURE;
                 }
+            }
+            return;
+        }
 
-                final Job toAdd = new Job( jobName , jobstatus );
-                if ( debug ) {
-                    debug( toAdd.toString() );
+        final ExecutorService executor = getLookupExecutor();
+        final List<Future<Boolean>> futures = new ArrayList<>( aborted.size() );
+        try
+        {
+            for ( Job job : aborted ) {
+                futures.add( executor.submit( () -> wasFailedJob( job.name ) ) );
+            }
+            for ( int i = 0 ; i < aborted.size() ; i++ )
+            {
+                if ( futures.get( i ).get() ) {
+                    aborted.get( i ).status = JobStatus.FAILURE;
                 }
-                result.add( toAdd );
             }
-            verbose("Got "+result.size()+" jobs");
-            return result;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while looking up job status",e);
+        }
+        catch (ExecutionException e)
+        {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException( e.getCause() );
+        }
+        finally {
+            futures.forEach( f -> f.cancel( true ) );
         }
     }
 
+    private synchronized ExecutorService getLookupExecutor()
+    {
+        if ( lookupExecutor == null )
+        {
+            final AtomicInteger threadId = new AtomicInteger();
+            lookupExecutor = Executors.newFixedThreadPool( lookupParallelism , r ->
+            {
+                final Thread t = new Thread( r , "jenkins-lookup-"+threadId.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            });
+        }
+        return lookupExecutor;
+    }
+
+    /**
+     * Fetches the last build numbers of a job and checks if the failed build is the most recent one
+     * compared to the successful build.
+     * @param jobName
+     * @return
+     */
+    private boolean wasFailedJob(String jobName) {
+        final String lastJob = doGetRequest(toJobPath( jobName ) + "/api/json/"+JOB_TREE_QUERY);
+        return wasFailedJob( new JSONObject(lastJob) );
+    }
+
+    private static boolean hasBuildNumbers(JSONObject job) {
+        return job.has("lastSuccessfulBuild") || job.has("lastFailedBuild");
+    }
+
     /**
      * Checks if the failed build is the most recent one compared to the successful build.
-     * @param job
+     *
+     * @param lastJobJSON job JSON including the <code>lastSuccessfulBuild</code> and <code>lastFailedBuild</code> attributes
      * @return
      */
-    private boolean wasFailedJob(JSONObject job) {
-        final String jobName = job.getString("name");
-        final String lastJob = doGetRequest("/job/" + jobName + "/api/json/");
-        final JSONObject lastJobJSON = new JSONObject(lastJob);
-        
+    private static boolean wasFailedJob(JSONObject lastJobJSON) {
+
         final JSONObject sucessfulBuild;
         if ( lastJobJSON.isNull("lastSuccessfulBuild") ) {
             sucessfulBuild = null;
@@ -258,29 +710,167 @@ public class JenkinsClient implements AutoCloseable
         return lastFailedBuildNumber >= lastSuccessfulBuildNumber;
     }
 
-    private String doGetRequest(String urlSuffix) {
-        String result = EMPTY;
-        try {
-            final URI uri = URI.create(scheme + "://" + host + ":" + port + urlSuffix);
+    /**
+     * Callback that processes a HTTP response body.
+     */
+    @FunctionalInterface
+    private interface ResponseHandler<T>
+    {
+        /**
+         * @param response response, for inspecting headers
+         * @param body
+         * @return
+         * @throws IOException
+         */
+        T handle(HttpResponse response,Reader body) throws IOException;
+    }
+
+    /**
+     * Executes a GET request and passes the response body to a handler
+     * without buffering it.
+     *
+     * @param urlSuffix
+     * @param cached cached response to revalidate or <code>null</code>
+     * @param handler
+     * @return the cached entry (marked as validated) if the server responded with '304 Not Modified',
+     * a new entry otherwise
+     * @throws IOException
+     */
+    private <T> ResponseCache.Entry<T> doGetRequest(String urlSuffix,ResponseCache.Entry<T> cached,ResponseHandler<T> handler) throws IOException
+    {
+        final Metrics metrics = Metrics.getDefault();
+        final String endpoint = toEndpoint( urlSuffix );
+        final long start = System.nanoTime();
+        HttpEntity entity = null;
+        try
+        {
+            final HttpResponse response = execute( urlSuffix , cached );
+            entity = response.getEntity();
+            final int status = response.getStatusLine().getStatusCode();
+            metrics.counter( Metrics.JENKINS_RESPONSES , "endpoint" , endpoint , "status" , Integer.toString( status ) ).increment();
+            if ( entity != null && entity.getContentLength() > 0 ) {
+                metrics.counter( Metrics.JENKINS_BYTES_RECEIVED , "endpoint" , endpoint ).add( entity.getContentLength() );
+            }
+            if ( status == HttpStatus.SC_NOT_MODIFIED && cached != null )
+            {
+                verbose("NOT MODIFIED: "+urlSuffix);
+                cached.validated();
+                return cached;
+            }
+            if ( status != HttpStatus.SC_OK ) {
+                throw new HttpResponseException( status , "Received " + response.getStatusLine() );
+            }
+            final Charset charset = ContentType.getOrDefault( entity ).getCharset();
+            final T value;
+            try ( Reader reader = new InputStreamReader( entity.getContent() , charset != null ? charset : StandardCharsets.UTF_8 ) ) {
+                value = handler.handle( response , reader );
+            }
+            return new ResponseCache.Entry<>( value , getHeader( response , HttpHeaders.ETAG ) , getHeader( response , HttpHeaders.LAST_MODIFIED ) );
+        }
+        catch(IOException e)
+        {
+            final String type = e instanceof HttpResponseException ? "http" : Metrics.errorType( e );
+            metrics.counter( Metrics.JENKINS_ERRORS , "endpoint" , endpoint , "type" , type ).increment();
+            throw e;
+        }
+        finally 
+        {
+            EntityUtils.consumeQuietly( entity );
+            metrics.histogram( Metrics.JENKINS_REQUEST_DURATION , "endpoint" , endpoint ).recordSince( start );
+        }
+    }
+
+    /**
+     * Maps an URL to the endpoint label used for metrics.
+     *
+     * <p>Job and folder names are replaced by '*' so the number of label values does not grow with the number of jobs.</p>
+     *
+     * @param urlSuffix
+     * @return e.g. <code>/job/&#42;/api/json</code> or <code>/api/json?tree=jobs</code> for job listings
+     */
+    static String toEndpoint(String urlSuffix)
+    {
+        final int query = urlSuffix.indexOf('?');
+        String path = JOB_PATH.matcher( query == -1 ? urlSuffix : urlSuffix.substring( 0 , query ) ).replaceAll( "/job/*" );
+        if ( path.length() > 1 && path.endsWith("/") ) {
+            path = path.substring( 0 , path.length() - 1 );
+        }
+        return urlSuffix.endsWith( JOBS_TREE_QUERY ) ? path + "?tree=jobs" : path;
+    }
 
-            verbose("URI: " + uri);
+    private static String getHeader(HttpResponse response,String name) {
+        final Header header = response.getFirstHeader( name );
+        return header != null ? header.getValue() : null;
+    }
 
-            final HttpGet httpGet = new HttpGet(uri);
+    private static String readFully(Reader reader) throws IOException
+    {
+        final StringBuilder result = new StringBuilder();
+        final char[] buffer = new char[4096];
+        int len;
+        while ( ( len = reader.read( buffer ) ) != -1 ) {
+            result.append( buffer , 0 , len );
+        }
+        return result.toString();
+    }
 
-            final HttpResponse response;
-            if (isAuthEnabled()) {
-                response = getClient().execute(getHost(), httpGet, clientContext);
-            } else {
-                response = getClient().execute(getHost(), httpGet);
+    private HttpResponse execute(String urlSuffix,ResponseCache.Entry<?> cached) throws IOException
+    {
+        final URI uri = URI.create(scheme + "://" + host + ":" + port + urlSuffix);
+
+        verbose("URI: " + uri);
+
+        final HttpGet httpGet = new HttpGet(uri);
+        if ( cached != null )
+        {
+            if ( cached.etag != null ) {
+                httpGet.addHeader( HttpHeaders.IF_NONE_MATCH , cached.etag );
             }
-            result = EntityUtils.toString(response.getEntity());
+            if ( cached.lastModified != null ) {
+                httpGet.addHeader( HttpHeaders.IF_MODIFIED_SINCE , cached.lastModified );
+            }
+        }
 
-            if (verbose) {
-                System.out.println("GOT: " + result);
+        try {
+            return execute( httpGet );
+        }
+        catch(NoHttpResponseException e)
+        {
+            // pooled connection was closed by the server, GET is idempotent so just try again
+            verbose("Retrying "+uri+" ("+e.getMessage()+")");
+            Metrics.getDefault().counter( Metrics.JENKINS_RETRIES , "endpoint" , toEndpoint( urlSuffix ) ).increment();
+            return execute( httpGet );
+        }
+    }
+
+    private HttpResponse execute(HttpGet httpGet) throws IOException
+    {
+        if (isAuthEnabled()) {
+            final CloseableHttpClient client = getClient();
+            // per-request context, auth state must not be shared between concurrent requests
+            return client.execute(getHost(), httpGet, new BasicHttpContext( clientContext ) );
+        }
+        return getClient().execute(getHost(), httpGet);
+    }
+
+    private String doGetRequest(String urlSuffix) {
+        String result = EMPTY;
+        try {
+            final ResponseCache.Entry<String> cached = documentCache.get( urlSuffix );
+            if ( cached != null && cached.isFresh( cacheTtlMillis ) ) {
+                verbose("CACHED: "+urlSuffix);
+                Metrics.getDefault().counter( Metrics.JENKINS_CACHE_HITS , "endpoint" , toEndpoint( urlSuffix ) ).increment();
+                return cached.value;
             }
 
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new IOException("Received " + response.getStatusLine());
+            final ResponseCache.Entry<String> entry = doGetRequest( urlSuffix , cached , (response,reader) -> readFully( reader ) );
+            result = entry.value;
+
+            if (verbose && entry != cached) {
+                System.out.println("GOT: " + result);
+            }
+            if ( isCacheable( entry ) ) {
+                documentCache.put( urlSuffix , entry );
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -288,8 +878,28 @@ public class JenkinsClient implements AutoCloseable
         return result;
     }
 
-    private HttpHost getHost() throws UnknownHostException {
-        return new HttpHost(InetAddress.getByName( this.host ), port , scheme);
+    private HttpHost getHost() throws UnknownHostException
+    {
+        final long now = System.currentTimeMillis();
+        final CachedHost cached = this.cachedHost;
+        if ( cached != null && now < cached.expiresAt ) {
+            return cached.host;
+        }
+        final HttpHost result = new HttpHost(InetAddress.getByName( this.host ), port , scheme);
+        this.cachedHost = new CachedHost( result , now + hostCacheTtlMillis );
+        return result;
+    }
+
+    private static final class CachedHost
+    {
+        public final HttpHost host;
+        public final long expiresAt;
+
+        public CachedHost(HttpHost host, long expiresAt)
+        {
+            this.host = host;
+            this.expiresAt = expiresAt;
+        }
     }
 
     private class PreemptiveAuthInterceptor implements HttpRequestInterceptor {
@@ -302,7 +912,8 @@ public class JenkinsClient implements AutoCloseable
                 final BasicCredentialsProvider credsProvider = new BasicCredentialsProvider();
                 credsProvider.setCredentials(new AuthScope(getHost()), new UsernamePasswordCredentials(username, password));
                 if (authScheme != null) {
-                    authState.setAuthScheme(authScheme);
+                    // BasicScheme encodes credentials using a non thread-safe codec, never share it between concurrent requests
+                    authState.setAuthScheme(new BasicScheme());
                     authState.setCredentials(new UsernamePasswordCredentials(username, password));
                 }
             }
@@ -310,32 +921,89 @@ public class JenkinsClient implements AutoCloseable
         }
     }
 
-    private CloseableHttpClient getClient() throws UnknownHostException
+    private synchronized CloseableHttpClient getClient() throws UnknownHostException
     {
         if ( httpClient != null ) {
             return httpClient;
         }
 
+        connectionManager = createConnectionManager();
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout( connectTimeoutMillis )
+                .setSocketTimeout( socketTimeoutMillis )
+                .setConnectionRequestTimeout( connectionRequestTimeoutMillis )
+                .setStaleConnectionCheckEnabled( false ) // we retry once on NoHttpResponseException instead
+                .build();
+        final HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager( connectionManager )
+                .setDefaultRequestConfig( requestConfig )
+                .setKeepAliveStrategy( (response,context) ->
+                {
+                    // honor server's Keep-Alive header, fall back to our default otherwise
+                    final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration( response , context );
+                    return duration > 0 ? Math.min( duration , keepAliveMillis ) : keepAliveMillis;
+                })
+                .disableAutomaticRetries()
+                .disableRedirectHandling()
+                .disableCookieManagement();
+
         if ( isAuthEnabled() )
         {
             verbose("Connecting to "+host+" (auth_enabled: true)");
-            httpClient = HttpClients.custom().addInterceptorFirst( new PreemptiveAuthInterceptor() ).build();
+            builder.addInterceptorFirst( new PreemptiveAuthInterceptor() );
             clientContext = new BasicHttpContext();
             clientContext.setAttribute("preemptive-auth",new BasicScheme());
         } else {
             verbose("Connecting to "+host);
-            httpClient = HttpClients.createMinimal();
         }
+        httpClient = builder.build();
         return httpClient;
     }
 
+    private PoolingHttpClientConnectionManager createConnectionManager()
+    {
+        final PoolingHttpClientConnectionManager result = new PoolingHttpClientConnectionManager();
+        // by default, one connection for the job list plus one per concurrent job lookup
+        final int perRoute = maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : lookupParallelism + 1;
+        result.setDefaultMaxPerRoute( perRoute );
+        result.setMaxTotal( Math.max( perRoute , maxConnectionsTotal ) );
+        result.setDefaultSocketConfig( SocketConfig.custom()
+                .setSoTimeout( socketTimeoutMillis )
+                .setTcpNoDelay( true )
+                .setSoKeepAlive( true )
+                .build() );
+        return result;
+    }
+
+    /**
+     * Closes pooled connections that have expired or have been idle
+     * for longer than the keep-alive time.
+     */
+    private void evictIdleConnections()
+    {
+        final PoolingHttpClientConnectionManager manager;
+        synchronized( this ) {
+            manager = connectionManager;
+        }
+        if ( manager != null ) {
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections( keepAliveMillis , TimeUnit.MILLISECONDS );
+        }
+    }
+
     private boolean isAuthEnabled() {
         return username != null;
     }
 
+    /**
+     * Fetches the job list, including just the attributes needed by {@link #getJobs()}.
+     *
+     * @return
+     * @throws IOException
+     */
     public InputStream scrape() throws IOException
     {
-        final String content = doGetRequest("/api/json");
+        final String content = doGetRequest("/api/json"+JOBS_TREE_QUERY);
         return new ByteArrayInputStream( content.getBytes() );
     }
 
@@ -380,12 +1048,220 @@ public class JenkinsClient implements AutoCloseable
     @Override
     public void close() throws Exception
     {
-        if ( httpClient != null )
+        final ExecutorService executor;
+        final CloseableHttpClient client;
+        synchronized( this )
         {
-            final CloseableHttpClient tmp = httpClient;
+            executor = lookupExecutor;
+            lookupExecutor = null;
+            client = httpClient;
             httpClient = null;
-            tmp.close();
+            connectionManager = null;
+        }
+        if ( executor != null ) {
+            executor.shutdownNow();
+        }
+        if ( client != null ) {
+            client.close();
+        }
+    }
+
+    /**
+     * Sets the max. number of concurrent requests used to look up
+     * the last build results of aborted jobs.
+     *
+     * <p>Must be called before the first request is made.</p>
+     *
+     * @param lookupParallelism
+     */
+    public void setLookupParallelism(int lookupParallelism)
+    {
+        if ( lookupParallelism < 1 ) {
+            throw new IllegalArgumentException("Lookup parallelism must be >= 1");
         }
+        this.lookupParallelism = lookupParallelism;
+    }
+
+    public int getLookupParallelism()
+    {
+        return lookupParallelism;
+    }
+
+    /**
+     * Sets how deep folders/multibranch projects are traversed.
+     *
+     * @param maxFolderDepth max. depth, 0 to only return top-level jobs
+     */
+    public void setMaxFolderDepth(int maxFolderDepth)
+    {
+        this.maxFolderDepth = requireNonNegative( maxFolderDepth , "Max. folder depth" );
+    }
+
+    public int getMaxFolderDepth()
+    {
+        return maxFolderDepth;
+    }
+
+    /**
+     * Sets the max. time to wait for a connection to the Jenkins server to be established.
+     *
+     * <p>Must be called before the first request is made.</p>
+     *
+     * @param connectTimeoutMillis timeout, 0 means no timeout
+     */
+    public void setConnectTimeoutMillis(int connectTimeoutMillis)
+    {
+        this.connectTimeoutMillis = requireNonNegative( connectTimeoutMillis , "Connect timeout" );
+    }
+
+    public int getConnectTimeoutMillis()
+    {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Sets the max. time to wait for data from the Jenkins server.
+     *
+     * <p>Must be called before the first request is made.</p>
+     *
+     * @param socketTimeoutMillis timeout, 0 means no timeout
+     */
+    public void setSocketTimeoutMillis(int socketTimeoutMillis)
+    {
+        this.socketTimeoutMillis = requireNonNegative( socketTimeoutMillis , "Socket timeout" );
+    }
+
+    public int getSocketTimeoutMillis()
+    {
+        return socketTimeoutMillis;
+    }
+
+    /**
+     * Sets the max. time to wait for a connection from the connection pool.
+     *
+     * <p>Must be called before the first request is made.</p>
+     *
+     * @param connectionRequestTimeoutMillis timeout, 0 means no timeout
+     */
+    public void setConnectionRequestTimeoutMillis(int connectionRequestTimeoutMillis)
+    {
+        this.connectionRequestTimeoutMillis = requireNonNegative( connectionRequestTimeoutMillis , "Connection request timeout" );
+    }
+
+    public int getConnectionRequestTimeoutMillis()
+    {
+        return connectionRequestTimeoutMillis;
+    }
+
+    /**
+     * Sets the max. time an idle connection is kept open for reuse.
+     *
+     * <p>If the server sends a shorter <code>Keep-Alive</code> timeout, the server's value is used.</p>
+     *
+     * @param keepAliveMillis
+     */
+    public void setKeepAliveMillis(long keepAliveMillis)
+    {
+        if ( keepAliveMillis < 0 ) {
+            throw new IllegalArgumentException("Keep-alive time must be >= 0");
+        }
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public long getKeepAliveMillis()
+    {
+        return keepAliveMillis;
+    }
+
+    /**
+     * Sets the max. number of connections to the Jenkins server.
+     *
+     * <p>Must be called before the first request is made.</p>
+     *
+     * @param maxConnections max. number of connections, &lt;= 0 to use {@link #getLookupParallelism() lookup parallelism} + 1
+     */
+    public void setMaxConnections(int maxConnections)
+    {
+        this.maxConnectionsPerRoute = maxConnections;
+        this.maxConnectionsTotal = maxConnections;
+    }
+
+    public int getMaxConnections()
+    {
+        return maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : lookupParallelism + 1;
+    }
+
+    /**
+     * Sets the time during which the resolved IP address of the Jenkins server is reused.
+     *
+     * @param hostCacheTtlMillis
+     */
+    public void setHostCacheTtlMillis(long hostCacheTtlMillis)
+    {
+        if ( hostCacheTtlMillis < 0 ) {
+            throw new IllegalArgumentException("Host cache TTL must be >= 0");
+        }
+        this.hostCacheTtlMillis = hostCacheTtlMillis;
+        this.cachedHost = null;
+    }
+
+    public long getHostCacheTtlMillis()
+    {
+        return hostCacheTtlMillis;
+    }
+
+    private static int requireNonNegative(int value,String what)
+    {
+        if ( value < 0 ) {
+            throw new IllegalArgumentException(what+" must be >= 0");
+        }
+        return value;
+    }
+
+    /**
+     * Sets the time during which cached responses are used without asking the server.
+     *
+     * <p>After the TTL expired (or always, if the TTL is 0), cached responses are revalidated using
+     * conditional requests (if the server supplied an <code>ETag</code> or <code>Last-Modified</code> header).</p>
+     *
+     * @param cacheTtlMillis
+     */
+    public void setCacheTtlMillis(long cacheTtlMillis)
+    {
+        if ( cacheTtlMillis < 0 ) {
+            throw new IllegalArgumentException("Cache TTL must be >= 0");
+        }
+        this.cacheTtlMillis = cacheTtlMillis;
+    }
+
+    public long getCacheTtlMillis()
+    {
+        return cacheTtlMillis;
+    }
+
+    /**
+     * Sets the max. number of responses to cache.
+     *
+     * @param cacheSize max. number of cached responses, 0 disables caching
+     */
+    public void setCacheSize(int cacheSize)
+    {
+        documentCache.setMaxEntries( cacheSize );
+        jobListCache.setMaxEntries( cacheSize );
+    }
+
+    public int getCacheSize()
+    {
+        return documentCache.getMaxEntries();
+    }
+
+    /**
+     * Discards all cached responses.
+     */
+    public void clearCache()
+    {
+        documentCache.clear();
+        jobListCache.clear();
     }
 
     public void setScheme(String scheme)
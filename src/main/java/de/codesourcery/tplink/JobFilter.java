@@ -0,0 +1,555 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * An ordered list of include/exclude rules, compiled into a single matcher.
+ *
+ * <p>Rules are evaluated in order and the first matching rule decides whether a job is
+ * included or excluded, jobs not matched by any rule are included. All matching is case-insensitive.</p>
+ *
+ * <p>Exact names and globs that are a literal followed by <code>*</code> or <code>**</code> are stored in
+ * a prefix trie, all other globs and regular expressions are combined into one alternation so that
+ * matching a job name needs at most one trie walk and one regex match and does not allocate.</p>
+ *
+ * <p>Rule syntax (one rule per line in rule files, empty lines and lines starting with '#' are ignored):</p>
+ * <pre>
+ * include|exclude [name:|glob:|regex:]pattern
+ * </pre>
+ * <p>Patterns without a prefix are globs. In globs, <code>*</code> matches any characters except '/',
+ * <code>**</code> matches any characters including '/', <code>?</code> matches a single character except '/',
+ * and <code>[abc]</code>, <code>[!abc]</code> and <code>{a,b}</code> work as in shell globs.</p>
+ *
+ * <p>Instances are thread-safe.</p>
+ *
+ * @author tobias.gierke@voipfuture.com
+ */
+public final class JobFilter
+{
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private static final int REGEX_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+
+    // regexes that can not be wrapped in a group of a larger pattern (back-references, named groups)
+    private static final Pattern NOT_COMBINABLE = Pattern.compile("\\\\(?:[1-9]|k<)|\\(\\?<[a-zA-Z]");
+
+    public enum Action
+    {
+        INCLUDE,EXCLUDE;
+    }
+
+    public enum Syntax
+    {
+        /** Exact job name. */
+        NAME,
+        /** Shell-style glob. */
+        GLOB,
+        /** Regular expression that needs to match the whole job name. */
+        REGEX;
+    }
+
+    /**
+     * A single filter rule.
+     *
+     * @author tobias.gierke@voipfuture.com
+     */
+    public static final class Rule
+    {
+        public final Action action;
+        public final Syntax syntax;
+        public final String pattern;
+        // where this rule came from (file name and line etc.), may be NULL
+        public final String source;
+
+        public Rule(Action action, Syntax syntax, String pattern, String source)
+        {
+            if ( action == null || syntax == null ) {
+                throw new IllegalArgumentException("Action and syntax must not be NULL");
+            }
+            if ( pattern == null || pattern.isEmpty() ) {
+                throw new IllegalArgumentException("Pattern must not be NULL or empty"+( source == null ? "" : " ("+source+")" ) );
+            }
+            this.action = action;
+            this.syntax = syntax;
+            this.pattern = pattern;
+            this.source = source;
+        }
+
+        /**
+         * Parses a rule.
+         *
+         * @param line rule in the form <code>include|exclude [name:|glob:|regex:]pattern</code>
+         * @param source where the rule came from, used in error messages. May be NULL
+         * @return
+         * @throws IllegalArgumentException if the rule is malformed
+         */
+        public static Rule parse(String line,String source)
+        {
+            final String trimmed = line.trim();
+            final String[] parts = trimmed.split("\\s+",2);
+            if ( parts.length != 2 ) {
+                throw new IllegalArgumentException("Malformed filter rule '"+trimmed+"'"+( source == null ? "" : " ("+source+")" ) );
+            }
+            final Action action;
+            switch( parts[0].toLowerCase() )
+            {
+                case "include": action = Action.INCLUDE; break;
+                case "exclude": action = Action.EXCLUDE; break;
+                default:
+                    throw new IllegalArgumentException("Filter rule must start with 'include' or 'exclude': '"+trimmed+"'"+( source == null ? "" : " ("+source+")" ) );
+            }
+            String pattern = parts[1];
+            Syntax syntax = Syntax.GLOB;
+            for ( Syntax s : Syntax.values() )
+            {
+                final String prefix = s.name().toLowerCase()+":";
+                if ( pattern.startsWith( prefix ) )
+                {
+                    syntax = s;
+                    pattern = pattern.substring( prefix.length() );
+                    break;
+                }
+            }
+            return new Rule( action , syntax , pattern , source );
+        }
+
+        @Override
+        public String toString()
+        {
+            return action.name().toLowerCase()+" "+syntax.name().toLowerCase()+":"+pattern+( source == null ? "" : " ("+source+")" );
+        }
+    }
+
+    /**
+     * Node of the prefix trie, keys are lower-case characters.
+     */
+    private static final class Node
+    {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+
+        // index of the first rule matching names ending at this node
+        public int exactRule = NO_MATCH;
+        // index of the first rule matching all names starting with this prefix
+        public int prefixRule = NO_MATCH;
+        // index of the first rule matching all names starting with this prefix and not containing a '/' after it
+        public int segmentRule = NO_MATCH;
+
+        public Node child(char c)
+        {
+            final int idx = Arrays.binarySearch( keys , c );
+            return idx >= 0 ? children[idx] : null;
+        }
+
+        public Node getOrCreateChild(char c)
+        {
+            int idx = Arrays.binarySearch( keys , c );
+            if ( idx >= 0 ) {
+                return children[idx];
+            }
+            idx = -(idx+1);
+            final char[] newKeys = new char[ keys.length + 1 ];
+            final Node[] newChildren = new Node[ children.length + 1 ];
+            System.arraycopy( keys , 0 , newKeys , 0 , idx );
+            System.arraycopy( children , 0 , newChildren , 0 , idx );
+            System.arraycopy( keys , idx , newKeys , idx + 1 , keys.length - idx );
+            System.arraycopy( children , idx , newChildren , idx + 1 , children.length - idx );
+            newKeys[idx] = c;
+            newChildren[idx] = new Node();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[idx];
+        }
+    }
+
+    private final Rule[] rules;
+    private final Node trie = new Node();
+
+    // all combinable regexes as one alternation, NULL if there are none
+    private final Pattern combined;
+    // rule index for each alternative of the combined pattern
+    private final int[] combinedRules;
+    // capturing group for each alternative of the combined pattern
+    private final int[] combinedGroups;
+    private final ThreadLocal<Matcher> combinedMatcher;
+
+    private final Pattern[] separate;
+    private final int[] separateRules;
+    private final ThreadLocal<Matcher[]> separateMatchers;
+
+    // index of the first rule that is evaluated using a regex
+    private final int firstRegexRule;
+
+    private JobFilter(List<Rule> rules)
+    {
+        this.rules = rules.toArray( new Rule[ rules.size() ] );
+
+        final StringBuilder alternation = new StringBuilder();
+        final List<int[]> combinedList = new ArrayList<>();
+        final List<Pattern> separateList = new ArrayList<>();
+        final List<Integer> separateRuleList = new ArrayList<>();
+        int group = 1;
+        int firstRegex = NO_MATCH;
+        for ( int i = 0 ; i < this.rules.length ; i++ )
+        {
+            final Rule rule = this.rules[i];
+            final String regex;
+            if ( rule.syntax == Syntax.NAME ) {
+                addToTrie( rule.pattern , i , MatchType.EXACT );
+                continue;
+            }
+            if ( rule.syntax == Syntax.GLOB )
+            {
+                if ( addGlobToTrie( rule.pattern , i ) ) {
+                    continue;
+                }
+                regex = globToRegex( rule );
+            } else {
+                regex = rule.pattern;
+            }
+
+            final Pattern pattern;
+            try {
+                pattern = Pattern.compile( regex , REGEX_FLAGS );
+            } catch(PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid pattern in filter rule '"+rule+"': "+e.getDescription(),e);
+            }
+            firstRegex = Math.min( firstRegex , i );
+            if ( NOT_COMBINABLE.matcher( regex ).find() )
+            {
+                separateList.add( pattern );
+                separateRuleList.add( i );
+                continue;
+            }
+            if ( alternation.length() > 0 ) {
+                alternation.append('|');
+            }
+            alternation.append('(').append( regex ).append(')');
+            combinedList.add( new int[] { i , group } );
+            group += 1 + pattern.matcher("").groupCount();
+        }
+
+        this.firstRegexRule = firstRegex;
+        this.combined = combinedList.isEmpty() ? null : Pattern.compile( alternation.toString() , REGEX_FLAGS );
+        this.combinedRules = combinedList.stream().mapToInt( x -> x[0] ).toArray();
+        this.combinedGroups = combinedList.stream().mapToInt( x -> x[1] ).toArray();
+        this.combinedMatcher = combined == null ? null : ThreadLocal.withInitial( () -> combined.matcher("") );
+
+        this.separate = separateList.toArray( new Pattern[ separateList.size() ] );
+        this.separateRules = separateRuleList.stream().mapToInt( Integer::intValue ).toArray();
+        this.separateMatchers = ThreadLocal.withInitial( () ->
+        {
+            final Matcher[] result = new Matcher[ separate.length ];
+            for ( int i = 0 ; i < result.length ; i++ ) {
+                result[i] = separate[i].matcher("");
+            }
+            return result;
+        });
+    }
+
+    private enum MatchType
+    {
+        EXACT,PREFIX,SEGMENT_PREFIX;
+    }
+
+    /**
+     * Compiles a list of rules.
+     *
+     * @param rules rules in evaluation order
+     * @return
+     * @throws IllegalArgumentException if a rule has an invalid pattern
+     */
+    public static JobFilter compile(List<Rule> rules)
+    {
+        return new JobFilter( rules );
+    }
+
+    /**
+     * Reads rules from a file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException if the file contains a malformed rule
+     */
+    public static List<Rule> readRules(Path file) throws IOException
+    {
+        final List<Rule> result = new ArrayList<>();
+        final List<String> lines = Files.readAllLines( file , StandardCharsets.UTF_8 );
+        for ( int i = 0 ; i < lines.size() ; i++ )
+        {
+            final String trimmed = lines.get(i).trim();
+            if ( ! trimmed.isEmpty() && ! trimmed.startsWith("#") ) {
+                result.add( Rule.parse( trimmed , file+":"+(i+1) ) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the first rule matching a job name.
+     *
+     * @param jobName
+     * @return rule or <code>null</code> if no rule matched
+     */
+    public Rule match(CharSequence jobName)
+    {
+        int result = matchTrie( jobName );
+        if ( firstRegexRule < result ) {
+            result = matchRegex( jobName , result );
+        }
+        return result == NO_MATCH ? null : rules[result];
+    }
+
+    /**
+     * Checks whether a job is excluded by this filter.
+     *
+     * @param jobName
+     * @return
+     */
+    public boolean isExcluded(CharSequence jobName)
+    {
+        final Rule rule = match( jobName );
+        return rule != null && rule.action == Action.EXCLUDE;
+    }
+
+    public List<Rule> getRules()
+    {
+        return Collections.unmodifiableList( Arrays.asList( rules ) );
+    }
+
+    private int matchTrie(CharSequence name)
+    {
+        final int len = name.length();
+        int result = NO_MATCH;
+        Node node = trie;
+        for ( int i = 0 ; ; i++ )
+        {
+            result = Math.min( result , node.prefixRule );
+            if ( node.segmentRule < result && ! containsSlash( name , i ) ) {
+                result = node.segmentRule;
+            }
+            if ( i == len ) {
+                return Math.min( result , node.exactRule );
+            }
+            node = node.child( Character.toLowerCase( name.charAt( i ) ) );
+            if ( node == null ) {
+                return result;
+            }
+        }
+    }
+
+    private static boolean containsSlash(CharSequence name,int start)
+    {
+        for ( int i = start , len = name.length() ; i < len ; i++ ) {
+            if ( name.charAt( i ) == '/' ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int matchRegex(CharSequence name,int bestSoFar)
+    {
+        int result = bestSoFar;
+        if ( combined != null )
+        {
+            final Matcher m = combinedMatcher.get().reset( name );
+            if ( m.matches() )
+            {
+                // alternatives are tried in order, so the first participating group belongs to the first matching rule
+                for ( int i = 0 ; i < combinedRules.length && combinedRules[i] < result ; i++ )
+                {
+                    if ( m.start( combinedGroups[i] ) != -1 ) {
+                        result = combinedRules[i];
+                        break;
+                    }
+                }
+            }
+            m.reset("");
+        }
+        if ( separate.length > 0 )
+        {
+            final Matcher[] matchers = separateMatchers.get();
+            for ( int i = 0 ; i < separateRules.length && separateRules[i] < result ; i++ )
+            {
+                final boolean matches = matchers[i].reset( name ).matches();
+                matchers[i].reset("");
+                if ( matches ) {
+                    result = separateRules[i];
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addToTrie(String literal,int ruleIndex,MatchType type)
+    {
+        Node node = trie;
+        for ( int i = 0 , len = literal.length() ; i < len ; i++ ) {
+            node = node.getOrCreateChild( Character.toLowerCase( literal.charAt( i ) ) );
+        }
+        switch( type )
+        {
+            case EXACT:          node.exactRule = Math.min( node.exactRule , ruleIndex ); break;
+            case PREFIX:         node.prefixRule = Math.min( node.prefixRule , ruleIndex ); break;
+            case SEGMENT_PREFIX: node.segmentRule = Math.min( node.segmentRule , ruleIndex ); break;
+            default:
+                throw new RuntimeException("Unhandled switch/case: "+type);
+        }
+    }
+
+    /**
+     * Adds a glob to the trie if it is a literal, optionally followed by <code>*</code> or <code>**</code>.
+     *
+     * @param glob
+     * @param ruleIndex
+     * @return <code>false</code> if the glob needs to be matched using a regex
+     */
+    private boolean addGlobToTrie(String glob,int ruleIndex)
+    {
+        final StringBuilder literal = new StringBuilder();
+        int i = 0;
+        final int len = glob.length();
+        for ( ; i < len ; i++ )
+        {
+            final char c = glob.charAt( i );
+            if ( c == '\\' && i + 1 < len ) {
+                literal.append( glob.charAt( ++i ) );
+            } else if ( c == '*' || c == '?' || c == '[' || c == '{' ) {
+                break;
+            } else {
+                literal.append( c );
+            }
+        }
+        final String remainder = glob.substring( i );
+        switch( remainder )
+        {
+            case "":   addToTrie( literal.toString() , ruleIndex , MatchType.EXACT ); return true;
+            case "*":  addToTrie( literal.toString() , ruleIndex , MatchType.SEGMENT_PREFIX ); return true;
+            case "**": addToTrie( literal.toString() , ruleIndex , MatchType.PREFIX ); return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String globToRegex(Rule rule)
+    {
+        final String glob = rule.pattern;
+        final StringBuilder result = new StringBuilder();
+        boolean inGroup = false;
+        final int len = glob.length();
+        for ( int i = 0 ; i < len ; i++ )
+        {
+            final char c = glob.charAt( i );
+            switch( c )
+            {
+                case '\\':
+                    appendLiteral( i + 1 < len ? glob.charAt( ++i ) : c , result );
+                    break;
+                case '*':
+                    if ( i + 1 < len && glob.charAt( i + 1 ) == '*' ) {
+                        result.append(".*");
+                        i++;
+                    } else {
+                        result.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    result.append("[^/]");
+                    break;
+                case '[':
+                    final int end = glob.indexOf( ']' , i + 2 );
+                    if ( end == -1 ) {
+                        appendLiteral( c , result );
+                        break;
+                    }
+                    result.append('[');
+                    int j = i + 1;
+                    if ( glob.charAt( j ) == '!' ) {
+                        result.append('^');
+                        j++;
+                    }
+                    for ( ; j < end ; j++ )
+                    {
+                        final char x = glob.charAt( j );
+                        if ( x == '[' || x == '\\' || x == '&' || x == '^' ) {
+                            result.append('\\');
+                        }
+                        result.append( x );
+                    }
+                    result.append(']');
+                    i = end;
+                    break;
+                case '{':
+                    if ( inGroup ) {
+                        throw new IllegalArgumentException("Nested '{' in filter rule '"+rule+"'");
+                    }
+                    result.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    if ( inGroup ) {
+                        result.append(')');
+                        inGroup = false;
+                    } else {
+                        appendLiteral( c , result );
+                    }
+                    break;
+                case ',':
+                    if ( inGroup ) {
+                        result.append('|');
+                    } else {
+                        appendLiteral( c , result );
+                    }
+                    break;
+                default:
+                    appendLiteral( c , result );
+            }
+        }
+        if ( inGroup ) {
+            throw new IllegalArgumentException("Unterminated '{' in filter rule '"+rule+"'");
+        }
+        return result.toString();
+    }
+
+    private static void appendLiteral(char c,StringBuilder buffer)
+    {
+        if ( "\\^$.|?*+()[]{}".indexOf( c ) != -1 ) {
+            buffer.append('\\');
+        }
+        buffer.append( c );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JobFilter" + Arrays.toString( rules );
+    }
+}
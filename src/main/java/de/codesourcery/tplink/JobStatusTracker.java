@@ -0,0 +1,278 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.codesourcery.tplink.JenkinsClient.Job;
+import de.codesourcery.tplink.JenkinsClient.JobStatus;
+
+/**
+ * Keeps track of the last known status of Jenkins jobs and reports changes
+ * between subsequent polls.
+ *
+ * <p>The number of failed jobs is maintained incrementally, so deciding whether
+ * any job failed does not require scanning all jobs.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * @author tobias.gierke@voipfuture.com
+ */
+public class JobStatusTracker
+{
+    private final Map<String,Entry> jobs = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private int generation;
+    private int failureCount;
+
+    private static final class Entry
+    {
+        public JobStatus status;
+        public int generation;
+
+        public Entry(JobStatus status, int generation)
+        {
+            this.status = status;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Type of change.
+     */
+    public static enum ChangeType
+    {
+        ADDED,
+        REMOVED,
+        STATUS_CHANGED
+    }
+
+    /**
+     * A change of a job.
+     *
+     * @author tobias.gierke@voipfuture.com
+     */
+    public static final class ChangeEvent
+    {
+        public final ChangeType type;
+        public final String jobName;
+        /**
+         * Previous status, <code>null</code> for {@link ChangeType#ADDED}.
+         */
+        public final JobStatus oldStatus;
+        /**
+         * New status, <code>null</code> for {@link ChangeType#REMOVED}.
+         */
+        public final JobStatus newStatus;
+
+        public ChangeEvent(ChangeType type, String jobName, JobStatus oldStatus, JobStatus newStatus)
+        {
+            this.type = type;
+            this.jobName = jobName;
+            this.oldStatus = oldStatus;
+            this.newStatus = newStatus;
+        }
+
+        /**
+         * Returns whether this change affects the number of failed jobs.
+         *
+         * @return
+         */
+        public boolean isFailureTransition() {
+            return isFailure( oldStatus ) != isFailure( newStatus );
+        }
+
+        @Override
+        public String toString()
+        {
+            switch( type )
+            {
+                case ADDED:   return "Job '"+jobName+"' added ("+newStatus+")";
+                case REMOVED: return "Job '"+jobName+"' removed (was "+oldStatus+")";
+                default:
+                    return "Job '"+jobName+"' changed "+oldStatus+" -> "+newStatus;
+            }
+        }
+    }
+
+    /**
+     * Gets notified about job changes.
+     *
+     * @author tobias.gierke@voipfuture.com
+     */
+    @FunctionalInterface
+    public interface Listener
+    {
+        void jobChanged(ChangeEvent event);
+    }
+
+    private static boolean isFailure(JobStatus status) {
+        return status != null && status.isFailure();
+    }
+
+    /**
+     * Updates the tracked state with the result of a poll.
+     *
+     * <p>Listeners are notified about each change.</p>
+     *
+     * @param currentJobs all jobs that are currently known to the Jenkins server
+     * @return the changes since the last update, in no particular order
+     */
+    public List<ChangeEvent> update(Collection<Job> currentJobs)
+    {
+        final int gen = ++generation;
+        final List<ChangeEvent> changes = new ArrayList<>();
+        int seen = 0;
+        for ( Job job : currentJobs )
+        {
+            final Entry existing = jobs.get( job.name );
+            if ( existing == null )
+            {
+                jobs.put( job.name , new Entry( job.status , gen ) );
+                changes.add( new ChangeEvent( ChangeType.ADDED , job.name , null , job.status ) );
+                seen++;
+                continue;
+            }
+            if ( existing.generation != gen ) {
+                existing.generation = gen;
+                seen++;
+            }
+            if ( existing.status != job.status )
+            {
+                changes.add( new ChangeEvent( ChangeType.STATUS_CHANGED , job.name , existing.status , job.status ) );
+                existing.status = job.status;
+            }
+        }
+        if ( jobs.size() > seen ) // some jobs have disappeared
+        {
+            for ( Iterator<Map.Entry<String,Entry>> it = jobs.entrySet().iterator() ; it.hasNext() ; )
+            {
+                final Map.Entry<String,Entry> entry = it.next();
+                if ( entry.getValue().generation != gen )
+                {
+                    changes.add( new ChangeEvent( ChangeType.REMOVED , entry.getKey() , entry.getValue().status , null ) );
+                    it.remove();
+                }
+            }
+        }
+
+        for ( ChangeEvent change : changes )
+        {
+            if ( change.isFailureTransition() ) {
+                failureCount += isFailure( change.newStatus ) ? 1 : -1;
+            }
+        }
+        // notify only after the state is consistent, a misbehaving listener must not corrupt the failure count
+        changes.forEach( this::notifyListeners );
+        return changes;
+    }
+
+    private void notifyListeners(ChangeEvent event)
+    {
+        for ( Listener l : listeners )
+        {
+            try {
+                l.jobChanged( event );
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns whether at least one tracked job is in a failed state.
+     *
+     * @return
+     */
+    public boolean hasFailures() {
+        return failureCount > 0;
+    }
+
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Returns the number of tracked jobs.
+     *
+     * @return
+     */
+    public int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Returns the last known status of a job.
+     *
+     * @param jobName
+     * @return status or <code>null</code> if the job is unknown
+     */
+    public JobStatus getStatus(String jobName)
+    {
+        final Entry entry = jobs.get( jobName );
+        return entry != null ? entry.status : null;
+    }
+
+    /**
+     * Returns the names of all jobs that are currently in a failed state.
+     *
+     * @return
+     */
+    public List<String> getFailedJobs()
+    {
+        if ( failureCount == 0 ) {
+            return Collections.emptyList();
+        }
+        final List<String> result = new ArrayList<>( failureCount );
+        jobs.forEach( (name,entry) ->
+        {
+            if ( entry.status.isFailure() ) {
+                result.add( name );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Forgets all tracked jobs (without notifying listeners).
+     */
+    public void clear()
+    {
+        jobs.clear();
+        failureCount = 0;
+    }
+
+    public void addListener(Listener listener)
+    {
+        if ( listener == null ) {
+            throw new IllegalArgumentException("Listener must not be NULL");
+        }
+        listeners.add( listener );
+    }
+
+    public void removeListener(Listener listener)
+    {
+        listeners.remove( listener );
+    }
+}
@@ -0,0 +1,437 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal pull parser that reads UTF-8 encoded JSON directly from a byte array.
+ *
+ * <p>Field names can be compared and numbers parsed without creating any objects,
+ * strings are only decoded when {@link #getString()} is called. Values that are not needed
+ * can be skipped using {@link #skipValue()}.</p>
+ *
+ * <p>The parser is lenient and does not validate the structure of its input beyond
+ * matching brackets. Instances are not thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class JsonPullParser
+{
+    public enum Token
+    {
+        START_OBJECT,END_OBJECT,START_ARRAY,END_ARRAY,FIELD_NAME,STRING,NUMBER,TRUE,FALSE,NULL,END;
+    }
+
+    private final byte[] data;
+    private final int start;
+    private final int end;
+
+    private int pos;
+    private int depth;
+    private Token current;
+
+    // FIELD_NAME/STRING: raw bytes between the quotes, NUMBER: the number's characters
+    private int tokenStart;
+    private int tokenEnd;
+    // whether the current string contains escape sequences
+    private boolean escaped;
+
+    /**
+     * Create instance.
+     *
+     * @param data UTF-8 encoded JSON, must not be modified while parsing
+     * @param offset
+     * @param length
+     */
+    public JsonPullParser(byte[] data,int offset,int length)
+    {
+        this.data = data;
+        this.start = offset;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Advances to the next token.
+     *
+     * @return
+     * @throws IOException if the input is malformed
+     */
+    public Token next() throws IOException
+    {
+        while ( pos < end )
+        {
+            final byte b = data[pos];
+            if ( b == ' ' || b == ',' || b == '\n' || b == '\r' || b == '\t' ) {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if ( pos >= end )
+        {
+            if ( depth != 0 ) {
+                throw error("Unexpected end of input");
+            }
+            return current = Token.END;
+        }
+        final byte b = data[pos];
+        switch( b )
+        {
+            case '{':
+                pos++;
+                depth++;
+                return current = Token.START_OBJECT;
+            case '[':
+                pos++;
+                depth++;
+                return current = Token.START_ARRAY;
+            case '}':
+            case ']':
+                if ( depth == 0 ) {
+                    throw error("Unbalanced '"+(char) b+"'");
+                }
+                pos++;
+                depth--;
+                return current = ( b == '}' ? Token.END_OBJECT : Token.END_ARRAY );
+            case '"':
+                readString();
+                while ( pos < end && ( data[pos] == ' ' || data[pos] == '\n' || data[pos] == '\r' || data[pos] == '\t' ) ) {
+                    pos++;
+                }
+                if ( pos < end && data[pos] == ':' )
+                {
+                    pos++;
+                    return current = Token.FIELD_NAME;
+                }
+                return current = Token.STRING;
+            case 't':
+                return current = literal( "true" , Token.TRUE );
+            case 'f':
+                return current = literal( "false" , Token.FALSE );
+            case 'n':
+                return current = literal( "null" , Token.NULL );
+            default:
+                if ( b == '-' || ( b >= '0' && b <= '9' ) )
+                {
+                    tokenStart = pos;
+                    while ( pos < end && isNumberChar( data[pos] ) ) {
+                        pos++;
+                    }
+                    tokenEnd = pos;
+                    return current = Token.NUMBER;
+                }
+                throw error("Unexpected character '"+(char) b+"'");
+        }
+    }
+
+    private static boolean isNumberChar(byte b) {
+        return ( b >= '0' && b <= '9' ) || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    private Token literal(String expected,Token token) throws IOException
+    {
+        if ( pos + expected.length() > end ) {
+            throw error("Unexpected end of input");
+        }
+        for ( int i = 0 ; i < expected.length() ; i++ ) {
+            if ( data[pos+i] != expected.charAt( i ) ) {
+                throw error("Expected '"+expected+"'");
+            }
+        }
+        pos += expected.length();
+        return token;
+    }
+
+    private void readString() throws IOException
+    {
+        pos++;
+        tokenStart = pos;
+        escaped = false;
+        while ( pos < end )
+        {
+            final byte b = data[pos];
+            if ( b == '\\' )
+            {
+                escaped = true;
+                if ( pos + 1 < end && data[ pos + 1 ] == 'u' )
+                {
+                    // validate here so getString() can't fail
+                    if ( pos + 6 > end ) {
+                        throw error("Truncated unicode escape");
+                    }
+                    for ( int i = pos + 2 ; i < pos + 6 ; i++ )
+                    {
+                        if ( Character.digit( (char) ( data[i] & 0xff ) , 16 ) < 0 ) {
+                            throw error("Invalid unicode escape");
+                        }
+                    }
+                    pos += 6;
+                } else {
+                    pos += 2;
+                }
+            }
+            else if ( b == '"' )
+            {
+                tokenEnd = pos++;
+                return;
+            } else {
+                pos++;
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    /**
+     * Advances to the next token and checks its type.
+     *
+     * @param expected
+     * @throws IOException if the next token has a different type
+     */
+    public void expect(Token expected) throws IOException
+    {
+        if ( next() != expected ) {
+            throw error("Expected "+expected+" but got "+current);
+        }
+    }
+
+    /**
+     * Advances to the next field of the current object.
+     *
+     * @return <code>true</code> if positioned at a field name, <code>false</code> if the end of the object has been reached
+     * @throws IOException
+     */
+    public boolean nextField() throws IOException
+    {
+        final Token token = next();
+        if ( token == Token.FIELD_NAME ) {
+            return true;
+        }
+        if ( token == Token.END_OBJECT ) {
+            return false;
+        }
+        throw error("Expected field name but got "+token);
+    }
+
+    /**
+     * Skips the next value, including all of its children.
+     *
+     * @throws IOException
+     */
+    public void skipValue() throws IOException
+    {
+        next();
+        skipChildren();
+    }
+
+    /**
+     * If positioned at the start of an object or array, skips to its end.
+     *
+     * @throws IOException
+     */
+    public void skipChildren() throws IOException
+    {
+        if ( current == Token.START_OBJECT || current == Token.START_ARRAY )
+        {
+            final int target = depth - 1;
+            while ( depth > target ) {
+                next();
+            }
+        }
+    }
+
+    public Token current() {
+        return current;
+    }
+
+    /**
+     * Checks whether the current field name (or string) equals a given string.
+     *
+     * @param name
+     * @return
+     */
+    public boolean isFieldName(String name)
+    {
+        if ( current != Token.FIELD_NAME && current != Token.STRING ) {
+            return false;
+        }
+        final int len = name.length();
+        if ( escaped ) {
+            return getString().equals( name );
+        }
+        if ( tokenEnd - tokenStart < len ) { // UTF-8 needs at least one byte per char
+            return false;
+        }
+        for ( int i = 0 ; i < len ; i++ )
+        {
+            final char c = name.charAt( i );
+            if ( c > 0x7f ) {
+                return getString().equals( name );
+            }
+            if ( data[ tokenStart + i ] != c ) {
+                return false;
+            }
+        }
+        return tokenEnd - tokenStart == len;
+    }
+
+    /**
+     * Returns the current field name or string value.
+     *
+     * @return
+     */
+    public String getString()
+    {
+        if ( current != Token.FIELD_NAME && current != Token.STRING ) {
+            throw new IllegalStateException("Not positioned at a string but at "+current);
+        }
+        if ( ! escaped ) {
+            return new String( data , tokenStart , tokenEnd - tokenStart , StandardCharsets.UTF_8 );
+        }
+        final StringBuilder result = new StringBuilder( tokenEnd - tokenStart );
+        int runStart = tokenStart;
+        for ( int i = tokenStart ; i < tokenEnd ; i++ )
+        {
+            if ( data[i] != '\\' ) {
+                continue;
+            }
+            result.append( new String( data , runStart , i - runStart , StandardCharsets.UTF_8 ) );
+            final char c = (char) data[++i];
+            switch( c )
+            {
+                case 'b': result.append('\b'); break;
+                case 'f': result.append('\f'); break;
+                case 'n': result.append('\n'); break;
+                case 'r': result.append('\r'); break;
+                case 't': result.append('\t'); break;
+                case 'u':
+                    result.append( (char) Integer.parseInt( new String( data , i + 1 , 4 , StandardCharsets.ISO_8859_1 ) , 16 ) );
+                    i += 4;
+                    break;
+                default:
+                    result.append( c );
+            }
+            runStart = i + 1;
+        }
+        return result.append( new String( data , runStart , tokenEnd - runStart , StandardCharsets.UTF_8 ) ).toString();
+    }
+
+    /**
+     * Advances to the next token and returns it as a string.
+     *
+     * @return string or <code>null</code> if the next token is <code>null</code>
+     * @throws IOException if the next token is neither a string nor <code>null</code>
+     */
+    public String nextString() throws IOException
+    {
+        final Token token = next();
+        if ( token == Token.NULL ) {
+            return null;
+        }
+        if ( token != Token.STRING ) {
+            throw error("Expected string but got "+token);
+        }
+        return getString();
+    }
+
+    /**
+     * Returns the current value as a long, fractional numbers are truncated.
+     *
+     * @return
+     * @throws IOException if not positioned at a number
+     */
+    public long getLong() throws IOException
+    {
+        checkNumber();
+        if ( ! isIntegral() ) {
+            return (long) getDouble();
+        }
+        long result = 0;
+        int i = tokenStart;
+        final boolean negative = data[i] == '-';
+        if ( negative ) {
+            i++;
+        }
+        for ( ; i < tokenEnd ; i++ ) {
+            result = result * 10 + ( data[i] - '0' );
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Returns the current value as a double.
+     *
+     * @return
+     * @throws IOException if not positioned at a number
+     */
+    public double getDouble() throws IOException
+    {
+        checkNumber();
+        if ( isIntegral() ) {
+            return getLong();
+        }
+        try {
+            return Double.parseDouble( new String( data , tokenStart , tokenEnd - tokenStart , StandardCharsets.ISO_8859_1 ) );
+        } catch(NumberFormatException e) {
+            throw error("Malformed number");
+        }
+    }
+
+    private boolean isIntegral()
+    {
+        final int first = data[tokenStart] == '-' ? tokenStart + 1 : tokenStart;
+        if ( first == tokenEnd || tokenEnd - first > 18 ) {
+            return false;
+        }
+        for ( int i = first ; i < tokenEnd ; i++ ) {
+            if ( data[i] < '0' || data[i] > '9' ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current value as a boolean, numbers are <code>true</code> if they are not zero.
+     *
+     * @return
+     * @throws IOException if not positioned at a boolean or number
+     */
+    public boolean getBoolean() throws IOException
+    {
+        switch( current )
+        {
+            case TRUE:  return true;
+            case FALSE: return false;
+            case NUMBER: return getLong() != 0;
+            default:
+                throw error("Expected boolean but got "+current);
+        }
+    }
+
+    private void checkNumber() throws IOException
+    {
+        if ( current != Token.NUMBER ) {
+            throw error("Expected number but got "+current);
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException("Malformed JSON at offset "+( pos - start )+": "+message);
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with fixed bucket boundaries (100 microseconds ... 60 seconds).
+ *
+ * <p>Recording is lock-free and does not allocate, percentiles are estimated
+ * as the upper bound of the bucket they fall into.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class LatencyHistogram
+{
+    private static final long MICROS = 1000;
+    private static final long MILLIS = 1000 * MICROS;
+    private static final long SECONDS = 1000 * MILLIS;
+
+    /**
+     * Bucket upper bounds (inclusive) in nanoseconds, there is an additional bucket for larger values.
+     */
+    static final long[] BOUNDS = {
+        100 * MICROS, 250 * MICROS, 500 * MICROS,
+        1 * MILLIS, 2500 * MICROS, 5 * MILLIS, 10 * MILLIS, 25 * MILLIS, 50 * MILLIS, 100 * MILLIS, 250 * MILLIS, 500 * MILLIS,
+        1 * SECONDS, 2500 * MILLIS, 5 * SECONDS, 10 * SECONDS, 30 * SECONDS, 60 * SECONDS
+    };
+
+    private final AtomicLongArray buckets = new AtomicLongArray( BOUNDS.length + 1 );
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator( Math::max , 0 );
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos
+     */
+    public void record(long nanos)
+    {
+        final long value = Math.max( 0 , nanos );
+        int idx = Arrays.binarySearch( BOUNDS , value );
+        if ( idx < 0 ) {
+            idx = -( idx + 1 );
+        }
+        buckets.incrementAndGet( idx );
+        sumNanos.add( value );
+        maxNanos.accumulate( value );
+    }
+
+    /**
+     * Records the time elapsed since a given {@link System#nanoTime()} value.
+     *
+     * @param startNanos
+     */
+    public void recordSince(long startNanos) {
+        record( System.nanoTime() - startNanos );
+    }
+
+    /**
+     * Returns the per-bucket counts (not cumulative), the last element holds the
+     * count of values larger than the largest bound.
+     *
+     * @return
+     */
+    public long[] getBucketCounts()
+    {
+        final long[] result = new long[ buckets.length() ];
+        for ( int i = 0 ; i < result.length ; i++ ) {
+            result[i] = buckets.get( i );
+        }
+        return result;
+    }
+
+    public long getCount()
+    {
+        long result = 0;
+        for ( int i = 0 , len = buckets.length() ; i < len ; i++ ) {
+            result += buckets.get( i );
+        }
+        return result;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanMillis()
+    {
+        final long count = getCount();
+        return count == 0 ? 0 : getSumNanos() / (double) count / MILLIS;
+    }
+
+    /**
+     * Estimates a percentile.
+     *
+     * @param percentile percentile (0...1)
+     * @return upper bound of the bucket holding the percentile (in milliseconds), the max. value if it falls into the overflow bucket
+     */
+    public double getPercentileMillis(double percentile)
+    {
+        final long[] counts = getBucketCounts();
+        long total = 0;
+        for ( long c : counts ) {
+            total += c;
+        }
+        if ( total == 0 ) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil( percentile * total );
+        long seen = 0;
+        for ( int i = 0 ; i < BOUNDS.length ; i++ )
+        {
+            seen += counts[i];
+            if ( seen >= rank ) {
+                return Math.min( BOUNDS[i] , getMaxNanos() ) / (double) MILLIS;
+            }
+        }
+        return getMaxNanos() / (double) MILLIS;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( "count=%d, mean=%.3f ms, p50=%.3f ms, p99=%.3f ms, max=%.3f ms" , getCount() , getMeanMillis() ,
+                getPercentileMillis( 0.5 ) , getPercentileMillis( 0.99 ) , getMaxNanos() / (double) MILLIS );
+    }
+}
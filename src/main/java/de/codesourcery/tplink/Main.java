@@ -19,19 +19,25 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
+import javax.management.JMException;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.xml.sax.SAXException;
 
+import com.sun.net.httpserver.HttpServer;
+
 import de.codesourcery.jsonparser.Identifier;
 import de.codesourcery.tplink.JenkinsClient.Job;
 import de.codesourcery.tplink.JenkinsClient.JobStatus;
@@ -52,6 +58,10 @@ import joptsimple.OptionSpecBuilder;
  */
 public class Main
 {
+    private static final long DEFAULT_POLL_INTERVAL_MILLIS = 60_000;
+    
+    private static final long DEFAULT_DISCOVERY_WAIT_MILLIS = 2000;
+    
     public static void main(String[] args) throws IOException, InterruptedException, ParserConfigurationException, SAXException, ParseException
     {
         final OptionParser parser = new OptionParser();
@@ -64,16 +74,42 @@ public class Main
         
         final ArgumentAcceptingOptionSpec<String> userOpt = parser.accepts( "jenkinsuser" ,"Jenkins server IP/name").withRequiredArg();
         final ArgumentAcceptingOptionSpec<String> ignoredJobsOpt = parser.accepts( "ignoredjobs" ,"Comma-separated list with names of jobs that should be ignored").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> jobFilterOpt = parser.accepts( "jobfilter" ,"File with include/exclude rules for Jenkins jobs").withRequiredArg();
         final ArgumentAcceptingOptionSpec<String> pwdOpt = parser.accepts( "jenkinspwd" , "Jenkins password").withRequiredArg();
         final ArgumentAcceptingOptionSpec<String> portOpt = parser.accepts( "jenkinsport" , "Jenkins port").withRequiredArg();
         final ArgumentAcceptingOptionSpec<String> schemeOpt = parser.accepts( "jenkinsscheme" , "Scheme (http/https) to use").withRequiredArg().defaultsTo("http");
+        final ArgumentAcceptingOptionSpec<String> jenkinsThreadsOpt = parser.accepts( "jenkinsthreads" , "Max. number of concurrent requests to the Jenkins server (default: "+JenkinsClient.DEFAULT_LOOKUP_PARALLELISM+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> jenkinsCacheTtlOpt = parser.accepts( "jenkinscachettl" , "Time in seconds during which cached Jenkins responses are used without revalidation (default: 0)").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> jenkinsMaxConnectionsOpt = parser.accepts( "jenkinsmaxconnections" , "Max. number of connections to the Jenkins server (default: jenkinsthreads + 1)").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> jenkinsConnectTimeoutOpt = parser.accepts( "jenkinsconnecttimeout" , "Timeout in milliseconds for connecting to the Jenkins server (default: "+JenkinsClient.DEFAULT_CONNECT_TIMEOUT_MILLIS+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> jenkinsReadTimeoutOpt = parser.accepts( "jenkinsreadtimeout" , "Timeout in milliseconds for receiving data from the Jenkins server (default: "+JenkinsClient.DEFAULT_SOCKET_TIMEOUT_MILLIS+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> jenkinsKeepAliveOpt = parser.accepts( "jenkinskeepalive" , "Time in seconds idle connections to the Jenkins server are kept open (default: "+JenkinsClient.DEFAULT_KEEP_ALIVE_MILLIS/1000+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> jenkinsFolderDepthOpt = parser.accepts( "jenkinsfolderdepth" , "How many levels of Jenkins folders/multibranch projects to traverse, 0 to only check top-level jobs (default: "+JenkinsClient.DEFAULT_MAX_FOLDER_DEPTH+")").withRequiredArg();
         final ArgumentAcceptingOptionSpec<String> jenkinsHostOpt = parser.accepts( "jenkinshost" , "Jenkins username").requiredIf( userOpt , pwdOpt ).withRequiredArg(); 
         final OptionSpecBuilder verboseOpt = parser.accepts( "verbose","enable verbose output" );
         final OptionSpecBuilder versionOpt = parser.accepts( "version","Print application version" );
         final OptionSpecBuilder debugOpt = parser.accepts( "debug" , "enable debug output");
         final OptionSpecBuilder dryRunOpt = parser.accepts( "dry-run" , "Do not actually modify the plug's configuration/state");
+        final ArgumentAcceptingOptionSpec<String> hostsOpt = parser.accepts( "hosts" , "Comma-separated list of plug IPs/hostnames (batch mode)").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> hostsFileOpt = parser.accepts( "hostsfile" , "File with one plug IP/hostname per line (batch mode)").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> intervalOpt = parser.accepts( "interval" , "Poll interval in seconds (daemon mode, default: "+DEFAULT_POLL_INTERVAL_MILLIS/1000+"; collect mode, default: "+EmeterCollector.DEFAULT_INTERVAL_MILLIS/1000+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> dataDirOpt = parser.accepts( "datadir" , "Directory to store emeter samples in (collect mode)").withRequiredArg().defaultsTo("emeter-data");
+        final ArgumentAcceptingOptionSpec<String> timeoutOpt = parser.accepts( "timeout" , "Timeout in milliseconds per plug (batch mode, default: "+TPLinkEngine.DEFAULT_TIMEOUT_MILLIS+", longer for slow commands like SCAN_APS) resp. time to wait for replies (discovery, default: "+DEFAULT_DISCOVERY_WAIT_MILLIS+")").withRequiredArg();
+        final OptionSpecBuilder discoverOpt = parser.accepts( "discover" , "List all plugs on the local network" );
+        final ArgumentAcceptingOptionSpec<String> simulateOpt = parser.accepts( "simulate" , "Simulate the given number of plugs on consecutive loopback addresses until killed").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> simulateAddressOpt = parser.accepts( "simulateaddress" , "First address of simulated plugs").withRequiredArg().defaultsTo( PlugSimulator.DEFAULT_FIRST_ADDRESS );
+        final ArgumentAcceptingOptionSpec<String> simulateLatencyOpt = parser.accepts( "simulatelatency" , "Reply latency of simulated plugs in milliseconds (default: 0)").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> simulateJitterOpt = parser.accepts( "simulatejitter" , "Max. random deviation from the latency of simulated plugs in milliseconds (default: 0)").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> simulateLossOpt = parser.accepts( "simulateloss" , "Percentage of requests simulated plugs do not reply to (default: 0)").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> plugConnectTimeoutOpt = parser.accepts( "plugconnecttimeout" , "Max. timeout in milliseconds for connecting to a plug (default: "+HealthTracker.DEFAULT_CONNECT_TIMEOUT_MILLIS+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> plugReadTimeoutOpt = parser.accepts( "plugreadtimeout" , "Max. timeout in milliseconds for receiving a plug's response (default: "+HealthTracker.DEFAULT_READ_TIMEOUT_MILLIS+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> plugSlowReadTimeoutOpt = parser.accepts( "plugslowreadtimeout" , "Timeout in milliseconds for receiving a plug's response to slow commands like SCAN_APS or GET_EMETER_DAILY (default: "+HealthTracker.DEFAULT_SLOW_READ_TIMEOUT_MILLIS+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> plugMinTimeoutOpt = parser.accepts( "plugmintimeout" , "Min. adaptive timeout in milliseconds for talking to a plug (default: "+HealthTracker.DEFAULT_MIN_TIMEOUT_MILLIS+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> plugFailuresOpt = parser.accepts( "plugfailures" , "Number of consecutive failures after which a plug is considered dead (default: "+HealthTracker.DEFAULT_FAILURE_THRESHOLD+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> plugBackoffOpt = parser.accepts( "plugbackoff" , "Max. time in seconds a dead plug is not contacted (default: "+HealthTracker.DEFAULT_MAX_BACKOFF_MILLIS/1000+")").withRequiredArg();
+        final ArgumentAcceptingOptionSpec<String> metricsPortOpt = parser.accepts( "metricsport" , "Local port to serve metrics in Prometheus text format on (daemon/collect mode)").withRequiredArg();
         
-        parser.nonOptions().describedAs("<plug IP/hostname> <on|off|info|jenkins>").ofType(String.class);
+        parser.nonOptions().describedAs("<plug IP/hostname/id:device ID, MAC or alias> <on|off|info|jenkins|daemon> (batch mode: <on|off|info|collect>)").ofType(String.class);
         
         final OptionSet options = parser.parse(args );
 
@@ -90,8 +126,78 @@ public class Main
             }
         }        
         
+        final long discoveryWaitMillis = options.has( timeoutOpt ) ? Long.parseLong( options.valueOf( timeoutOpt ) ) : DEFAULT_DISCOVERY_WAIT_MILLIS;
+
+        final HealthTracker healthTracker = HealthTracker.getDefault();
+        if ( options.has( plugConnectTimeoutOpt ) ) {
+            healthTracker.setConnectTimeoutMillis( Long.parseLong( options.valueOf( plugConnectTimeoutOpt ) ) );
+        }
+        if ( options.has( plugReadTimeoutOpt ) ) {
+            healthTracker.setReadTimeoutMillis( Long.parseLong( options.valueOf( plugReadTimeoutOpt ) ) );
+        }
+        if ( options.has( plugSlowReadTimeoutOpt ) ) {
+            healthTracker.setSlowReadTimeoutMillis( Long.parseLong( options.valueOf( plugSlowReadTimeoutOpt ) ) );
+        }
+        if ( options.has( plugMinTimeoutOpt ) ) {
+            healthTracker.setMinTimeoutMillis( Long.parseLong( options.valueOf( plugMinTimeoutOpt ) ) );
+        }
+        if ( options.has( plugFailuresOpt ) ) {
+            healthTracker.setFailureThreshold( Integer.parseInt( options.valueOf( plugFailuresOpt ) ) );
+        }
+        if ( options.has( plugBackoffOpt ) ) 
+        {
+            final long maxBackoffMillis = Long.parseLong( options.valueOf( plugBackoffOpt ) ) * 1000;
+            if ( maxBackoffMillis < 1 )
+            {
+                System.err.println("--plugbackoff must be > 0");
+                System.exit(1);
+            }
+            healthTracker.setBackoffMillis( Math.min( HealthTracker.DEFAULT_MIN_BACKOFF_MILLIS , maxBackoffMillis ) , maxBackoffMillis );
+        }
+        if ( options.has( discoverOpt ) ) 
+        {
+            try ( DeviceDiscovery discovery = new DeviceDiscovery() ) 
+            {
+                discovery.setDebug( options.has("d") || options.has( debugOpt ) );
+                final List<DeviceDiscovery.DiscoveredDevice> devices = discovery.discover( discoveryWaitMillis );
+                devices.forEach( System.out::println );
+                System.out.println( devices.size()+" devices found.");
+            }
+            System.exit(0);
+        }
+        
+        if ( options.has( simulateOpt ) ) 
+        {
+            final int plugCount = Integer.parseInt( options.valueOf( simulateOpt ) );
+            if ( plugCount < 1 ) {
+                throw new IllegalArgumentException("--simulate must be > 0");
+            }
+            final PlugSimulator simulator = new PlugSimulator();
+            if ( options.has( simulateLatencyOpt ) ) {
+                simulator.setLatencyMillis( Long.parseLong( options.valueOf( simulateLatencyOpt ) ) );
+            }
+            if ( options.has( simulateJitterOpt ) ) {
+                simulator.setJitterMillis( Long.parseLong( options.valueOf( simulateJitterOpt ) ) );
+            }
+            if ( options.has( simulateLossOpt ) ) {
+                simulator.setPacketLossRate( Double.parseDouble( options.valueOf( simulateLossOpt ) ) / 100d );
+            }
+            final List<VirtualPlug> plugs = simulator.addPlugsOnAddresses( InetAddress.getByName( options.valueOf( simulateAddressOpt ) ) , plugCount );
+            System.out.println("Simulating "+plugs.size()+" plugs ("+plugs.get(0).getAddress()+" ... "+plugs.get( plugs.size()-1 ).getAddress()+")");
+            Runtime.getRuntime().addShutdownHook( new Thread( simulator::close ) );
+            while ( true ) 
+            {
+                Thread.sleep( 10_000 );
+                if ( options.has("v") || options.has( verboseOpt ) ) {
+                    System.out.println( simulator.getConnectionCount()+" connections, "+simulator.getRequestCount()+" requests, "+simulator.getDroppedCount()+" dropped");
+                }
+            }
+        }
+        
+        final boolean batchMode = options.has( hostsOpt ) || options.has( hostsFileOpt );
+        
         @SuppressWarnings("unchecked")
-        int expectedSize = options.has( execCmd ) ? 1 : 2;
+        int expectedSize = ( options.has( execCmd ) ? 1 : 2 ) - ( batchMode ? 1 : 0 );
         final List<String> remaining = (List<String>) options.nonOptionArguments();
         if ( remaining.size() != expectedSize ) 
         {
@@ -102,7 +208,80 @@ public class Main
         final boolean verbose = options.has("v") || options.has( verboseOpt );
         final boolean debug = options.has("d") || options.has( debugOpt );
         
-        final InetAddress address = InetAddress.getByName( remaining.get(0) );
+        final Function<Identifier, String> callback = identifier -> 
+        {
+            String result;
+            try {
+                result = readUserInput( "Please enter a value for '"+identifier+"' : ");
+                return result;
+            } 
+            catch (IOException e) 
+            {
+                e.printStackTrace();
+            }
+            System.exit(1);
+            return null; // never reached,make compiler happy
+        };
+        
+        if ( batchMode ) 
+        {
+            final List<String> hosts = new ArrayList<>();
+            if ( options.has( hostsOpt ) ) 
+            {
+                for ( String host : options.valueOf( hostsOpt ).split(",") ) {
+                    if ( StringUtils.isNotBlank( host ) ) {
+                        hosts.add( host.trim() );
+                    }
+                }
+            }
+            if ( options.has( hostsFileOpt ) ) {
+                hosts.addAll( BatchExecutor.readHosts( Paths.get( options.valueOf( hostsFileOpt ) ) ) );
+            }
+            
+            if ( ! options.has( execCmd ) && "collect".equals( remaining.get(0) ) ) 
+            {
+                final long intervalMillis = options.has( intervalOpt ) ? Long.parseLong( options.valueOf( intervalOpt ) )*1000 : EmeterCollector.DEFAULT_INTERVAL_MILLIS;
+                startMetrics( options.has( metricsPortOpt ) ? Integer.parseInt( options.valueOf( metricsPortOpt ) ) : -1 , verbose );
+                runCollector( hosts , Paths.get( options.valueOf( dataDirOpt ) ) , intervalMillis , options.has( timeoutOpt ) ? Long.parseLong( options.valueOf( timeoutOpt ) ) : -1 , verbose );
+                return;
+            }
+            
+            final Command cmd;
+            if ( options.has( execCmd ) ) {
+                cmd = Command.valueOf( options.valueOf( execCmd ) );
+            } 
+            else 
+            {
+                switch( remaining.get(0) ) 
+                {
+                    case "info": cmd = Command.GET_SYSTEM_INFO; break;
+                    case "on":   cmd = Command.PLUG_ON; break;
+                    case "off":  cmd = Command.PLUG_OFF; break;
+                    default:
+                        parser.printHelpOn( System.out );
+                        System.exit(1);
+                        return;
+                }
+            }
+            
+            final List<BatchExecutor.Result> results;
+            try ( TPLinkEngine engine = new TPLinkEngine() ) 
+            {
+                final BatchExecutor executor = new BatchExecutor( engine );
+                executor.setDryRun( options.has( dryRunOpt ) );
+                if ( options.has( timeoutOpt ) ) {
+                    executor.setTimeoutMillis( Long.parseLong( options.valueOf( timeoutOpt ) ) );
+                }
+                if ( verbose ) {
+                    System.out.println( ( executor.isDryRun() && cmd.altersDeviceState ? "DRY-RUN: " : "" )+"Sending command "+cmd.name()+" to "+hosts.size()+" devices");
+                }
+                results = executor.execute( hosts , cmd , callback );
+            }
+            BatchExecutor.printTable( results , verbose || ! cmd.altersDeviceState , System.out );
+            System.exit( results.stream().allMatch( BatchExecutor.Result::isSuccess ) ? 0 : 1 );
+        }
+        
+        final InetAddress address = resolvePlug( remaining.get(0) , discoveryWaitMillis , verbose );
         final TPLink client = new TPLink( address );
         client.setVerbose( verbose );
         client.setDebug( debug );
@@ -114,30 +293,37 @@ public class Main
         final String jenkinsPassword = options.valueOf( pwdOpt );
         final String ignoredJobs = options.valueOf( ignoredJobsOpt );
         
-        final Set<String> ignoredJobNames = new HashSet<>();
+        // first matching rule wins, so rule files can't re-include jobs excluded by --ignoredjobs or the built-in rule.
+        // These also match jobs inside folders by their short name (last path segment)
+        final List<JobFilter.Rule> filterRules = new ArrayList<>();
         if ( StringUtils.isNotBlank( ignoredJobs ) ) 
         {
             for ( String jobName : ignoredJobs.split(",") ) {
                 if ( StringUtils.isBlank( jobName ) ) {
                     throw new IllegalArgumentException("--ignoredjobs argument must not contain blank job names");
                 }
-                ignoredJobNames.add( jobName.toLowerCase() );
+                filterRules.add( new JobFilter.Rule( JobFilter.Action.EXCLUDE , JobFilter.Syntax.NAME , jobName , "--ignoredjobs" ) );
+                if ( jobName.indexOf( '/' ) == -1 ) {
+                    filterRules.add( new JobFilter.Rule( JobFilter.Action.EXCLUDE , JobFilter.Syntax.REGEX , ".*/"+Pattern.quote( jobName ) , "--ignoredjobs" ) );
+                }
             }
         }
+        filterRules.add( new JobFilter.Rule( JobFilter.Action.EXCLUDE , JobFilter.Syntax.GLOB , "ignoreme**" , "built-in" ) );
+        filterRules.add( new JobFilter.Rule( JobFilter.Action.EXCLUDE , JobFilter.Syntax.GLOB , "**/ignoreme*" , "built-in" ) );
+        if ( options.has( jobFilterOpt ) ) {
+            filterRules.addAll( JobFilter.readRules( Paths.get( options.valueOf( jobFilterOpt ) ) ) );
+        }
+        final JobFilter jobFilter = JobFilter.compile( filterRules );
+        if ( debug ) {
+            System.out.println("Job filter: "+jobFilter);
+        }
+
         final Predicate<Job> isIgnored = job -> 
         {
-            final String jobName = job.name.toLowerCase();
-            boolean ignored = false;
-            String reason = null;
-            if ( jobName.startsWith("ignoreme") ) {
-                ignored = true;
-                reason = "IGNORED job because name starts with 'ignoreme'";
-            } else {
-                ignored = ignoredJobNames.contains( jobName );
-                reason = "IGNORED job by configuration";
-            }
+            final JobFilter.Rule rule = jobFilter.match( job.name );
+            final boolean ignored = rule != null && rule.action == JobFilter.Action.EXCLUDE;
             if ( verbose && ignored ) {
-                System.out.println( reason+": "+job.name);
+                System.out.println( "IGNORED job by rule '"+rule+"': "+job.name);
             }
             return ignored;
         };
@@ -147,20 +333,6 @@ public class Main
         if ( options.has( execCmd ) ) 
         {
             final String cmdName = options.valueOf( execCmd );
-            final Function<Identifier, String> callback = identifier -> 
-            {
-                String result;
-                try {
-                    result = readUserInput( "Please enter a value for '"+identifier+"' : ");
-                    return result;
-                } 
-                catch (IOException e) 
-                {
-                    e.printStackTrace();
-                }
-                System.exit(1);
-                return null; // never reached,make compiler happy
-            };
             client.sendCmd( Command.valueOf( cmdName ) , callback );
             System.exit(0);
         }
@@ -177,6 +349,7 @@ public class Main
                 client.off();
                 break;
             case "jenkins":
+            case "daemon":
                 final JenkinsClient jenkins = new JenkinsClient( jenkinsHost );
                 if ( StringUtils.isNotBlank( jenkinsUser ) ) {
                     jenkins.setUsername( jenkinsUser );
@@ -188,23 +361,68 @@ public class Main
                 jenkins.setDebug( debug );
                 jenkins.setVerbose( verbose  );
                 jenkins.setScheme( jenkinsScheme );
+                if ( options.has( jenkinsThreadsOpt ) ) {
+                    jenkins.setLookupParallelism( Integer.parseInt( options.valueOf( jenkinsThreadsOpt ) ) );
+                }
+                if ( options.has( jenkinsMaxConnectionsOpt ) ) {
+                    jenkins.setMaxConnections( Integer.parseInt( options.valueOf( jenkinsMaxConnectionsOpt ) ) );
+                }
+                if ( options.has( jenkinsConnectTimeoutOpt ) ) {
+                    jenkins.setConnectTimeoutMillis( Integer.parseInt( options.valueOf( jenkinsConnectTimeoutOpt ) ) );
+                }
+                if ( options.has( jenkinsReadTimeoutOpt ) ) {
+                    jenkins.setSocketTimeoutMillis( Integer.parseInt( options.valueOf( jenkinsReadTimeoutOpt ) ) );
+                }
+                if ( options.has( jenkinsKeepAliveOpt ) ) {
+                    jenkins.setKeepAliveMillis( Long.parseLong( options.valueOf( jenkinsKeepAliveOpt ) ) * 1000 );
+                }
+                if ( options.has( jenkinsFolderDepthOpt ) ) {
+                    jenkins.setMaxFolderDepth( Integer.parseInt( options.valueOf( jenkinsFolderDepthOpt ) ) );
+                }
+                if ( options.has( jenkinsCacheTtlOpt ) ) {
+                    jenkins.setCacheTtlMillis( Long.parseLong( options.valueOf( jenkinsCacheTtlOpt ) ) * 1000 );
+                }
 
-                final List<Job> projects = jenkins.getJobs();
-                projects.removeIf( isIgnored );
-                final boolean lightOn = projects.stream().map( j -> j.status).anyMatch( JobStatus::isFailure );
-                if ( client.isVerbose() ) {
-                    if ( lightOn ) {
-                        System.out.println("The following projects failed to build:");
-                        projects.stream().filter( p -> p.status.isFailure() ).forEach( p -> System.out.println( p.name ) );
+                if ( "jenkins".equals( remaining.get(1) ) ) 
+                {
+                    if ( isLightOn( jenkins , isIgnored , verbose ) ) {
+                        client.on();
                     } else {
-                        System.out.println("No failed builds.");
+                        client.off();
                     }
+                    break;
                 }
-                if ( lightOn ) {
-                    client.on();
-                } else {
-                    client.off();
+                
+                // daemon mode
+                final long intervalMillis = options.has( intervalOpt ) ? Long.parseLong( options.valueOf( intervalOpt ) )*1000 : DEFAULT_POLL_INTERVAL_MILLIS;
+                if ( intervalMillis < 1 ) {
+                    throw new IllegalArgumentException("--interval must be > 0");
                 }
+                final ConnectionPool pool = new ConnectionPool();
+                pool.setIdleTimeoutMillis( 2 * intervalMillis );
+                client.setConnectionPool( pool );
+                // plug addressed by device ID/MAC/alias, follow it when its IP changes
+                final String plugId = remaining.get(0).startsWith("id:") ? remaining.get(0).substring( "id:".length() ) : null;
+                final DeviceDiscovery discovery = plugId != null ? watchPlug( client , plugId , intervalMillis , verbose ) : null;
+                Runtime.getRuntime().addShutdownHook( new Thread( () -> 
+                {
+                    pool.close();
+                    if ( discovery != null ) 
+                    {
+                        try {
+                            discovery.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                    try {
+                        jenkins.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }));
+                startMetrics( options.has( metricsPortOpt ) ? Integer.parseInt( options.valueOf( metricsPortOpt ) ) : -1 , verbose );
+                runDaemon( client , discovery , plugId , discoveryWaitMillis , jenkins , isIgnored , intervalMillis , verbose , debug );
                 break;
             default:
                 parser.printHelpOn( System.out );
@@ -212,6 +430,206 @@ public class Main
         }        
     }
     
+    private static boolean isLightOn(JenkinsClient jenkins,Predicate<Job> isIgnored,boolean verbose) throws IOException, ParserConfigurationException, SAXException 
+    {
+        final List<Job> projects = jenkins.getJobs();
+        projects.removeIf( isIgnored );
+        final boolean lightOn = projects.stream().map( j -> j.status).anyMatch( JobStatus::isFailure );
+        if ( verbose ) {
+            if ( lightOn ) {
+                System.out.println("The following projects failed to build:");
+                projects.stream().filter( p -> p.status.isFailure() ).forEach( p -> System.out.println( p.name ) );
+            } else {
+                System.out.println("No failed builds.");
+            }
+        }
+        return lightOn;
+    }
+    
+    /**
+     * Polls the Jenkins server and switches the plug until the process gets killed.
+     * 
+     * <p>The plug is only switched when the state changes (or the last attempt to switch it failed).</p>
+     */
+    private static void runDaemon(TPLink client,DeviceDiscovery discovery,String plugId,long discoveryWaitMillis,JenkinsClient jenkins,Predicate<Job> isIgnored,long intervalMillis,boolean verbose,boolean debug) throws InterruptedException 
+    {
+        final JobStatusTracker tracker = new JobStatusTracker();
+        if ( verbose ) {
+            tracker.addListener( System.out::println );
+        }
+        Boolean plugState = null; // unknown
+        while ( true ) 
+        {
+            try 
+            {
+                final List<Job> projects = jenkins.getJobs();
+                projects.removeIf( isIgnored );
+                tracker.update( projects );
+                final boolean lightOn = tracker.hasFailures();
+                if ( plugState == null || plugState.booleanValue() != lightOn ) 
+                {
+                    switchPlug( client , lightOn , discovery , plugId , discoveryWaitMillis , verbose );
+                    plugState = lightOn;
+                } 
+                else if ( verbose ) {
+                    System.out.println("Plug state unchanged ("+( lightOn ? "on" : "off")+")");
+                }
+            } 
+            catch(Exception e) 
+            {
+                System.err.println("Poll failed: "+e.getMessage());
+                if ( debug ) {
+                    e.printStackTrace();
+                }
+            }
+            Thread.sleep( intervalMillis );
+        }
+    }
+    
+    /**
+     * Switches the plug, looking it up again if it can't be reached.
+     * 
+     * @param discovery discovery to look up the plug with, <code>null</code> if the plug was not addressed by device ID/MAC/alias
+     * @param plugId device ID, MAC or alias
+     */
+    private static void switchPlug(TPLink client,boolean on,DeviceDiscovery discovery,String plugId,long discoveryWaitMillis,boolean verbose) throws IOException, InterruptedException 
+    {
+        try 
+        {
+            if ( on ) {
+                client.on();
+            } else {
+                client.off();
+            }
+        } 
+        catch(IOException e) 
+        {
+            if ( discovery == null || e instanceof DeviceException ) {
+                throw e;
+            }
+            // plug might have got a new IP address
+            discovery.discover( discoveryWaitMillis );
+            final DeviceDiscovery.DiscoveredDevice device = discovery.lookup( plugId );
+            if ( device == null || ! updateDestination( client , device , verbose ) ) {
+                throw e;
+            }
+            if ( on ) {
+                client.on();
+            } else {
+                client.off();
+            }
+        }
+    }
+    
+    /**
+     * Keeps discovering plugs in the background and updates the client's address when the plug shows up under a new IP.
+     */
+    private static DeviceDiscovery watchPlug(TPLink client,String plugId,long intervalMillis,boolean verbose) throws IOException 
+    {
+        final DeviceDiscovery discovery = new DeviceDiscovery();
+        discovery.addListener( event -> 
+        {
+            if ( event.newDevice != null && event.newDevice.matches( plugId ) ) {
+                updateDestination( client , event.newDevice , verbose );
+            }
+        });
+        discovery.start( intervalMillis );
+        return discovery;
+    }
+    
+    private static boolean updateDestination(TPLink client,DeviceDiscovery.DiscoveredDevice device,boolean verbose) 
+    {
+        if ( device.address.equals( client.getDestination() ) ) {
+            return false;
+        }
+        if ( verbose ) {
+            System.out.println("Plug "+device.key+" moved from "+client.getDestination()+" to "+device.address);
+        }
+        client.setDestination( device.address );
+        return true;
+    }
+    
+    /**
+     * Exposes metrics via JMX and (optionally) over HTTP on the loopback interface.
+     * 
+     * @param port port for the Prometheus endpoint, values &lt; 1 to disable it
+     */
+    private static void startMetrics(int port,boolean verbose) throws IOException 
+    {
+        try {
+            Metrics.getDefault().registerMBean();
+        } 
+        catch (JMException e) {
+            System.err.println("Failed to register metrics MBean: "+e.getMessage());
+        }
+        if ( port > 0 ) 
+        {
+            final HttpServer server = Metrics.getDefault().startHttpServer( new InetSocketAddress( InetAddress.getLoopbackAddress() , port ) );
+            Runtime.getRuntime().addShutdownHook( new Thread( () -> server.stop( 0 ) ) );
+            if ( verbose ) {
+                System.out.println("Serving metrics on http://"+server.getAddress().getHostString()+":"+port+"/metrics");
+            }
+        }
+    }
+    
+    /**
+     * Resolves a plug address, <code>id:&lt;device ID, MAC or alias&gt;</code> is looked up
+     * using UDP discovery.
+     */
+    private static InetAddress resolvePlug(String plug,long discoveryWaitMillis,boolean verbose) throws IOException, InterruptedException 
+    {
+        if ( ! plug.startsWith("id:") ) {
+            return InetAddress.getByName( plug );
+        }
+        final String id = plug.substring( "id:".length() );
+        try ( DeviceDiscovery discovery = new DeviceDiscovery() ) 
+        {
+            discovery.discover( discoveryWaitMillis );
+            final DeviceDiscovery.DiscoveredDevice device = discovery.lookup( id );
+            if ( device == null ) {
+                throw new IOException("Found no plug with device ID, MAC or alias '"+id+"'");
+            }
+            if ( verbose ) {
+                System.out.println("Found "+device);
+            }
+            return device.address;
+        }
+    }
+    
+    /**
+     * Collects emeter samples from all plugs until the process gets killed.
+     */
+    private static void runCollector(List<String> hosts,Path dataDirectory,long intervalMillis,long timeoutMillis,boolean verbose) throws IOException, InterruptedException 
+    {
+        final TPLinkEngine engine = new TPLinkEngine();
+        if ( timeoutMillis > 0 ) {
+            engine.setTimeoutMillis( timeoutMillis );
+        }
+        final EmeterCollector collector = new EmeterCollector( engine , dataDirectory );
+        collector.setIntervalMillis( intervalMillis );
+        collector.setVerbose( verbose );
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> 
+        {
+            try {
+                collector.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            engine.close();
+        }));
+        collector.start( hosts );
+        if ( verbose ) {
+            System.out.println("Collecting emeter samples from "+hosts.size()+" devices every "+intervalMillis+" ms into "+dataDirectory.toAbsolutePath());
+        }
+        while ( true ) 
+        {
+            Thread.sleep( intervalMillis );
+            if ( verbose ) {
+                System.out.println("Collected "+collector.getSampleCount()+" samples, "+collector.getErrorCount()+" errors");
+            }
+        }
+    }
+    
     private static String readUserInput(String prompt) throws IOException 
     {
         String line = null;
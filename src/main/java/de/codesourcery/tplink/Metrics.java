@@ -0,0 +1,444 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry for latency histograms and counters.
+ *
+ * <p>Metrics are identified by name and label values, looking them up and recording values
+ * never blocks. Looking up a metric builds its label string, so hot paths keep the returned
+ * instances instead (see {@link DeviceHealth}). All metrics can be exposed as attributes of a single MBean
+ * ({@link #registerMBean()}) and in the Prometheus text format ({@link #writePrometheus(Writer)},
+ * {@link #startHttpServer(InetSocketAddress)}).</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class Metrics
+{
+    public static final String TPLINK_REQUEST_DURATION = "tplink_request_duration_seconds";
+    public static final String TPLINK_BYTES_SENT = "tplink_bytes_sent_total";
+    public static final String TPLINK_BYTES_RECEIVED = "tplink_bytes_received_total";
+    public static final String TPLINK_ERRORS = "tplink_errors_total";
+    public static final String TPLINK_RETRIES = "tplink_retries_total";
+    public static final String TPLINK_REJECTED = "tplink_rejected_total";
+    public static final String TPLINK_CIRCUIT_OPENED = "tplink_circuit_opened_total";
+
+    public static final String JENKINS_REQUEST_DURATION = "jenkins_request_duration_seconds";
+    public static final String JENKINS_BYTES_RECEIVED = "jenkins_bytes_received_total";
+    public static final String JENKINS_RESPONSES = "jenkins_responses_total";
+    public static final String JENKINS_ERRORS = "jenkins_errors_total";
+    public static final String JENKINS_RETRIES = "jenkins_retries_total";
+    public static final String JENKINS_CACHE_HITS = "jenkins_cache_hits_total";
+
+    public static final String OBJECT_NAME = "de.codesourcery.tplink:type=Metrics";
+
+    private static final Map<String,String> HELP = new HashMap<>();
+
+    static
+    {
+        HELP.put( TPLINK_REQUEST_DURATION , "Time it took to send a command to a plug and receive the reply" );
+        HELP.put( TPLINK_BYTES_SENT , "Bytes sent to plugs (including length header)" );
+        HELP.put( TPLINK_BYTES_RECEIVED , "Bytes received from plugs (excluding length header)" );
+        HELP.put( TPLINK_ERRORS , "Failed plug requests by error type (connect, timeout, device, io)" );
+        HELP.put( TPLINK_RETRIES , "Requests retried because a reused connection turned out to be stale" );
+        HELP.put( TPLINK_REJECTED , "Requests not sent because the device failed repeatedly" );
+        HELP.put( TPLINK_CIRCUIT_OPENED , "Number of times a device was considered dead after repeated failures" );
+        HELP.put( JENKINS_REQUEST_DURATION , "Time it took to execute a request against the Jenkins server (including response processing)" );
+        HELP.put( JENKINS_BYTES_RECEIVED , "Response body bytes received from the Jenkins server (as announced by Content-Length)" );
+        HELP.put( JENKINS_RESPONSES , "Responses received from the Jenkins server by HTTP status" );
+        HELP.put( JENKINS_ERRORS , "Failed Jenkins requests by error type (connect, timeout, io)" );
+        HELP.put( JENKINS_RETRIES , "Jenkins requests retried because a pooled connection was closed by the server" );
+        HELP.put( JENKINS_CACHE_HITS , "Jenkins responses served from the cache without a request" );
+    }
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    private static enum Type
+    {
+        COUNTER("counter"),
+        HISTOGRAM("histogram");
+
+        public final String prometheusName;
+
+        private Type(String prometheusName) {
+            this.prometheusName = prometheusName;
+        }
+    }
+
+    private static final class Family
+    {
+        public final String name;
+        public final Type type;
+        // metrics by Prometheus label string
+        public final ConcurrentMap<String,Object> series = new ConcurrentHashMap<>();
+
+        public Family(String name, Type type)
+        {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private final ConcurrentMap<String,Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the registry used by this library.
+     *
+     * @return
+     */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a counter, creating it if necessary.
+     *
+     * @param name
+     * @param labels label names and values (alternating)
+     * @return
+     */
+    public LongAdder counter(String name,String... labels) {
+        return (LongAdder) get( name , Type.COUNTER , labels );
+    }
+
+    /**
+     * Returns a histogram, creating it if necessary.
+     *
+     * @param name
+     * @param labels label names and values (alternating)
+     * @return
+     */
+    public LatencyHistogram histogram(String name,String... labels) {
+        return (LatencyHistogram) get( name , Type.HISTOGRAM , labels );
+    }
+
+    private Object get(String name,Type type,String[] labels)
+    {
+        Family family = families.get( name );
+        if ( family == null ) {
+            family = families.computeIfAbsent( name , key -> new Family( key , type ) );
+        }
+        if ( family.type != type ) {
+            throw new IllegalArgumentException("Metric '"+name+"' is a "+family.type.prometheusName);
+        }
+        final String labelString = toLabelString( labels );
+        Object result = family.series.get( labelString );
+        if ( result == null ) {
+            result = family.series.computeIfAbsent( labelString , key -> type == Type.COUNTER ? new LongAdder() : new LatencyHistogram() );
+        }
+        return result;
+    }
+
+    private static String toLabelString(String[] labels)
+    {
+        if ( ( labels.length & 1 ) != 0 ) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        if ( labels.length == 0 ) {
+            return "";
+        }
+        final StringBuilder buffer = new StringBuilder();
+        for ( int i = 0 ; i < labels.length ; i += 2 )
+        {
+            if ( i > 0 ) {
+                buffer.append(',');
+            }
+            buffer.append( labels[i] ).append("=\"");
+            final String value = labels[i+1] == null ? "" : labels[i+1];
+            for ( int j = 0 , len = value.length() ; j < len ; j++ )
+            {
+                final char c = value.charAt( j );
+                switch( c )
+                {
+                    case '\\': buffer.append("\\\\"); break;
+                    case '"':  buffer.append("\\\""); break;
+                    case '\n': buffer.append("\\n"); break;
+                    default:
+                        buffer.append( c );
+                }
+            }
+            buffer.append('"');
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Maps an exception to the error type used as label value.
+     *
+     * @param t
+     * @return <code>connect</code>, <code>timeout</code>, <code>device</code> or <code>io</code>
+     */
+    public static String errorType(Throwable t)
+    {
+        if ( t instanceof ConnectException || t instanceof NoRouteToHostException || t instanceof UnknownHostException ) {
+            return "connect";
+        }
+        if ( t instanceof InterruptedIOException ) { // SocketTimeoutException and HttpClient's ConnectTimeoutException
+            return "timeout";
+        }
+        if ( t instanceof DeviceException ) {
+            return "device";
+        }
+        return "io";
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writePrometheus(Writer writer) throws IOException
+    {
+        for ( Family family : new TreeMap<>( families ).values() )
+        {
+            final String help = HELP.get( family.name );
+            if ( help != null ) {
+                writer.write( "# HELP "+family.name+" "+help+"\n" );
+            }
+            writer.write( "# TYPE "+family.name+" "+family.type.prometheusName+"\n" );
+            for ( Map.Entry<String,Object> entry : new TreeMap<>( family.series ).entrySet() )
+            {
+                final String labels = entry.getKey();
+                if ( family.type == Type.COUNTER ) {
+                    writer.write( family.name+( labels.isEmpty() ? "" : "{"+labels+"}" )+" "+((LongAdder) entry.getValue()).sum()+"\n" );
+                    continue;
+                }
+                final LatencyHistogram histogram = (LatencyHistogram) entry.getValue();
+                final long[] counts = histogram.getBucketCounts();
+                final String prefix = labels.isEmpty() ? "" : labels+",";
+                long cumulative = 0;
+                for ( int i = 0 ; i < counts.length ; i++ )
+                {
+                    cumulative += counts[i];
+                    final String le = i < LatencyHistogram.BOUNDS.length ? Double.toString( LatencyHistogram.BOUNDS[i] / 1e9 ) : "+Inf";
+                    writer.write( family.name+"_bucket{"+prefix+"le=\""+le+"\"} "+cumulative+"\n" );
+                }
+                final String suffix = labels.isEmpty() ? "" : "{"+labels+"}";
+                writer.write( family.name+"_sum"+suffix+" "+histogram.getSumNanos() / 1e9+"\n" );
+                writer.write( family.name+"_count"+suffix+" "+cumulative+"\n" );
+            }
+        }
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text exposition format.
+     *
+     * @return
+     */
+    public String toPrometheus()
+    {
+        final StringWriter writer = new StringWriter();
+        try {
+            writePrometheus( writer );
+        } catch (IOException e) {
+            throw new RuntimeException( e ); // can't happen
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Starts an HTTP server that serves all metrics in the Prometheus text format
+     * on <code>/metrics</code>.
+     *
+     * @param address address to bind to, usually a loopback address
+     * @return the server, to be stopped by the caller
+     * @throws IOException
+     */
+    public HttpServer startHttpServer(InetSocketAddress address) throws IOException
+    {
+        final HttpServer server = HttpServer.create( address , 0 );
+        server.createContext( "/metrics" , exchange ->
+        {
+            try
+            {
+                final byte[] body = toPrometheus().getBytes( StandardCharsets.UTF_8 );
+                exchange.getResponseHeaders().set( "Content-Type" , "text/plain; version=0.0.4; charset=utf-8" );
+                if ( "HEAD".equals( exchange.getRequestMethod() ) ) {
+                    exchange.sendResponseHeaders( 200 , -1 );
+                    return;
+                }
+                exchange.sendResponseHeaders( 200 , body.length );
+                try ( OutputStream out = exchange.getResponseBody() ) {
+                    out.write( body );
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Registers an MBean named {@link #OBJECT_NAME} with the platform MBean server that exposes
+     * every counter as an attribute and every histogram as attributes
+     * <code>count</code>, <code>meanMillis</code>, <code>p50Millis</code>, <code>p99Millis</code>
+     * and <code>maxMillis</code>.
+     *
+     * <p>Attribute names are the Prometheus series name followed by the histogram attribute
+     * (if any), e.g. <code>tplink_request_duration_seconds{device="10.0.0.1",command="PLUG_ON"}.p99Millis</code>.</p>
+     *
+     * @return
+     * @throws JMException
+     */
+    public ObjectName registerMBean() throws JMException
+    {
+        final ObjectName name = new ObjectName( OBJECT_NAME );
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if ( ! server.isRegistered( name ) ) {
+            server.registerMBean( new MetricsMBean() , name );
+        }
+        return name;
+    }
+
+    private final class MetricsMBean implements DynamicMBean
+    {
+        private final String[] histogramAttributes = { "count" , "meanMillis" , "p50Millis" , "p99Millis" , "maxMillis" };
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException
+        {
+            // <name>[{<labels>}][.<histogram attribute>]
+            final int open = attribute.indexOf('{');
+            final int close = attribute.lastIndexOf('}');
+            final String familyName;
+            final String labels;
+            final String suffix;
+            if ( open != -1 && close > open )
+            {
+                familyName = attribute.substring( 0 , open );
+                labels = attribute.substring( open+1 , close );
+                suffix = attribute.substring( close+1 );
+            }
+            else
+            {
+                final int dot = attribute.indexOf('.');
+                familyName = dot == -1 ? attribute : attribute.substring( 0 , dot );
+                labels = "";
+                suffix = dot == -1 ? "" : attribute.substring( dot );
+            }
+            final Family family = families.get( familyName );
+            final Object metric = family == null ? null : family.series.get( labels );
+            if ( metric instanceof LongAdder && suffix.isEmpty() ) {
+                return ((LongAdder) metric).sum();
+            }
+            if ( metric instanceof LatencyHistogram )
+            {
+                final LatencyHistogram histogram = (LatencyHistogram) metric;
+                switch( suffix )
+                {
+                    case ".count":      return histogram.getCount();
+                    case ".meanMillis": return histogram.getMeanMillis();
+                    case ".p50Millis":  return histogram.getPercentileMillis( 0.5 );
+                    case ".p99Millis":  return histogram.getPercentileMillis( 0.99 );
+                    case ".maxMillis":  return histogram.getMaxNanos() / 1e6;
+                    default:
+                }
+            }
+            throw new AttributeNotFoundException( attribute );
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes)
+        {
+            final AttributeList result = new AttributeList();
+            for ( String attribute : attributes )
+            {
+                try {
+                    result.add( new Attribute( attribute , getAttribute( attribute ) ) );
+                } catch (AttributeNotFoundException e) {
+                    // skip, as required by the DynamicMBean contract
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException( "Attribute "+attribute.getName()+" is read-only" );
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException( new NoSuchMethodException( actionName ) );
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo()
+        {
+            final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for ( Family family : new TreeMap<>( families ).values() )
+            {
+                for ( String labels : new TreeMap<>( family.series ).keySet() )
+                {
+                    final String series = family.name+( labels.isEmpty() ? "" : "{"+labels+"}" );
+                    final String help = HELP.getOrDefault( family.name , family.name );
+                    if ( family.type == Type.COUNTER ) {
+                        attributes.add( new MBeanAttributeInfo( series , "long" , help , true , false , false ) );
+                        continue;
+                    }
+                    for ( String attribute : histogramAttributes ) {
+                        attributes.add( new MBeanAttributeInfo( series+"."+attribute , "count".equals( attribute ) ? "long" : "double" , help , true , false , false ) );
+                    }
+                }
+            }
+            return new MBeanInfo( Metrics.class.getName() , "Latency histograms and counters" ,
+                    attributes.toArray( new MBeanAttributeInfo[ attributes.size() ] ) , null , null , null );
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.json.JSONObject;
+
+import de.codesourcery.jsonparser.Identifier;
+import de.codesourcery.tplink.TPLink.Command;
+
+/**
+ * Combines several {@link Command}s into a single request.
+ *
+ * <p>The plugs accept any number of <code>{ "module" : { "method" : ... } }</code> pairs in a single request,
+ * this class merges the commands' JSON into one object and splits the combined response back into
+ * per-command responses. Commands conflict (and thus cannot be combined) if they invoke the same
+ * method of the same module.</p>
+ *
+ * <p>Instances are immutable and thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class MultiCommand
+{
+    private final List<Command> commands;
+    // module -> methods, per command
+    private final Map<Command,Map<String,List<String>>> methods = new LinkedHashMap<>();
+    private final boolean altersDeviceState;
+    private final boolean idempotent;
+    private final boolean slow;
+
+    // pre-computed JSON/frame if none of the commands has placeholders
+    private final String json;
+    private final byte[] frame;
+
+    public MultiCommand(Command... commands) {
+        this( Arrays.asList( commands ) );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param commands
+     * @throws IllegalArgumentException if the list is empty, contains duplicates or conflicting commands
+     */
+    public MultiCommand(Collection<Command> commands)
+    {
+        if ( commands.isEmpty() ) {
+            throw new IllegalArgumentException("Need at least one command");
+        }
+        this.commands = Collections.unmodifiableList( new ArrayList<>( commands ) );
+
+        final Map<String,Command> seen = new LinkedHashMap<>();
+        boolean altersState = false;
+        boolean idempotent = true;
+        boolean slow = false;
+        boolean constant = true;
+        for ( Command cmd : this.commands )
+        {
+            if ( methods.containsKey( cmd ) ) {
+                throw new IllegalArgumentException("Duplicate command "+cmd);
+            }
+            altersState |= cmd.altersDeviceState;
+            idempotent &= cmd.idempotent;
+            slow |= HealthTracker.isSlowCommand( cmd );
+            constant &= cmd.template.isConstant();
+
+            // resolve placeholders with dummy values, just need the structure
+            final JSONObject obj = new JSONObject( cmd.template.resolve( id -> "0" ) );
+            final Map<String,List<String>> modules = new LinkedHashMap<>();
+            for ( String module : obj.keySet() )
+            {
+                final List<String> list = new ArrayList<>( obj.getJSONObject( module ).keySet() );
+                for ( String method : list )
+                {
+                    final Command existing = seen.put( module+"."+method , cmd );
+                    if ( existing != null ) {
+                        throw new IllegalArgumentException("Commands "+existing+" and "+cmd+" both invoke "+module+"."+method);
+                    }
+                }
+                modules.put( module , list );
+            }
+            methods.put( cmd , modules );
+        }
+        this.altersDeviceState = altersState;
+        this.idempotent = idempotent;
+        this.slow = slow;
+        if ( constant ) {
+            this.json = toJSON( id -> null );
+            this.frame = AutokeyCipher.encryptFrame( json );
+        } else {
+            this.json = null;
+            this.frame = null;
+        }
+    }
+
+    public List<Command> getCommands()
+    {
+        return commands;
+    }
+
+    /**
+     * Returns whether any of the commands alters the device state.
+     *
+     * @return
+     */
+    public boolean altersDeviceState()
+    {
+        return altersDeviceState;
+    }
+
+    /**
+     * Returns whether all of the commands are idempotent.
+     *
+     * @return
+     * @see Command#idempotent
+     */
+    public boolean isIdempotent()
+    {
+        return idempotent;
+    }
+
+    /**
+     * Returns whether any of the commands is known to take long to complete.
+     *
+     * @return
+     * @see HealthTracker#isSlowCommand(Command)
+     */
+    public boolean isSlow()
+    {
+        return slow;
+    }
+
+    /**
+     * Returns the combined JSON request.
+     *
+     * @param placeholderResolver invoked once per distinct placeholder name, commands sharing a placeholder get the same value
+     * @return
+     */
+    public String toJSON(Function<Identifier,String> placeholderResolver)
+    {
+        if ( json != null ) {
+            return json;
+        }
+        final Map<String,String> values = new HashMap<>();
+        final Function<Identifier,String> resolver = id -> 
+        {
+            String value = values.get( id.name );
+            if ( value == null ) 
+            {
+                value = placeholderResolver.apply( id );
+                values.put( id.name , value );
+            }
+            return value;
+        };
+        final JSONObject result = new JSONObject();
+        for ( Command cmd : commands )
+        {
+            final JSONObject obj = new JSONObject( cmd.template.resolve( resolver ) );
+            for ( String module : obj.keySet() )
+            {
+                final JSONObject src = obj.getJSONObject( module );
+                JSONObject dst = result.optJSONObject( module );
+                if ( dst == null ) {
+                    dst = new JSONObject();
+                    result.put( module , dst );
+                }
+                for ( String method : src.keySet() ) {
+                    dst.put( method , src.get( method ) );
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns the encrypted request frame for JSON returned by {@link #toJSON(Function)}.
+     *
+     * @param resolvedJson
+     * @return
+     */
+    byte[] toFrame(String resolvedJson)
+    {
+        if ( resolvedJson == json ) { // identity check on purpose
+            return frame;
+        }
+        return AutokeyCipher.encryptFrame( resolvedJson );
+    }
+
+    /**
+     * Splits a combined response into per-command responses.
+     *
+     * <p>Each per-command response has the same structure as if the command had been sent on its own.
+     * If the device reported an error for a whole module (e.g. because the module is not supported),
+     * the module's error object is included in the response of every command using that module.</p>
+     *
+     * @param response
+     * @return responses by command, iteration order matches {@link #getCommands()}
+     */
+    public Map<Command,String> split(String response)
+    {
+        final JSONObject obj = new JSONObject( response );
+        final Map<Command,String> result = new LinkedHashMap<>();
+        for ( Map.Entry<Command,Map<String,List<String>>> entry : methods.entrySet() )
+        {
+            final JSONObject cmdResponse = new JSONObject();
+            for ( Map.Entry<String,List<String>> moduleEntry : entry.getValue().entrySet() )
+            {
+                final String module = moduleEntry.getKey();
+                final JSONObject moduleResponse = obj.optJSONObject( module );
+                if ( moduleResponse == null ) {
+                    continue;
+                }
+                final JSONObject dst = new JSONObject();
+                boolean found = false;
+                for ( String method : moduleEntry.getValue() )
+                {
+                    if ( moduleResponse.has( method ) ) {
+                        dst.put( method , moduleResponse.get( method ) );
+                        found = true;
+                    }
+                }
+                cmdResponse.put( module , found ? dst : moduleResponse );
+            }
+            result.put( entry.getKey() , cmdResponse.toString() );
+        }
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MultiCommand"+commands;
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A TCP connection to a single plug that exchanges length-prefixed request/response frames.
+ *
+ * <p>Connect and read timeouts are taken from the device's {@link DeviceHealth}.</p>
+ *
+ * <p>Instances are not thread-safe, see {@link ConnectionPool} for sharing connections.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class PlugConnection implements AutoCloseable
+{
+    /**
+     * Size of the big-endian length header that precedes
+     * every request/response payload (TCP only).
+     */
+    public static final int HEADER_SIZE = 4;
+
+    /**
+     * Upper bound for response payloads, guards against
+     * allocating huge buffers because of a garbled length header.
+     */
+    public static final int MAX_RESPONSE_SIZE = 1024*1024;
+
+    private final InetAddress address;
+    private final DeviceHealth health;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private long lastUsed = System.currentTimeMillis();
+    private int useCount;
+    // whether the request of the last exchange has been sent completely
+    private boolean requestSent;
+
+    public PlugConnection(InetAddress address) throws IOException
+    {
+        this.address = address;
+        this.health = HealthTracker.getDefault().get( address );
+        this.socket = new Socket();
+        boolean success = false;
+        try
+        {
+            final long start = System.nanoTime();
+            socket.connect( new InetSocketAddress( address , TPLink.PORT ) , (int) health.getConnectTimeoutMillis() );
+            health.connected( System.nanoTime() - start );
+            socket.setTcpNoDelay( true );
+            this.out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+            this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+            success = true;
+        }
+        finally
+        {
+            if ( ! success ) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Sends an encrypted request frame and returns the (still encrypted) response payload.
+     *
+     * @param request request including the length header
+     * @return response payload without the length header
+     * @throws IOException
+     */
+    public byte[] exchange(byte[] request) throws IOException
+    {
+        return exchange( null , false , request );
+    }
+
+    /**
+     * Sends an encrypted request frame and returns the (still encrypted) response payload.
+     *
+     * @param command command name, used to pick the read timeout (see {@link DeviceHealth#getReadTimeoutMillis(String,boolean)}), may be <code>null</code>
+     * @param slow whether the command is known to take long to complete
+     * @param request request including the length header
+     * @return response payload without the length header
+     * @throws IOException
+     */
+    public byte[] exchange(String command,boolean slow,byte[] request) throws IOException
+    {
+        useCount++;
+        requestSent = false;
+        socket.setSoTimeout( (int) health.getReadTimeoutMillis( command , slow ) );
+        final long start = System.nanoTime();
+        out.write( request , 0 , request.length );
+        out.flush();
+        requestSent = true;
+        final byte[] result = readResponse( in );
+        health.responded( command , System.nanoTime() - start );
+        lastUsed = System.currentTimeMillis();
+        return result;
+    }
+
+    /**
+     * Reads a single length-prefixed response frame.
+     *
+     * @param in
+     * @return the (still encrypted) payload without the length header
+     * @throws IOException
+     */
+    static byte[] readResponse(DataInputStream in) throws IOException
+    {
+        final int length = in.readInt();
+        if ( length < 0 || length > MAX_RESPONSE_SIZE ) {
+            throw new IOException("Received invalid response length: "+length);
+        }
+        final byte[] buffer = new byte[ length ];
+        in.readFully( buffer );
+        return buffer;
+    }
+
+    /**
+     * Returns whether this connection has been used for at least one
+     * request before.
+     *
+     * <p>A failure on a reused connection most likely means the plug
+     * silently dropped it while it was idle.</p>
+     * @return
+     */
+    public boolean isReused() {
+        return useCount > 1;
+    }
+
+    /**
+     * Returns whether the request of the last exchange has been sent completely.
+     *
+     * <p>If a failure happened after the request has been sent, the plug might already have executed it.</p>
+     * @return
+     */
+    public boolean isRequestSent() {
+        return requestSent;
+    }
+
+    public long getLastUsed()
+    {
+        return lastUsed;
+    }
+
+    public InetAddress getAddress()
+    {
+        return address;
+    }
+
+    /**
+     * Best-effort check whether the connection is still usable.
+     *
+     * <p>Plugs may close idle connections without notice and this can only
+     * be reliably detected by actually using the connection, see
+     * {@link ConnectionPool} for how this is handled.</p>
+     * @return
+     */
+    public boolean isAlive()
+    {
+        if ( socket.isClosed() || ! socket.isConnected() || socket.isInputShutdown() || socket.isOutputShutdown() ) {
+            return false;
+        }
+        try
+        {
+            // unsolicited data means the connection is out of sync
+            return in.available() == 0 && socket.getInputStream().available() == 0;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PlugConnection[ "+address+" ]";
+    }
+}
@@ -0,0 +1,784 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves any number of {@link VirtualPlug}s over TCP (length-prefixed, encrypted frames) and
+ * UDP (discovery, encrypted datagrams without header) so clients can be load tested without real devices.
+ *
+ * <p>Plugs either listen on consecutive loopback addresses using the real port
+ * ({@link #addPlugsOnAddresses(InetAddress, int)}, Linux routes all of 127.0.0.0/8 to the loopback interface)
+ * or on consecutive ports of a single address ({@link #addPlugsOnPorts(InetAddress, int, int)}).
+ * All sockets are handled by a single event loop thread, each plug needs two file descriptors
+ * plus one per open connection.</p>
+ *
+ * <p>Network behaviour can be tuned using {@link #setLatencyMillis(long) latency},
+ * {@link #setJitterMillis(long) jitter}, {@link #setPacketLossRate(double) request loss},
+ * {@link #setBytesPerSecond(int) throughput} (emulates slow readers/writers by transferring data in small chunks),
+ * {@link #setIdleTimeoutMillis(long) idle timeout} and {@link #setMaxRequestsPerConnection(int) connection reuse}.
+ * Settings take effect for subsequent requests.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class PlugSimulator implements AutoCloseable
+{
+    /**
+     * First address used by {@link #addPlugsOnAddresses(InetAddress, int)} if no address is given.
+     */
+    public static final String DEFAULT_FIRST_ADDRESS = "127.0.1.1";
+
+    // granularity of throughput limiting
+    private static final int TICKS_PER_SECOND = 100;
+
+    private final Selector selector;
+    private final Thread eventLoop;
+    private final Queue<Runnable> pendingActions = new ConcurrentLinkedQueue<>();
+    private final List<VirtualPlug> plugs = new CopyOnWriteArrayList<>();
+
+    // only accessed by the event loop thread
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private final ByteBuffer datagramBuffer = ByteBuffer.allocate( 64*1024 );
+    private final Random random = new Random();
+    private long taskSequence;
+
+    private volatile boolean running = true;
+
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile double packetLossRate;
+    private volatile int bytesPerSecond;
+    private volatile long idleTimeoutMillis;
+    private volatile int maxRequestsPerConnection;
+    private volatile boolean udpEnabled = true;
+
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private static final class Task implements Comparable<Task>
+    {
+        public final long due;
+        public final long sequence;
+        public final Runnable action;
+
+        public Task(long due, long sequence, Runnable action)
+        {
+            this.due = due;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Task o)
+        {
+            final int result = Long.compare( due , o.due );
+            return result != 0 ? result : Long.compare( sequence , o.sequence );
+        }
+    }
+
+    /**
+     * Create simulator and start the event loop thread.
+     *
+     * @throws IOException
+     */
+    public PlugSimulator() throws IOException
+    {
+        selector = Selector.open();
+        eventLoop = new Thread( this::run , "plug-simulator" );
+        eventLoop.setDaemon( true );
+        eventLoop.start();
+    }
+
+    /**
+     * Adds plugs listening on {@link TPLink#PORT} of consecutive IPv4 addresses (skipping addresses
+     * ending in .0 and .255).
+     *
+     * @param firstAddress
+     * @param count
+     * @return the plugs, plug <code>n</code> is created with index <code>n</code> (see {@link VirtualPlug#VirtualPlug(int)})
+     * @throws IOException
+     */
+    public List<VirtualPlug> addPlugsOnAddresses(InetAddress firstAddress,int count) throws IOException
+    {
+        if ( ! ( firstAddress instanceof Inet4Address ) ) {
+            throw new IllegalArgumentException("Only IPv4 addresses are supported");
+        }
+        final List<VirtualPlug> result = new ArrayList<>( count );
+        final byte[] bytes = firstAddress.getAddress();
+        int address = ( bytes[0] & 0xff ) << 24 | ( bytes[1] & 0xff ) << 16 | ( bytes[2] & 0xff ) << 8 | ( bytes[3] & 0xff );
+        for ( int i = 0 ; i < count ; i++ , address++ )
+        {
+            while ( ( address & 0xff ) == 0 || ( address & 0xff ) == 0xff ) {
+                address++;
+            }
+            final InetAddress adr = InetAddress.getByAddress( new byte[] { (byte) ( address >>> 24 ) , (byte) ( address >>> 16 ) , (byte) ( address >>> 8 ) , (byte) address } );
+            result.add( addPlug( new InetSocketAddress( adr , TPLink.PORT ) , new VirtualPlug( plugs.size() ) ) );
+        }
+        return result;
+    }
+
+    /**
+     * Adds plugs listening on consecutive ports of a single address.
+     *
+     * @param address
+     * @param firstPort first port, 0 to use ephemeral ports
+     * @param count
+     * @return the plugs, use {@link VirtualPlug#getAddress()} to find out the ports
+     * @throws IOException
+     */
+    public List<VirtualPlug> addPlugsOnPorts(InetAddress address,int firstPort,int count) throws IOException
+    {
+        final List<VirtualPlug> result = new ArrayList<>( count );
+        for ( int i = 0 ; i < count ; i++ ) {
+            result.add( addPlug( new InetSocketAddress( address , firstPort == 0 ? 0 : firstPort + i ) , new VirtualPlug( plugs.size() ) ) );
+        }
+        return result;
+    }
+
+    /**
+     * Starts serving a plug.
+     *
+     * @param address TCP (and UDP) address to listen on, port 0 to use an ephemeral port
+     * @param plug
+     * @return the plug
+     * @throws IOException
+     */
+    public VirtualPlug addPlug(InetSocketAddress address,VirtualPlug plug) throws IOException
+    {
+        if ( ! running ) {
+            throw new IllegalStateException("Simulator has been closed");
+        }
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        DatagramChannel udp = null;
+        try
+        {
+            server.setOption( StandardSocketOptions.SO_REUSEADDR , Boolean.TRUE );
+            server.bind( address , 1024 );
+            server.configureBlocking( false );
+            final InetSocketAddress bound = (InetSocketAddress) server.getLocalAddress();
+            if ( udpEnabled )
+            {
+                udp = DatagramChannel.open();
+                udp.bind( bound );
+                udp.configureBlocking( false );
+            }
+            plug.setAddress( bound );
+        }
+        catch(IOException e)
+        {
+            closeQuietly( server );
+            closeQuietly( udp );
+            throw new IOException("Failed to bind "+address+": "+e.getMessage(),e);
+        }
+        final DatagramChannel datagramChannel = udp;
+        execute( () ->
+        {
+            try
+            {
+                server.register( selector , SelectionKey.OP_ACCEPT , new Listener( server , plug ) );
+                if ( datagramChannel != null ) {
+                    datagramChannel.register( selector , SelectionKey.OP_READ , new DatagramEndpoint( datagramChannel , plug ) );
+                }
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+                closeQuietly( server );
+                closeQuietly( datagramChannel );
+            }
+        });
+        plugs.add( plug );
+        return plug;
+    }
+
+    /**
+     * Returns all plugs served by this simulator.
+     *
+     * @return
+     */
+    public List<VirtualPlug> getPlugs() {
+        return Collections.unmodifiableList( plugs );
+    }
+
+    /**
+     * Sets the time it takes until a reply is sent.
+     *
+     * @param latencyMillis
+     */
+    public void setLatencyMillis(long latencyMillis)
+    {
+        if ( latencyMillis < 0 ) {
+            throw new IllegalArgumentException("Latency must be >= 0");
+        }
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * Sets the max. random deviation from the configured latency.
+     *
+     * @param jitterMillis
+     */
+    public void setJitterMillis(long jitterMillis)
+    {
+        if ( jitterMillis < 0 ) {
+            throw new IllegalArgumentException("Jitter must be >= 0");
+        }
+        this.jitterMillis = jitterMillis;
+    }
+
+    public long getJitterMillis() {
+        return jitterMillis;
+    }
+
+    /**
+     * Sets the probability that a request is silently ignored (TCP: the connection stays open
+     * but no reply is sent).
+     *
+     * @param packetLossRate 0...1
+     */
+    public void setPacketLossRate(double packetLossRate)
+    {
+        if ( packetLossRate < 0 || packetLossRate > 1 ) {
+            throw new IllegalArgumentException("Packet loss rate must be in range [0,1]");
+        }
+        this.packetLossRate = packetLossRate;
+    }
+
+    public double getPacketLossRate() {
+        return packetLossRate;
+    }
+
+    /**
+     * Limits how fast each TCP connection reads requests and writes replies.
+     *
+     * @param bytesPerSecond max. bytes per second and direction, 0 for no limit
+     */
+    public void setBytesPerSecond(int bytesPerSecond)
+    {
+        if ( bytesPerSecond < 0 ) {
+            throw new IllegalArgumentException("Bytes per second must be >= 0");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Sets the time after which idle connections are closed by the simulated plug (without notice, like the real device).
+     *
+     * @param idleTimeoutMillis timeout, 0 to keep connections open until the client closes them
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis)
+    {
+        if ( idleTimeoutMillis < 0 ) {
+            throw new IllegalArgumentException("Idle timeout must be >= 0");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Sets the number of requests after which a connection is closed.
+     *
+     * @param maxRequestsPerConnection max. requests, 0 for no limit
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection)
+    {
+        if ( maxRequestsPerConnection < 0 ) {
+            throw new IllegalArgumentException("Max. requests per connection must be >= 0");
+        }
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    /**
+     * Sets whether plugs added afterwards answer UDP discovery requests.
+     *
+     * @param udpEnabled
+     */
+    public void setUdpEnabled(boolean udpEnabled) {
+        this.udpEnabled = udpEnabled;
+    }
+
+    public boolean isUdpEnabled() {
+        return udpEnabled;
+    }
+
+    /**
+     * Seeds the random number generator used for jitter and packet loss.
+     *
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        random.setSeed( seed );
+    }
+
+    /**
+     * Returns the number of TCP connections accepted so far.
+     *
+     * @return
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Returns the number of requests received so far (including dropped ones).
+     *
+     * @return
+     */
+    public long getRequestCount() {
+        return requestCount.get() + droppedCount.get();
+    }
+
+    /**
+     * Returns the number of requests that were dropped.
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stops the event loop thread and closes all sockets.
+     */
+    @Override
+    public void close()
+    {
+        running = false;
+        try {
+            selector.wakeup();
+        } catch(ClosedSelectorException e) {
+            // ok
+        }
+        if ( eventLoop != Thread.currentThread() )
+        {
+            try {
+                eventLoop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel channel)
+    {
+        if ( channel != null )
+        {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void execute(Runnable action)
+    {
+        pendingActions.add( action );
+        try {
+            selector.wakeup();
+        } catch(ClosedSelectorException e) {
+            // closed
+        }
+    }
+
+    private void schedule(long delayMillis,Runnable action) {
+        tasks.add( new Task( System.currentTimeMillis() + delayMillis , taskSequence++ , action ) );
+    }
+
+    private long nextDelay()
+    {
+        final long jitter = jitterMillis;
+        final long delay = latencyMillis + ( jitter > 0 ? (long) ( ( random.nextDouble() * 2 - 1 ) * jitter ) : 0 );
+        return Math.max( 0 , delay );
+    }
+
+    private boolean shouldDrop()
+    {
+        final double rate = packetLossRate;
+        if ( rate > 0 && random.nextDouble() < rate ) {
+            droppedCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private String handle(VirtualPlug plug,byte[] data,int offset,int length)
+    {
+        requestCount.incrementAndGet();
+        new AutokeyCipher().decrypt( data , offset , length );
+        return plug.handle( new String( data , offset , length , StandardCharsets.UTF_8 ) );
+    }
+
+    private void run()
+    {
+        try
+        {
+            while ( running )
+            {
+                final Task next = tasks.peek();
+                if ( next == null ) {
+                    selector.select();
+                } else {
+                    final long delay = next.due - System.currentTimeMillis();
+                    if ( delay > 0 ) {
+                        selector.select( delay );
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+
+                Runnable action;
+                while ( ( action = pendingActions.poll() ) != null ) {
+                    action.run();
+                }
+
+                for ( Iterator<SelectionKey> it = selector.selectedKeys().iterator() ; it.hasNext() ; )
+                {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    if ( key.isValid() ) {
+                        ((Handler) key.attachment()).handle( key );
+                    }
+                }
+
+                final long now = System.currentTimeMillis();
+                while ( ! tasks.isEmpty() && tasks.peek().due <= now ) {
+                    tasks.poll().action.run();
+                }
+            }
+        }
+        catch(IOException | RuntimeException e)
+        {
+            if ( running ) {
+                e.printStackTrace();
+            }
+        }
+        finally
+        {
+            running = false;
+            for ( SelectionKey key : selector.keys() ) {
+                closeQuietly( key.channel() );
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private interface Handler
+    {
+        void handle(SelectionKey key);
+    }
+
+    private final class Listener implements Handler
+    {
+        private final ServerSocketChannel server;
+        private final VirtualPlug plug;
+
+        public Listener(ServerSocketChannel server, VirtualPlug plug)
+        {
+            this.server = server;
+            this.plug = plug;
+        }
+
+        @Override
+        public void handle(SelectionKey key)
+        {
+            try
+            {
+                SocketChannel channel;
+                while ( ( channel = server.accept() ) != null )
+                {
+                    channel.configureBlocking( false );
+                    channel.setOption( StandardSocketOptions.TCP_NODELAY , Boolean.TRUE );
+                    final Connection con = new Connection( channel , plug );
+                    con.key = channel.register( selector , SelectionKey.OP_READ , con );
+                    con.touch();
+                    connectionCount.incrementAndGet();
+                }
+            }
+            catch(IOException e)
+            {
+                // most likely out of file descriptors, try again later
+                key.interestOps( 0 );
+                schedule( 100 , () -> {
+                    if ( key.isValid() ) {
+                        key.interestOps( SelectionKey.OP_ACCEPT );
+                    }
+                });
+            }
+        }
+    }
+
+    private final class DatagramEndpoint implements Handler
+    {
+        private final DatagramChannel channel;
+        private final VirtualPlug plug;
+
+        public DatagramEndpoint(DatagramChannel channel, VirtualPlug plug)
+        {
+            this.channel = channel;
+            this.plug = plug;
+        }
+
+        @Override
+        public void handle(SelectionKey key)
+        {
+            try
+            {
+                SocketAddress sender;
+                while ( ( sender = receive() ) != null )
+                {
+                    if ( shouldDrop() ) {
+                        continue;
+                    }
+                    final String reply = PlugSimulator.this.handle( plug , datagramBuffer.array() , 0 , datagramBuffer.position() );
+                    final byte[] data = reply.getBytes( StandardCharsets.UTF_8 );
+                    new AutokeyCipher().encrypt( data , 0 , data.length );
+                    final SocketAddress destination = sender;
+                    schedule( nextDelay() , () ->
+                    {
+                        try {
+                            channel.send( ByteBuffer.wrap( data ) , destination );
+                        } catch (IOException e) {
+                            // like UDP, we don't care
+                        }
+                    });
+                }
+            }
+            catch(IOException e)
+            {
+                // ignore, UDP
+            }
+        }
+
+        private SocketAddress receive() throws IOException
+        {
+            datagramBuffer.clear();
+            return channel.receive( datagramBuffer );
+        }
+    }
+
+    private final class Connection implements Handler
+    {
+        private final SocketChannel channel;
+        private final VirtualPlug plug;
+        private final ByteBuffer header = ByteBuffer.allocate( PlugConnection.HEADER_SIZE );
+
+        public SelectionKey key;
+        private ByteBuffer payload;
+        private ByteBuffer out;
+        private int requests;
+        private long lastActivity;
+        private boolean closed;
+        // interest ops to restore after throttling
+        private int interestOps = SelectionKey.OP_READ;
+        private boolean throttled;
+
+        public Connection(SocketChannel channel, VirtualPlug plug)
+        {
+            this.channel = channel;
+            this.plug = plug;
+        }
+
+        public void touch()
+        {
+            lastActivity = System.currentTimeMillis();
+            final long timeout = idleTimeoutMillis;
+            if ( timeout > 0 ) {
+                schedule( timeout , this::checkIdle );
+            }
+        }
+
+        private void checkIdle()
+        {
+            final long timeout = idleTimeoutMillis;
+            if ( ! closed && timeout > 0 && out == null && header.position() == 0 && System.currentTimeMillis() - lastActivity >= timeout ) {
+                close();
+            }
+        }
+
+        @Override
+        public void handle(SelectionKey key)
+        {
+            try
+            {
+                if ( key.isReadable() ) {
+                    read();
+                } else if ( key.isWritable() ) {
+                    write();
+                }
+            }
+            catch(IOException e) {
+                close();
+            }
+        }
+
+        private void read() throws IOException
+        {
+            final ByteBuffer buffer = payload != null ? payload : header;
+            final int read = transfer( buffer , false );
+            if ( read == -1 ) {
+                close();
+                return;
+            }
+            if ( payload == null && ! header.hasRemaining() )
+            {
+                final int length = header.getInt( 0 );
+                if ( length < 0 || length > PlugConnection.MAX_RESPONSE_SIZE ) {
+                    close();
+                    return;
+                }
+                payload = ByteBuffer.allocate( length );
+            }
+            if ( payload != null && ! payload.hasRemaining() )
+            {
+                final byte[] request = payload.array();
+                payload = null;
+                header.clear();
+                touch();
+                if ( shouldDrop() ) {
+                    return; // keep reading, the client will time out
+                }
+                final byte[] frame = AutokeyCipher.encryptFrame( PlugSimulator.this.handle( plug , request , 0 , request.length ) );
+                setInterest( 0 );
+                final Runnable reply = () ->
+                {
+                    if ( ! closed ) {
+                        out = ByteBuffer.wrap( frame );
+                        setInterest( SelectionKey.OP_WRITE );
+                    }
+                };
+                final long delay = nextDelay();
+                if ( delay > 0 ) {
+                    schedule( delay , reply );
+                } else {
+                    reply.run();
+                }
+            }
+        }
+
+        private void write() throws IOException
+        {
+            transfer( out , true );
+            if ( out.hasRemaining() ) {
+                return;
+            }
+            out = null;
+            touch();
+            requests++;
+            final int maxRequests = maxRequestsPerConnection;
+            if ( maxRequests > 0 && requests >= maxRequests ) {
+                close();
+            } else {
+                setInterest( SelectionKey.OP_READ );
+            }
+        }
+
+        private void setInterest(int ops)
+        {
+            interestOps = ops;
+            if ( ! throttled && ! closed ) {
+                key.interestOps( ops );
+            }
+        }
+
+        /**
+         * Reads or writes, limited to the configured throughput.
+         */
+        private int transfer(ByteBuffer buffer,boolean write) throws IOException
+        {
+            final int limit = bytesPerSecond;
+            if ( limit <= 0 ) {
+                return write ? channel.write( buffer ) : channel.read( buffer );
+            }
+            final int oldLimit = buffer.limit();
+            buffer.limit( Math.min( oldLimit , buffer.position() + Math.max( 1 , limit / TICKS_PER_SECOND ) ) );
+            final int result;
+            try {
+                result = write ? channel.write( buffer ) : channel.read( buffer );
+            } finally {
+                buffer.limit( oldLimit );
+            }
+            if ( result > 0 )
+            {
+                // pause until the next tick
+                throttled = true;
+                key.interestOps( 0 );
+                schedule( 1000 / TICKS_PER_SECOND , () ->
+                {
+                    throttled = false;
+                    if ( ! closed ) {
+                        key.interestOps( interestOps );
+                    }
+                });
+            }
+            return result;
+        }
+
+        public void close()
+        {
+            closed = true;
+            key.cancel();
+            closeQuietly( channel );
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+
+/**
+ * Reply to {@link TPLink.Command#GET_CURRENT_AND_VOLATAGE} (HS110 only).
+ *
+ * <p>Supports both the hardware v1 format (<code>power</code>/<code>voltage</code>/<code>current</code>/<code>total</code>
+ * as floating-point W/V/A/kWh) and the v2 format (<code>power_mw</code>/<code>voltage_mv</code>/<code>current_ma</code>/<code>total_wh</code>).</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class RealtimeEmeter
+{
+    public static final ReplyDecoder<RealtimeEmeter> DECODER = RealtimeEmeter::decode;
+
+    public final long powerMilliWatts;
+    public final long voltageMilliVolts;
+    public final long currentMilliAmps;
+    public final long totalWattHours;
+
+    public RealtimeEmeter(long powerMilliWatts, long voltageMilliVolts, long currentMilliAmps, long totalWattHours)
+    {
+        this.powerMilliWatts = powerMilliWatts;
+        this.voltageMilliVolts = voltageMilliVolts;
+        this.currentMilliAmps = currentMilliAmps;
+        this.totalWattHours = totalWattHours;
+    }
+
+    /**
+     * Decodes a <code>emeter.get_realtime</code> response.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    public static RealtimeEmeter decode(byte[] data,int offset,int length) throws IOException
+    {
+        final JsonPullParser parser = ReplyDecoder.enter( data , offset , length , "emeter" , "get_realtime" );
+        long power = 0;
+        long voltage = 0;
+        long current = 0;
+        long total = 0;
+        long errorCode = 0;
+        String errorMessage = null;
+        while ( parser.nextField() )
+        {
+            if ( parser.isFieldName( "err_code" ) ) {
+                parser.next();
+                errorCode = parser.getLong();
+            } else if ( parser.isFieldName( "err_msg" ) ) {
+                errorMessage = parser.nextString();
+            } else if ( parser.isFieldName( "power_mw" ) ) {
+                parser.next();
+                power = Math.round( parser.getDouble() );
+            } else if ( parser.isFieldName( "power" ) ) {
+                parser.next();
+                power = Math.round( parser.getDouble() * 1000 );
+            } else if ( parser.isFieldName( "voltage_mv" ) ) {
+                parser.next();
+                voltage = Math.round( parser.getDouble() );
+            } else if ( parser.isFieldName( "voltage" ) ) {
+                parser.next();
+                voltage = Math.round( parser.getDouble() * 1000 );
+            } else if ( parser.isFieldName( "current_ma" ) ) {
+                parser.next();
+                current = Math.round( parser.getDouble() );
+            } else if ( parser.isFieldName( "current" ) ) {
+                parser.next();
+                current = Math.round( parser.getDouble() * 1000 );
+            } else if ( parser.isFieldName( "total_wh" ) ) {
+                parser.next();
+                total = Math.round( parser.getDouble() );
+            } else if ( parser.isFieldName( "total" ) ) {
+                parser.next();
+                total = Math.round( parser.getDouble() * 1000 );
+            } else {
+                parser.skipValue();
+            }
+        }
+        ReplyDecoder.checkError( "emeter" , "get_realtime" , errorCode , errorMessage );
+        return new RealtimeEmeter( power , voltage , current , total );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RealtimeEmeter[ power="+powerMilliWatts+" mW, voltage="+voltageMilliVolts+" mV, current="+currentMilliAmps+" mA, total="+totalWattHours+" Wh ]";
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+
+import de.codesourcery.tplink.JsonPullParser.Token;
+
+/**
+ * Turns a decrypted device response into a typed reply.
+ *
+ * @param <T> reply type
+ * @author tobias.gierke@code-sourcery.de
+ */
+@FunctionalInterface
+public interface ReplyDecoder<T>
+{
+    /**
+     * Decoder that only checks all <code>err_code</code> fields of a response.
+     */
+    public static final ReplyDecoder<Void> CHECK_ERRORS = (data,offset,length) ->
+    {
+        final JsonPullParser parser = new JsonPullParser( data , offset , length );
+        parser.expect( Token.START_OBJECT );
+        while ( parser.nextField() )
+        {
+            final String module = parser.getString();
+            if ( parser.next() == Token.START_OBJECT ) {
+                checkErrors( parser , module , null );
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return null;
+    };
+
+    /**
+     * Decodes a response.
+     *
+     * @param data UTF-8 encoded JSON
+     * @param offset
+     * @param length
+     * @return
+     * @throws DeviceException if the response contains an error code
+     * @throws IOException if the response is malformed
+     */
+    public T decode(byte[] data,int offset,int length) throws IOException;
+
+    /**
+     * Positions a parser at the start of the object holding the result of a method call.
+     *
+     * <p>Errors reported for the whole module (like <code>{"emeter":{"err_code":-1,"err_msg":"module not support"}}</code>)
+     * are turned into a {@link DeviceException}.</p>
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @param module module name, like <code>system</code>
+     * @param method method name, like <code>get_sysinfo</code>
+     * @return parser, the current token is the START_OBJECT of the method's result
+     * @throws IOException
+     */
+    public static JsonPullParser enter(byte[] data,int offset,int length,String module,String method) throws IOException
+    {
+        final JsonPullParser parser = new JsonPullParser( data , offset , length );
+        parser.expect( Token.START_OBJECT );
+        while ( parser.nextField() )
+        {
+            if ( ! parser.isFieldName( module ) ) {
+                parser.skipValue();
+                continue;
+            }
+            parser.expect( Token.START_OBJECT );
+            long errorCode = 0;
+            String errorMessage = null;
+            while ( parser.nextField() )
+            {
+                if ( parser.isFieldName( method ) )
+                {
+                    parser.expect( Token.START_OBJECT );
+                    return parser;
+                }
+                if ( parser.isFieldName( "err_code" ) ) {
+                    parser.next();
+                    errorCode = parser.getLong();
+                } else if ( parser.isFieldName( "err_msg" ) ) {
+                    errorMessage = parser.nextString();
+                } else {
+                    parser.skipValue();
+                }
+            }
+            checkError( module , null , errorCode , errorMessage );
+            break;
+        }
+        throw new IOException("Response contains no result for "+module+"."+method);
+    }
+
+    /**
+     * Throws a {@link DeviceException} if an error code is not zero.
+     *
+     * @param module
+     * @param method
+     * @param errorCode
+     * @param errorMessage
+     * @throws DeviceException
+     */
+    public static void checkError(String module,String method,long errorCode,String errorMessage) throws DeviceException
+    {
+        if ( errorCode != 0 ) {
+            throw new DeviceException( module , method , errorCode , errorMessage );
+        }
+    }
+
+    /**
+     * Checks the <code>err_code</code> fields of a module or method result.
+     *
+     * @param parser parser positioned at the START_OBJECT of the module or method result
+     * @param module
+     * @param method method name or <code>null</code> to check a module and all of its method results
+     * @throws IOException
+     */
+    public static void checkErrors(JsonPullParser parser,String module,String method) throws IOException
+    {
+        long errorCode = 0;
+        String errorMessage = null;
+        while ( parser.nextField() )
+        {
+            if ( parser.isFieldName( "err_code" ) ) {
+                parser.next();
+                errorCode = parser.getLong();
+            } else if ( parser.isFieldName( "err_msg" ) ) {
+                errorMessage = parser.nextString();
+            }
+            else if ( method == null )
+            {
+                final String name = parser.getString();
+                if ( parser.next() == Token.START_OBJECT ) {
+                    checkErrors( parser , module , name );
+                } else {
+                    parser.skipChildren();
+                }
+            } else {
+                parser.skipValue();
+            }
+        }
+        checkError( module , method , errorCode , errorMessage );
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache for HTTP responses, keyed by URL.
+ *
+ * <p>Entries keep the <code>ETag</code> / <code>Last-Modified</code> validators of the response
+ * they were created from so they can be revalidated using conditional requests.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@voipfuture.com
+ */
+final class ResponseCache<T>
+{
+    private final LinkedHashMap<String,Entry<T>> entries = new LinkedHashMap<String,Entry<T>>(16,0.75f,true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,ResponseCache.Entry<T>> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private int maxEntries;
+
+    /**
+     * A cached response.
+     */
+    public static final class Entry<T>
+    {
+        public final T value;
+        public final String etag;
+        public final String lastModified;
+        private volatile long validatedAt = System.currentTimeMillis();
+
+        public Entry(T value, String etag, String lastModified)
+        {
+            this.value = value;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * Marks this entry as being up-to-date (server responded with '304 Not Modified').
+         */
+        public void validated() {
+            validatedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns whether this entry may be used without asking the server.
+         *
+         * @param ttlMillis
+         * @return
+         */
+        public boolean isFresh(long ttlMillis) {
+            return ( System.currentTimeMillis() - validatedAt ) < ttlMillis;
+        }
+    }
+
+    public ResponseCache(int maxEntries)
+    {
+        setMaxEntries( maxEntries );
+    }
+
+    public synchronized Entry<T> get(String url) {
+        return entries.get( url );
+    }
+
+    public synchronized void put(String url,Entry<T> entry)
+    {
+        if ( maxEntries > 0 ) {
+            entries.put( url , entry );
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void setMaxEntries(int maxEntries)
+    {
+        if ( maxEntries < 0 ) {
+            throw new IllegalArgumentException("Max. entries must be >= 0");
+        }
+        this.maxEntries = maxEntries;
+        while ( entries.size() > maxEntries ) {
+            entries.remove( entries.keySet().iterator().next() );
+        }
+    }
+
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+}
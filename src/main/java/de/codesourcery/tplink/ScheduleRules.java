@@ -0,0 +1,204 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.codesourcery.tplink.JsonPullParser.Token;
+
+/**
+ * Reply to {@link TPLink.Command#GET_SCHEDULE_RULES}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ScheduleRules
+{
+    public static final ReplyDecoder<ScheduleRules> DECODER = ScheduleRules::decode;
+
+    /**
+     * Whether the schedule is enabled at all.
+     */
+    public final boolean enabled;
+    public final List<Rule> rules;
+
+    /**
+     * A single schedule rule.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Rule
+    {
+        public final String id;
+        public final String name;
+        public final boolean enabled;
+        /**
+         * Days of week the rule applies to, index 0 is Sunday.
+         */
+        public final boolean[] weekdays;
+        public final boolean repeat;
+        /**
+         * Action at start time (0 = off, 1 = on, -1 = none).
+         */
+        public final int startAction;
+        /**
+         * Start time in minutes after midnight.
+         */
+        public final int startMinutes;
+        /**
+         * Action at end time (0 = off, 1 = on, -1 = none).
+         */
+        public final int endAction;
+        /**
+         * End time in minutes after midnight.
+         */
+        public final int endMinutes;
+
+        public Rule(String id, String name, boolean enabled, boolean[] weekdays, boolean repeat, int startAction, int startMinutes, int endAction, int endMinutes)
+        {
+            this.id = id;
+            this.name = name;
+            this.enabled = enabled;
+            this.weekdays = weekdays;
+            this.repeat = repeat;
+            this.startAction = startAction;
+            this.startMinutes = startMinutes;
+            this.endAction = endAction;
+            this.endMinutes = endMinutes;
+        }
+
+        @Override
+        public String toString()
+        {
+            final StringBuilder days = new StringBuilder();
+            for ( int i = 0 ; i < weekdays.length ; i++ ) {
+                days.append( weekdays[i] ? "SMTWTFS".charAt( i ) : '-' );
+            }
+            return "Rule[ id="+id+", name="+name+", enabled="+enabled+", days="+days+", start="+startMinutes/60+":"+String.format("%02d",startMinutes%60)+
+                    " -> "+startAction+( endAction == -1 ? "" : ", end="+endMinutes/60+":"+String.format("%02d",endMinutes%60)+" -> "+endAction )+" ]";
+        }
+    }
+
+    public ScheduleRules(boolean enabled, List<Rule> rules)
+    {
+        this.enabled = enabled;
+        this.rules = Collections.unmodifiableList( rules );
+    }
+
+    /**
+     * Decodes a <code>schedule.get_rules</code> response.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    public static ScheduleRules decode(byte[] data,int offset,int length) throws IOException
+    {
+        final JsonPullParser parser = ReplyDecoder.enter( data , offset , length , "schedule" , "get_rules" );
+        final List<Rule> rules = new ArrayList<>();
+        boolean enabled = false;
+        long errorCode = 0;
+        String errorMessage = null;
+        while ( parser.nextField() )
+        {
+            if ( parser.isFieldName( "err_code" ) ) {
+                parser.next();
+                errorCode = parser.getLong();
+            } else if ( parser.isFieldName( "err_msg" ) ) {
+                errorMessage = parser.nextString();
+            } else if ( parser.isFieldName( "enable" ) ) {
+                parser.next();
+                enabled = parser.getBoolean();
+            }
+            else if ( parser.isFieldName( "rule_list" ) )
+            {
+                parser.expect( Token.START_ARRAY );
+                while ( parser.next() != Token.END_ARRAY ) 
+                {
+                    if ( parser.current() == Token.START_OBJECT ) {
+                        rules.add( decodeRule( parser ) );
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipValue();
+            }
+        }
+        ReplyDecoder.checkError( "schedule" , "get_rules" , errorCode , errorMessage );
+        return new ScheduleRules( enabled , rules );
+    }
+
+    private static Rule decodeRule(JsonPullParser parser) throws IOException
+    {
+        String id = null;
+        String name = null;
+        boolean enabled = false;
+        final boolean[] weekdays = new boolean[7];
+        boolean repeat = false;
+        int startAction = -1;
+        int startMinutes = 0;
+        int endAction = -1;
+        int endMinutes = 0;
+        while ( parser.nextField() )
+        {
+            if ( parser.isFieldName( "id" ) ) {
+                id = parser.nextString();
+            } else if ( parser.isFieldName( "name" ) ) {
+                name = parser.nextString();
+            } else if ( parser.isFieldName( "enable" ) ) {
+                parser.next();
+                enabled = parser.getBoolean();
+            } else if ( parser.isFieldName( "repeat" ) ) {
+                parser.next();
+                repeat = parser.getBoolean();
+            } else if ( parser.isFieldName( "sact" ) ) {
+                parser.next();
+                startAction = (int) parser.getLong();
+            } else if ( parser.isFieldName( "smin" ) ) {
+                parser.next();
+                startMinutes = (int) parser.getLong();
+            } else if ( parser.isFieldName( "eact" ) ) {
+                parser.next();
+                endAction = (int) parser.getLong();
+            } else if ( parser.isFieldName( "emin" ) ) {
+                parser.next();
+                endMinutes = (int) parser.getLong();
+            }
+            else if ( parser.isFieldName( "wday" ) )
+            {
+                parser.expect( Token.START_ARRAY );
+                for ( int i = 0 ; parser.next() != Token.END_ARRAY ; i++ ) {
+                    if ( i < weekdays.length ) {
+                        weekdays[i] = parser.getBoolean();
+                    }
+                }
+            } else {
+                parser.skipValue();
+            }
+        }
+        return new Rule( id , name , enabled , weekdays , repeat , startAction , startMinutes , endAction , endMinutes );
+    }
+
+    @Override
+    public String toString() {
+        return "ScheduleRules[ enabled="+enabled+", rules="+rules+" ]";
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.IOException;
+
+/**
+ * Reply to {@link TPLink.Command#GET_SYSTEM_INFO}.
+ *
+ * <p>Fields not reported by the device are <code>null</code> resp. zero.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SysInfo
+{
+    public static final ReplyDecoder<SysInfo> DECODER = SysInfo::decode;
+
+    public final String alias;
+    public final String deviceName;
+    public final String model;
+    public final String type;
+    public final String macAddress;
+    public final String deviceId;
+    public final String hardwareId;
+    public final String hardwareVersion;
+    public final String softwareVersion;
+    public final boolean relayOn;
+    public final boolean ledOff;
+    public final long onTimeSeconds;
+    public final int rssi;
+
+    private SysInfo(Builder builder)
+    {
+        this.alias = builder.alias;
+        this.deviceName = builder.deviceName;
+        this.model = builder.model;
+        this.type = builder.type;
+        this.macAddress = builder.macAddress;
+        this.deviceId = builder.deviceId;
+        this.hardwareId = builder.hardwareId;
+        this.hardwareVersion = builder.hardwareVersion;
+        this.softwareVersion = builder.softwareVersion;
+        this.relayOn = builder.relayOn;
+        this.ledOff = builder.ledOff;
+        this.onTimeSeconds = builder.onTimeSeconds;
+        this.rssi = builder.rssi;
+    }
+
+    private static final class Builder
+    {
+        public String alias;
+        public String deviceName;
+        public String model;
+        public String type;
+        public String macAddress;
+        public String deviceId;
+        public String hardwareId;
+        public String hardwareVersion;
+        public String softwareVersion;
+        public boolean relayOn;
+        public boolean ledOff;
+        public long onTimeSeconds;
+        public int rssi;
+    }
+
+    /**
+     * Decodes a <code>system.get_sysinfo</code> response.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    public static SysInfo decode(byte[] data,int offset,int length) throws IOException
+    {
+        final JsonPullParser parser = ReplyDecoder.enter( data , offset , length , "system" , "get_sysinfo" );
+        final Builder builder = new Builder();
+        long errorCode = 0;
+        String errorMessage = null;
+        while ( parser.nextField() )
+        {
+            if ( parser.isFieldName( "err_code" ) ) {
+                parser.next();
+                errorCode = parser.getLong();
+            } else if ( parser.isFieldName( "err_msg" ) ) {
+                errorMessage = parser.nextString();
+            } else if ( parser.isFieldName( "relay_state" ) ) {
+                parser.next();
+                builder.relayOn = parser.getBoolean();
+            } else if ( parser.isFieldName( "led_off" ) ) {
+                parser.next();
+                builder.ledOff = parser.getBoolean();
+            } else if ( parser.isFieldName( "on_time" ) ) {
+                parser.next();
+                builder.onTimeSeconds = parser.getLong();
+            } else if ( parser.isFieldName( "rssi" ) ) {
+                parser.next();
+                builder.rssi = (int) parser.getLong();
+            } else if ( parser.isFieldName( "alias" ) ) {
+                builder.alias = parser.nextString();
+            } else if ( parser.isFieldName( "dev_name" ) ) {
+                builder.deviceName = parser.nextString();
+            } else if ( parser.isFieldName( "model" ) ) {
+                builder.model = parser.nextString();
+            } else if ( parser.isFieldName( "type" ) || parser.isFieldName( "mic_type" ) ) {
+                builder.type = parser.nextString();
+            } else if ( parser.isFieldName( "mac" ) || parser.isFieldName( "mic_mac" ) ) {
+                builder.macAddress = parser.nextString();
+            } else if ( parser.isFieldName( "deviceId" ) ) {
+                builder.deviceId = parser.nextString();
+            } else if ( parser.isFieldName( "hwId" ) ) {
+                builder.hardwareId = parser.nextString();
+            } else if ( parser.isFieldName( "hw_ver" ) ) {
+                builder.hardwareVersion = parser.nextString();
+            } else if ( parser.isFieldName( "sw_ver" ) ) {
+                builder.softwareVersion = parser.nextString();
+            } else {
+                parser.skipValue();
+            }
+        }
+        ReplyDecoder.checkError( "system" , "get_sysinfo" , errorCode , errorMessage );
+        return new SysInfo( builder );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SysInfo[ alias="+alias+", model="+model+", mac="+macAddress+", hw="+hardwareVersion+", sw="+softwareVersion+
+                ", relay="+( relayOn ? "on" : "off" )+", led="+( ledOff ? "off" : "on" )+", on_time="+onTimeSeconds+" s, rssi="+rssi+" ]";
+    }
+}
@@ -16,23 +16,21 @@
 package de.codesourcery.tplink;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import de.codesourcery.jsonparser.Identifier;
-import de.codesourcery.jsonparser.Parser;
-import de.codesourcery.jsonparser.ast.ASTNode;
-import de.codesourcery.jsonparser.util.ASTPrinter;
 
 /**
  * Very crude client to talk to TP-Link HS100/HS110 Wifi plugs.
@@ -41,20 +39,38 @@ import de.codesourcery.jsonparser.util.ASTPrinter;
  */
 public class TPLink
 {
-    private static final int IV = 171;
-
-    private InetAddress destination;
+    /**
+     * TCP port the plugs are listening on.
+     */
+    public static final int PORT = 9999;
+    
+    /**
+     * Default max. number of requests that may be in-flight at the same time 
+     * (across all instances) when using the async API.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 32;
+    
+    private static final ConcurrencyLimiter LIMITER = new ConcurrencyLimiter( DEFAULT_MAX_CONCURRENT_REQUESTS );
+    
+    private static volatile Executor defaultExecutor;
+    
+    private volatile InetAddress destination;
+    
+    private ConnectionPool connectionPool;
+    private Executor executor;
     
     private boolean debug;
     private boolean verbose;
     private boolean dryRun;
+    // answers commands that alter the device state in dry-run mode
+    private VirtualPlug dryRunPlug;
     
     public static enum Command 
     {
         // System commands
         GET_SYSTEM_INFO("{\"system\":{\"get_sysinfo\":null}}",false),
-        REBOOT("{\"system\":{\"reboot\":{\"delay\":1}}}"),
-        FACTORY_RESET("{\"system\":{\"reset\":{\"delay\":1}}}"),
+        REBOOT("{\"system\":{\"reboot\":{\"delay\":1}}}",true,false),
+        FACTORY_RESET("{\"system\":{\"reset\":{\"delay\":1}}}",true,false),
         PLUG_ON("{\"system\":{\"set_relay_state\":{\"state\":1}}}"),
         PLUG_OFF("{\"system\":{\"set_relay_state\":{\"state\":0}}}"),
         LED_ON("{\"system\":{\"set_led_off\":{\"off\":0}}}"),
@@ -69,18 +85,18 @@ public class TPLink
         SET_DEVICE_ICON("{\"system\":{\"set_dev_icon\":{\"icon\":\"xxxx\",\"hash\":\"ABCD\"}}}"),
         // Set Test Mode (command only accepted coming from IP 192.168.1.100)
         SET_TEST_MODE("{\"system\":{\"set_test_mode\":{\"enable\":1}}}"),
-        DOWNLOAD_FIRMWARE("{\"system\":{\"download_firmware\":{\"url\":\"${url}\"}}}"), // http://....\
+        DOWNLOAD_FIRMWARE("{\"system\":{\"download_firmware\":{\"url\":\"${url}\"}}}",true,false), // http://....\
         GET_FIRMWARE_DOWNLOAD_STATE("{\"system\":{\"get_download_state\":{}}}"),
-        FLASH_FIRMWARE("{\"system\":{\"flash_firmware\":{}}}"),
+        FLASH_FIRMWARE("{\"system\":{\"flash_firmware\":{}}}",true,false),
         CHECK_CONFIG("{\"system\":{\"check_new_config\":null}}"),
         // WLAN commands
         SCAN_APS("{\"netif\":{\"get_scaninfo\":{\"refresh\":1}}}"),
-        CONNECT_TO_AP("{\"netif\":{\"set_stainfo\":{\"ssid\":\"${ssid}\",\"password\":\"${password}\",\"key_type\":3}}}"),
+        CONNECT_TO_AP("{\"netif\":{\"set_stainfo\":{\"ssid\":\"${ssid}\",\"password\":\"${password}\",\"key_type\":3}}}",true,false),
         // Cloud commands
         GET_CLOUD_INFO("{\"cnCloud\":{\"get_info\":null}}",false),
         GET_FIRMWARE_LIST("{\"cnCloud\":{\"get_intl_fw_list\":{}}}",false),
         SET_CLOUD_SERVER_URL("{\"cnCloud\":{\"set_server_url\":{\"server\":\"${cloudServerName}\"}}}"), // devs.tplinkcloud.com
-        CONNECT_TO_CLOUD_SERVER("{\"cnCloud\":{\"bind\":{\"username\":\"${email}\", \"password\":\"${password}\"}}}"),
+        CONNECT_TO_CLOUD_SERVER("{\"cnCloud\":{\"bind\":{\"username\":\"${email}\", \"password\":\"${password}\"}}}",true,false),
         UNREGISTER_FROM_CLOUD("{\"cnCloud\":{\"unbind\":null}}"),
         // Time commands
         GET_TIME("{\"time\":{\"get_time\":null}}",false),
@@ -90,7 +106,7 @@ public class TPLink
         GET_CURRENT_AND_VOLATAGE("{\"emeter\":{\"get_realtime\":{}}}",false),
         GET_VGAIN_AND_IGAIN("{\"emeter\":{\"get_vgain_igain\":{}}}",false),
         SET_VGAIN_AND_IGAIN("{\"emeter\":{\"set_vgain_igain\":{\"vgain\":13462,\"igain\":16835}}}"),
-        CALIBRATE_EMETER("{\"emeter\":{\"start_calibration\":{\"vtarget\":13462,\"itarget\":16835}}}"),
+        CALIBRATE_EMETER("{\"emeter\":{\"start_calibration\":{\"vtarget\":13462,\"itarget\":16835}}}",true,false),
         GET_EMETER_DAILY("{\"emeter\":{\"get_daystat\":{\"month\":1,\"year\":2016}}}",false),
         GET_EMETER_MONTHLY("{\"emeter\":{\"get_daystat\":{\"month\":1,\"year\":2016}}}",false),
         GET_EMETER_YEARLY("{\"emeter\":{\"get_monthstat\":{\"year\":2016}}}",false),
@@ -98,35 +114,46 @@ public class TPLink
         // Schedule commands
         GET_NEXT_SCHEDULE_ACTION("{\"schedule\":{\"get_next_action\":null}}",false),
         GET_SCHEDULE_RULES("{\"schedule\":{\"get_rules\":null}}",false),
-        ADD_SCHEDULE_RULE("{\"schedule\":{\"add_rule\":{\"stime_opt\":0,\"wday\":[1,0,0,1,1,0,0],\"smin\":1014,\"enable\":1,\"repeat\":1,\"etime_opt\":-1,\"name\":\"lights on\",\"eact\":-1,\"month\":0,\"sact\":1,\"year\":0,\"longitude\":0,\"day\":0,\"force\":0,\"latitude\":0,\"emin\":0},\"set_overall_enable\":{\"enable\":1}}}"),
+        ADD_SCHEDULE_RULE("{\"schedule\":{\"add_rule\":{\"stime_opt\":0,\"wday\":[1,0,0,1,1,0,0],\"smin\":1014,\"enable\":1,\"repeat\":1,\"etime_opt\":-1,\"name\":\"lights on\",\"eact\":-1,\"month\":0,\"sact\":1,\"year\":0,\"longitude\":0,\"day\":0,\"force\":0,\"latitude\":0,\"emin\":0},\"set_overall_enable\":{\"enable\":1}}}",true,false),
         EDIT_SCHEDULE_RULE("{\"schedule\":{\"edit_rule\":{\"stime_opt\":0,\"wday\":[1,0,0,1,1,0,0],\"smin\":1014,\"enable\":1,\"repeat\":1,\"etime_opt\":-1,\"id\":\"4B44932DFC09780B554A740BC1798CBC\",\"name\":\"lights on\",\"eact\":-1,\"month\":0,\"sact\":1,\"year\":0,\"longitude\":0,\"day\":0,\"force\":0,\"latitude\":0,\"emin\":0}}}"),
         DELETE_SCHEDULE_RULE("{\"schedule\":{\"delete_rule\":{\"id\":\"4B44932DFC09780B554A740BC1798CBC\"}}}"),
         DELETE_ALL_SCHEDULE_RULES_AND_STATISTICS("{\"schedule\":{\"delete_all_rules\":null,\"erase_runtime_stat\":null}}"),
         // Countdown rule commands
         GET_COUNTDOWN_RULE("{\"count_down\":{\"get_rules\":null}}",false),
-        ADD_COUNTDOWN_RULE("{\"count_down\":{\"add_rule\":{\"enable\":1,\"delay\":1800,\"act\":1,\"name\":\"turn on\"}}}"),
+        ADD_COUNTDOWN_RULE("{\"count_down\":{\"add_rule\":{\"enable\":1,\"delay\":1800,\"act\":1,\"name\":\"turn on\"}}}",true,false),
         EDIT_COUNTDOWN_RULE("{\"count_down\":{\"edit_rule\":{\"enable\":1,\"id\":\"7C90311A1CD3227F25C6001D88F7FC13\",\"delay\":1800,\"act\":1,\"name\":\"turn on\"}}}"),
         DELETE_COUNTDOWN_RULE("{\"count_down\":{\"delete_rule\":{\"id\":\"7C90311A1CD3227F25C6001D88F7FC13\"}}}"),
         DELETE_ALL_COUNTDOWN_RULES("{\"count_down\":{\"delete_all_rules\":null}}"),
         // Anti-theft commands 
         // (period of time during which device will be randomly turned on and off to deter thieves) 
         GET_ANTITHEFT_RULES("{\"anti_theft\":{\"get_rules\":null}}",false),
-        ADD_ANTITHEFT_RULE("{\"anti_theft\":{\"add_rule\":{\"stime_opt\":0,\"wday\":[0,0,0,1,0,1,0],\"smin\":987,\"enable\":1,\"frequency\":5,\"repeat\":1,\"etime_opt\":0,\"duration\":2,\"name\":\"test\",\"lastfor\":1,\"month\":0,\"year\":0,\"longitude\":0,\"day\":0,\"latitude\":0,\"force\":0,\"emin\":1047},\"set_overall_enable\":1}}"), 
+        ADD_ANTITHEFT_RULE("{\"anti_theft\":{\"add_rule\":{\"stime_opt\":0,\"wday\":[0,0,0,1,0,1,0],\"smin\":987,\"enable\":1,\"frequency\":5,\"repeat\":1,\"etime_opt\":0,\"duration\":2,\"name\":\"test\",\"lastfor\":1,\"month\":0,\"year\":0,\"longitude\":0,\"day\":0,\"latitude\":0,\"force\":0,\"emin\":1047},\"set_overall_enable\":1}}",true,false), 
         EDIT_ANTITHEFT_RULE("{\"anti_theft\":{\"edit_rule\":{\"stime_opt\":0,\"wday\":[0,0,0,1,0,1,0],\"smin\":987,\"enable\":1,\"frequency\":5,\"repeat\":1,\"etime_opt\":0,\"id\":\"E36B1F4466B135C1FD481F0B4BFC9C30\",\"duration\":2,\"name\":\"test\",\"lastfor\":1,\"month\":0,\"year\":0,\"longitude\":0,\"day\":0,\"latitude\":0,\"force\":0,\"emin\":1047},\"set_overall_enable\":1}}"),
         DELETE_ANTITHEFT_RULE("{\"anti_theft\":{\"delete_rule\":{\"id\":\"E36B1F4466B135C1FD481F0B4BFC9C30\"}}}"),
         DELETE_ALL_ANTITHEFT_RULES("{\"anti_theft\":{\"delete_all_rules\":null}}");
         
         public final String json;
         public final boolean altersDeviceState;
+        /**
+         * Whether sending the command twice has the same effect as sending it once. Only idempotent
+         * commands are retried after the request might already have reached the device.
+         */
+        public final boolean idempotent;
+        public final CommandTemplate template;
         
         private Command(String json) {
             this(json,true);
         }
         
         private Command(String json,boolean changesState) {
+            this(json,changesState,true);
+        }
+        
+        private Command(String json,boolean changesState,boolean idempotent) {
             this.json = json;
             this.altersDeviceState = changesState;
-            new Parser().parse( json ); // throws exception on invalid JSON
+            this.idempotent = idempotent;
+            this.template = CommandTemplate.compile( json ); // throws exception on invalid JSON
         }
     }
 
@@ -138,16 +165,54 @@ public class TPLink
         return sendCmd( Command.GET_SYSTEM_INFO );
     }
     
+    public SysInfo getSysInfo() throws IOException {
+        return sendCmd( Command.GET_SYSTEM_INFO , SysInfo.DECODER );
+    }
+    
+    public RealtimeEmeter getRealtimeEmeter() throws IOException {
+        return sendCmd( Command.GET_CURRENT_AND_VOLATAGE , RealtimeEmeter.DECODER );
+    }
+    
+    public ScheduleRules getScheduleRules() throws IOException {
+        return sendCmd( Command.GET_SCHEDULE_RULES , ScheduleRules.DECODER );
+    }
+    
+    /**
+     * Switches the plug on.
+     * 
+     * @throws DeviceException if the device reported an error
+     * @throws IOException
+     */
     public void on() throws IOException {
-        sendCmd( Command.PLUG_ON );
-        // TODO: Doesn't check device response for errors
+        sendCmd( Command.PLUG_ON , ReplyDecoder.CHECK_ERRORS );
     }
     
+    /**
+     * Switches the plug off.
+     * 
+     * @throws DeviceException if the device reported an error
+     * @throws IOException
+     */
     public void off() throws IOException {
-        sendCmd( Command.PLUG_OFF );
-        // TODO: Doesn't check device response for errors
+        sendCmd( Command.PLUG_OFF , ReplyDecoder.CHECK_ERRORS );
     }    
     
+    public CompletableFuture<String> getSystemInfoAsync() {
+        return sendCmdAsync( Command.GET_SYSTEM_INFO );
+    }
+    
+    public CompletableFuture<SysInfo> getSysInfoAsync() {
+        return LIMITER.submit( getExecutor() , () -> getSysInfo() );
+    }
+    
+    public CompletableFuture<Void> onAsync() {
+        return LIMITER.submit( getExecutor() , () -> { on(); return null; } );
+    }
+    
+    public CompletableFuture<Void> offAsync() {
+        return LIMITER.submit( getExecutor() , () -> { off(); return null; } );
+    }
+    
     private void verbose(String msg) {
         if ( verbose ) {
             System.out.println( msg );
@@ -165,93 +230,205 @@ public class TPLink
         return sendCmd(cmd,id -> null);
     }
     
-    private String resolvePlaceholders(String json,Function<Identifier,String> placeholderResolver) 
+    public String sendCmd(Command cmd,Function<Identifier,String> placeholderResolver) throws IOException 
     {
-        final ASTNode ast = new Parser().parse( json );
-        final ASTPrinter printer = new ASTPrinter();
-        printer.setPrettyPrint( false );
-        final Function<Identifier,String> wrapper = id -> 
-        {
-            final String result = placeholderResolver.apply( id );
-            if ( result == null ) {
-                throw new RuntimeException("Missing placeholder value for '"+id.name+"'");
-            }
-            return result;
-        };
-        return printer.print( ast , wrapper );
+        final String json = cmd.template.resolve( placeholderResolver );
+        if ( verbose ) {
+            verbose( ( isDryRun() ? "DRY-RUN: " : "" )+"Sending command "+cmd.name() );
+        }
+        if ( isDryRun() && cmd.altersDeviceState ) {
+            debug("Sending command "+cmd+" to "+destination+" , port "+PORT+" TCP" );
+            debug( json );
+            return simulate( json );
+        }
+        return sendCmd( cmd.name() , cmd.idempotent , HealthTracker.isSlowCommand( cmd ) , json , cmd.template.toFrame( json ) );
     }
     
-    public String sendCmd(Command cmd,Function<Identifier,String> placeholderResolver) throws IOException 
+    /**
+     * Sends a command and decodes the response.
+     * 
+     * @param cmd
+     * @param decoder
+     * @return decoded reply (simulated in dry-run mode if the command alters the device state)
+     * @throws DeviceException if the device reported an error
+     * @throws IOException
+     */
+    public <T> T sendCmd(Command cmd,ReplyDecoder<T> decoder) throws IOException 
     {
-        final String dryRunPrefix = isDryRun() ? "DRY-RUN: " : "";
-        final String json = resolvePlaceholders( cmd.json , placeholderResolver );
-        verbose(dryRunPrefix+"Sending command "+cmd.name());
+        return sendCmd( cmd , id -> null , decoder );
+    }
+    
+    /**
+     * Sends a command and decodes the response.
+     * 
+     * @param cmd
+     * @param placeholderResolver
+     * @param decoder
+     * @return decoded reply (simulated in dry-run mode if the command alters the device state)
+     * @throws DeviceException if the device reported an error
+     * @throws IOException
+     */
+    public <T> T sendCmd(Command cmd,Function<Identifier,String> placeholderResolver,ReplyDecoder<T> decoder) throws IOException 
+    {
+        final String json = cmd.template.resolve( placeholderResolver );
+        if ( verbose ) {
+            verbose( ( isDryRun() ? "DRY-RUN: " : "" )+"Sending command "+cmd.name() );
+        }
         if ( isDryRun() && cmd.altersDeviceState ) {
-            debug("Sending command "+cmd+" to "+destination+" , port 9999 TCP" );
+            debug("Sending command "+cmd+" to "+destination+" , port "+PORT+" TCP" );
             debug( json );
-            return ""; // TODO: Would need to fake response here
+            final byte[] response = simulate( json ).getBytes( StandardCharsets.UTF_8 );
+            return decoder.decode( response , 0 , response.length );
+        }
+        final byte[] response = exchange( cmd.name() , cmd.idempotent , HealthTracker.isSlowCommand( cmd ) , json , cmd.template.toFrame( json ) );
+        try {
+            return decoder.decode( response , 0 , response.length );
+        } 
+        catch(DeviceException e) 
+        {
+            HealthTracker.getDefault().get( destination ).getErrorCounter( e ).increment();
+            throw e;
         }
-        return sendCmd( json );
     }
     
-    private String sendCmd(String cmd) throws IOException 
+    /**
+     * Sends several commands in a single request.
+     * 
+     * @param cmd
+     * @return responses by command
+     * @throws IOException
+     * @see MultiCommand
+     */
+    public Map<Command,String> sendCmd(MultiCommand cmd) throws IOException 
     {
-        debug("Sending command "+cmd+" to "+destination+" , port 9999 TCP" );
-        
-        try ( Socket clientSocket = new Socket( destination , 9999) )
+        return sendCmd(cmd,id -> null);
+    }
+    
+    /**
+     * Sends several commands in a single request.
+     * 
+     * @param cmd
+     * @param placeholderResolver
+     * @return responses by command
+     * @throws IOException
+     * @see MultiCommand
+     */
+    public Map<Command,String> sendCmd(MultiCommand cmd,Function<Identifier,String> placeholderResolver) throws IOException 
+    {
+        final String json = cmd.toJSON( placeholderResolver );
+        if ( verbose ) {
+            verbose( ( isDryRun() ? "DRY-RUN: " : "" )+"Sending command "+cmd );
+        }
+        if ( isDryRun() && cmd.altersDeviceState() ) 
         {
-            // send command
-            final DataOutputStream out = new DataOutputStream( clientSocket.getOutputStream() );
-
-            final byte[] data = encrypt( cmd );
-            out.write( data , 0 , data.length );
-            
-            // receive response
-            final DataInputStream in = new DataInputStream( clientSocket.getInputStream() );
-            final ByteArrayOutputStream recBuffer = new ByteArrayOutputStream();
-
-            while ( true ) 
-            {
-                final int recv = in.read();
-                if ( recv == -1 ) {
-                    break;
-                }
-                recBuffer.write( recv );
-            }
-            clientSocket.close();
-            final String result = decrypt( recBuffer.toByteArray() );
-            debug("received: "+result);
-            return result;
+            debug("Sending command "+cmd+" to "+destination+" , port "+PORT+" TCP" );
+            debug( json );
+            return cmd.split( simulate( json ) );
         }
+        return cmd.split( sendCmd( "MULTI" , cmd.isIdempotent() , cmd.isSlow() , json , cmd.toFrame( json ) ) );
     }
-
-    private static byte[] encrypt(String input) throws IOException 
+    
+    public CompletableFuture<Map<Command,String>> sendCmdAsync(MultiCommand cmd) 
     {
-        int key = IV;
-
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        out.write( new byte[] { 0, 0, 0, 0 } );
-
-        for ( char c : input.toCharArray() ) 
-        {
-            int b = (key ^ (byte) c );
-            key = b;
-            out.write( b );
+        return LIMITER.submit( getExecutor() , () -> sendCmd( cmd ) );
+    }
+    
+    public CompletableFuture<String> sendCmdAsync(Command cmd) 
+    {
+        return sendCmdAsync(cmd,id -> null);
+    }
+    
+    /**
+     * Sends a command asynchronously.
+     * 
+     * <p>The command is executed on this instance's {@link #setExecutor(Executor) executor}, the 
+     * number of commands executing at the same time across all instances is limited
+     * by {@link #setMaxConcurrentRequests(int)}.</p>
+     * 
+     * @param cmd
+     * @param placeholderResolver invoked on the executor thread
+     * @return
+     */
+    public CompletableFuture<String> sendCmdAsync(Command cmd,Function<Identifier,String> placeholderResolver) 
+    {
+        return LIMITER.submit( getExecutor() , () -> sendCmd( cmd , placeholderResolver ) );
+    }
+    
+    /**
+     * Creates the reply the device would send in dry-run mode.
+     */
+    private synchronized String simulate(String json) 
+    {
+        if ( dryRunPlug == null ) {
+            dryRunPlug = new VirtualPlug();
         }
-        return out.toByteArray();
+        final String reply = dryRunPlug.handle( json );
+        debug( "simulated: "+reply );
+        return reply;
     }
-
-    private static String decrypt(byte[] input) 
+    
+    private String sendCmd(String cmdName,boolean idempotent,boolean slow,String cmd,byte[] data) throws IOException 
+    {
+        final byte[] response = exchange( cmdName , idempotent , slow , cmd , data );
+        return new String( response , StandardCharsets.UTF_8 );
+    }
+    
+    /**
+     * Sends a request frame.
+     * 
+     * @param cmdName command name, for metrics
+     * @param idempotent whether the request may be retried if it might already have reached the device
+     * @param slow whether the command is known to take long to complete, used to pick the read timeout
+     * @param cmd JSON, for debug output
+     * @param data
+     * @return the decrypted response
+     * @throws CircuitOpenException if the device is currently considered dead
+     * @throws IOException
+     */
+    private byte[] exchange(String cmdName,boolean idempotent,boolean slow,String cmd,byte[] data) throws IOException 
     {
-        final ByteArrayOutputStream output = new ByteArrayOutputStream();
-        int key = IV;
-        for ( byte curByte : Arrays.copyOfRange(input,4,input.length) ) 
+        final InetAddress destination = this.destination;
+        if ( debug ) {
+            debug("Sending command "+cmd+" to "+destination+" , port "+PORT+" TCP" );
+        }
+        
+        final DeviceHealth health = HealthTracker.getDefault().get( destination );
+        health.acquire();
+        
+        final long start = System.nanoTime();
+        final byte[] response;
+        try 
         {
-            int b = (key ^ curByte );
-            key = curByte;
-            output.write( b );
+            if ( connectionPool != null ) 
+            {
+                response = connectionPool.exchange( destination , cmdName , idempotent , slow , data );
+            } 
+            else 
+            {
+                try ( PlugConnection connection = new PlugConnection( destination ) ) 
+                {
+                    response = connection.exchange( cmdName , slow , data );
+                }
+            }
+            health.succeeded();
+        } 
+        catch(IOException e) 
+        {
+            health.failed();
+            health.getErrorCounter( e ).increment();
+            throw e;
+        } 
+        finally 
+        {
+            health.getRequestDuration( cmdName ).recordSince( start );
+        }
+        health.getCounter( Metrics.TPLINK_BYTES_SENT ).add( data.length );
+        health.getCounter( Metrics.TPLINK_BYTES_RECEIVED ).add( response.length );
+        new AutokeyCipher().decrypt( response , 0 , response.length );
+        if ( debug ) {
+            debug("received: "+new String( response , StandardCharsets.UTF_8 ) );
         }
-        return output.toString();
+        return response;
     }
     
     public void setVerbose(boolean verbose)
@@ -293,6 +470,106 @@ public class TPLink
         return "<failed to determine version>";
     }
     
+    /**
+     * Sets the address of the plug, for example after it got a new IP via DHCP.
+     * 
+     * @param destination
+     */
+    public void setDestination(InetAddress destination) 
+    {
+        this.destination = destination;
+    }
+    
+    public InetAddress getDestination() 
+    {
+        return destination;
+    }
+    
+    /**
+     * Sets the connection pool to use.
+     * 
+     * @param connectionPool pool to keep connections open across commands, <code>null</code> to
+     * open a new connection for every command 
+     */
+    public void setConnectionPool(ConnectionPool connectionPool)
+    {
+        this.connectionPool = connectionPool;
+    }
+    
+    public ConnectionPool getConnectionPool()
+    {
+        return connectionPool;
+    }
+    
+    /**
+     * Sets the executor to use for async commands.
+     * 
+     * @param executor executor or <code>null</code> to use the default executor (virtual threads 
+     * when running on a JVM that supports them, daemon threads otherwise)
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+    
+    public Executor getExecutor()
+    {
+        return executor != null ? executor : getDefaultExecutor();
+    }
+    
+    static Executor getDefaultExecutor() 
+    {
+        Executor result = defaultExecutor;
+        if ( result == null ) 
+        {
+            synchronized( TPLink.class ) 
+            {
+                result = defaultExecutor;
+                if ( result == null ) {
+                    result = defaultExecutor = createDefaultExecutor();
+                }
+            }
+        }
+        return result;
+    }
+    
+    private static Executor createDefaultExecutor() 
+    {
+        try 
+        {
+            // JDK 21+
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke( null );
+        } 
+        catch(ReflectiveOperationException | RuntimeException e) 
+        {
+            final AtomicInteger threadId = new AtomicInteger();
+            return Executors.newCachedThreadPool( r -> 
+            {
+                final Thread t = new Thread( r , "tplink-async-"+threadId.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            });
+        }
+    }
+    
+    /**
+     * Sets the max. number of async commands that may be executing at the same time (across all instances).
+     * 
+     * <p>The plugs' TCP stacks don't cope well with too many concurrent connections.</p>
+     * 
+     * @param maxConcurrentRequests
+     * @see #DEFAULT_MAX_CONCURRENT_REQUESTS
+     */
+    public static void setMaxConcurrentRequests(int maxConcurrentRequests) 
+    {
+        LIMITER.setMaxConcurrency( maxConcurrentRequests );
+    }
+    
+    public static int getMaxConcurrentRequests() 
+    {
+        return LIMITER.getMaxConcurrency();
+    }
+    
     public void setDryRun(boolean dryRun)
     {
         this.dryRun = dryRun;
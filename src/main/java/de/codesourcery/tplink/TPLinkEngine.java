@@ -0,0 +1,791 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+import de.codesourcery.jsonparser.Identifier;
+import de.codesourcery.tplink.TPLink.Command;
+
+/**
+ * Non-blocking client that talks to many plugs using a small, fixed number of event loop threads.
+ *
+ * <p>Commands to the same device are queued and sent one after another over a single connection
+ * that is kept open for subsequent commands (until it has been idle for longer than
+ * {@link #setIdleTimeoutMillis(long) the idle timeout}), commands to different devices are
+ * processed concurrently.</p>
+ *
+ * <p>Timeouts adapt to the latencies observed for each device and requests to devices that failed
+ * repeatedly fail immediately with a {@link CircuitOpenException}, see {@link DeviceHealth}.</p>
+ *
+ * <p>Returned futures are completed on the event loop thread, callers must not block inside
+ * dependent stages (use the <code>...Async()</code> methods of {@link CompletableFuture} for
+ * anything expensive).</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class TPLinkEngine implements AutoCloseable
+{
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final EventLoop[] loops;
+
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile long idleTimeoutMillis = ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    /**
+     * Create engine with a single event loop thread.
+     *
+     * @throws IOException
+     */
+    public TPLinkEngine() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Create engine.
+     *
+     * @param threadCount number of event loop threads to use
+     * @throws IOException
+     */
+    public TPLinkEngine(int threadCount) throws IOException
+    {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
+        loops = new EventLoop[ threadCount ];
+        try
+        {
+            for ( int i = 0 ; i < threadCount ; i++ ) {
+                loops[i] = new EventLoop( i );
+            }
+        }
+        catch(IOException e)
+        {
+            close();
+            throw e;
+        }
+        for ( EventLoop loop : loops ) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Sends a command without placeholders to a device.
+     *
+     * @param address
+     * @param cmd
+     * @return future with the device's response
+     */
+    public CompletableFuture<String> send(InetAddress address,Command cmd)
+    {
+        return send( address , cmd , id -> null );
+    }
+
+    /**
+     * Sends a command to a device.
+     *
+     * @param address
+     * @param cmd
+     * @param placeholderResolver
+     * @return future with the device's response
+     */
+    public CompletableFuture<String> send(InetAddress address,Command cmd,Function<Identifier,String> placeholderResolver)
+    {
+        return send( new InetSocketAddress( address , TPLink.PORT ) , cmd , placeholderResolver , getTimeoutMillis( cmd ) );
+    }
+
+    /**
+     * Sends a command to a device.
+     *
+     * @param address
+     * @param cmd
+     * @param placeholderResolver
+     * @param timeoutMillis max. time to wait for the connection to be established and the response to be received, the actual
+     * timeout may be shorter depending on the latencies observed for this device and command (see {@link DeviceHealth})
+     * @return future with the device's response, fails with a {@link SocketTimeoutException} if the timeout expired
+     */
+    public CompletableFuture<String> send(InetSocketAddress address,Command cmd,Function<Identifier,String> placeholderResolver,long timeoutMillis)
+    {
+        final String json = cmd.template.resolve( placeholderResolver );
+        return send( address , cmd.name() , cmd.idempotent , HealthTracker.isSlowCommand( cmd ) , cmd.template.toFrame( json ) , timeoutMillis );
+    }
+
+    /**
+     * Sends several commands in a single request.
+     *
+     * @param address
+     * @param cmd
+     * @return future with the device's responses by command
+     * @see MultiCommand
+     */
+    public CompletableFuture<Map<Command,String>> send(InetAddress address,MultiCommand cmd)
+    {
+        final String json = cmd.toJSON( id -> null );
+        return send( new InetSocketAddress( address , TPLink.PORT ) , "MULTI" , cmd.isIdempotent() , cmd.isSlow() , cmd.toFrame( json ) , getTimeoutMillis( cmd ) ).thenApply( cmd::split );
+    }
+
+    /**
+     * Sends a command to a device and decodes the response.
+     *
+     * @param address
+     * @param cmd
+     * @param decoder invoked by an engine thread, must not block
+     * @return future with the decoded reply, fails with a {@link DeviceException} if the device reported an error
+     */
+    public <T> CompletableFuture<T> send(InetAddress address,Command cmd,ReplyDecoder<T> decoder)
+    {
+        final String json = cmd.template.resolve( id -> null );
+        return send( new InetSocketAddress( address , TPLink.PORT ) , cmd.name() , cmd.idempotent , HealthTracker.isSlowCommand( cmd ) , cmd.template.toFrame( json ) , decoder , getTimeoutMillis( cmd ) );
+    }
+
+    /**
+     * Sends an encrypted request frame to a device.
+     *
+     * @param address
+     * @param command command name, for metrics and timeouts
+     * @param idempotent whether the request may be retried even if it might already have reached the device
+     * @param slow whether the command is known to take long to complete (see {@link HealthTracker#isSlowCommand(Command)})
+     * @param frame encrypted request including length header, must not be modified afterwards
+     * @param timeoutMillis
+     * @return future with the device's response
+     */
+    CompletableFuture<String> send(InetSocketAddress address,String command,boolean idempotent,boolean slow,byte[] frame,long timeoutMillis)
+    {
+        return sendRaw( address , command , idempotent , slow , frame , timeoutMillis ).thenApply( data -> new String( data , StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Sends an encrypted request frame to a device and decodes the response.
+     *
+     * @param address
+     * @param command command name, for metrics and timeouts
+     * @param idempotent whether the request may be retried even if it might already have reached the device
+     * @param slow whether the command is known to take long to complete (see {@link HealthTracker#isSlowCommand(Command)})
+     * @param frame encrypted request including length header, must not be modified afterwards
+     * @param decoder invoked by an engine thread, must not block
+     * @param timeoutMillis
+     * @return future with the decoded reply
+     */
+    <T> CompletableFuture<T> send(InetSocketAddress address,String command,boolean idempotent,boolean slow,byte[] frame,ReplyDecoder<T> decoder,long timeoutMillis)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        sendRaw( address , command , idempotent , slow , frame , timeoutMillis ).whenComplete( (data,error) ->
+        {
+            if ( error != null ) {
+                result.completeExceptionally( error );
+                return;
+            }
+            try {
+                result.complete( decoder.decode( data , 0 , data.length ) );
+            } 
+            catch(DeviceException e) 
+            {
+                HealthTracker.getDefault().get( address ).getErrorCounter( e ).increment();
+                result.completeExceptionally( e );
+            }
+            catch(IOException | RuntimeException e) {
+                result.completeExceptionally( e );
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<byte[]> sendRaw(InetSocketAddress address,String command,boolean idempotent,boolean slow,byte[] frame,long timeoutMillis)
+    {
+        if ( timeoutMillis <= 0 ) {
+            throw new IllegalArgumentException("Timeout must be > 0");
+        }
+        final DeviceHealth health = HealthTracker.getDefault().get( address );
+        try {
+            health.acquire();
+        } 
+        catch(CircuitOpenException e) 
+        {
+            final CompletableFuture<byte[]> result = new CompletableFuture<>();
+            result.completeExceptionally( e );
+            return result;
+        }
+        final Request request = new Request( address , command , idempotent , frame , health.getRequestTimeoutMillis( command , slow , timeoutMillis ) );
+        final long start = System.nanoTime();
+        request.future.whenComplete( (data,error) -> 
+        {
+            if ( error instanceof CancellationException ) {
+                return;
+            }
+            health.getRequestDuration( command ).recordSince( start );
+            if ( error != null ) {
+                health.failed();
+                health.getErrorCounter( error ).increment();
+            } else {
+                health.succeeded();
+                health.getCounter( Metrics.TPLINK_BYTES_SENT ).add( frame.length );
+                health.getCounter( Metrics.TPLINK_BYTES_RECEIVED ).add( data.length );
+            }
+        });
+        loops[ ( address.hashCode() & 0x7fffffff ) % loops.length ].submit( request );
+        return request.future;
+    }
+
+    /**
+     * Sets the default timeout for commands (upper bound for the adaptive timeout, see {@link DeviceHealth}).
+     *
+     * @param timeoutMillis
+     */
+    public void setTimeoutMillis(long timeoutMillis)
+    {
+        if ( timeoutMillis <= 0 ) {
+            throw new IllegalArgumentException("Timeout must be > 0");
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getTimeoutMillis()
+    {
+        return timeoutMillis;
+    }
+
+    /**
+     * Returns the default timeout for a command, this is extended for
+     * commands that are known to take long (see {@link HealthTracker#isSlowCommand(Command)}).
+     *
+     * @param cmd
+     * @return
+     */
+    public long getTimeoutMillis(Command cmd)
+    {
+        final HealthTracker tracker = HealthTracker.getDefault();
+        if ( HealthTracker.isSlowCommand( cmd ) ) {
+            return Math.max( timeoutMillis , tracker.getConnectTimeoutMillis() + tracker.getSlowReadTimeoutMillis() );
+        }
+        return timeoutMillis;
+    }
+
+    /**
+     * Returns the default timeout for several commands sent in a single request.
+     *
+     * @param cmd
+     * @return the longest default timeout of all commands
+     * @see #getTimeoutMillis(Command)
+     */
+    public long getTimeoutMillis(MultiCommand cmd)
+    {
+        return cmd.getCommands().stream().mapToLong( this::getTimeoutMillis ).max().getAsLong();
+    }
+
+    /**
+     * Sets the time after which an unused connection gets closed.
+     *
+     * @param idleTimeoutMillis
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis)
+    {
+        if ( idleTimeoutMillis < 0 ) {
+            throw new IllegalArgumentException("Idle timeout must be >= 0");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getIdleTimeoutMillis()
+    {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Stops all event loop threads, closing all connections and failing
+     * all pending commands.
+     */
+    @Override
+    public void close()
+    {
+        for ( EventLoop loop : loops )
+        {
+            if ( loop != null ) {
+                loop.terminate();
+            }
+        }
+        for ( EventLoop loop : loops )
+        {
+            if ( loop != null && loop.isAlive() && loop != Thread.currentThread() )
+            {
+                try {
+                    loop.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class Request
+    {
+        public final InetSocketAddress address;
+        public final String command;
+        public final boolean idempotent;
+        public final byte[] frame;
+        public final long timeoutMillis;
+        // counted from submission, so time spent queued behind other requests to the same device counts as well
+        public final long deadline;
+        // completed with the decrypted response
+        public final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        public boolean retried;
+
+        public Request(InetSocketAddress address, String command, boolean idempotent, byte[] frame, long timeoutMillis)
+        {
+            this.address = address;
+            this.command = command;
+            this.idempotent = idempotent;
+            this.frame = frame;
+            this.timeoutMillis = timeoutMillis;
+            this.deadline = System.currentTimeMillis() + timeoutMillis;
+        }
+
+        public void timeout()
+        {
+            future.completeExceptionally( new SocketTimeoutException("Timeout after "+timeoutMillis+" ms while talking to "+address ) );
+        }
+    }
+
+    /**
+     * Connection state and request queue for a single device.
+     *
+     * Only ever accessed by the owning event loop thread.
+     */
+    private final class Device
+    {
+        private final InetSocketAddress address;
+        private final Selector selector;
+        private final DeviceHealth health;
+        private final ArrayDeque<Request> queue = new ArrayDeque<>();
+        private final ByteBuffer header = ByteBuffer.allocate( PlugConnection.HEADER_SIZE );
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        // whether the current channel already completed at least one exchange
+        private boolean reused;
+
+        private Request current;
+        private boolean responseStarted;
+        private ByteBuffer out;
+        private ByteBuffer payload;
+        private long lastUsed;
+        // System.nanoTime() when connecting / sending the current request started
+        private long connectStart;
+        private long writeStart;
+
+        public Device(InetSocketAddress address,Selector selector)
+        {
+            this.address = address;
+            this.selector = selector;
+            this.health = HealthTracker.getDefault().get( address );
+        }
+
+        public void enqueue(Request request,long now)
+        {
+            queue.add( request );
+            startNext( now );
+        }
+
+        private void startNext(long now)
+        {
+            while ( current == null && ! queue.isEmpty() )
+            {
+                final Request next = queue.poll();
+                if ( next.future.isDone() ) { // cancelled by caller
+                    continue;
+                }
+                if ( now >= next.deadline ) {
+                    next.timeout();
+                    continue;
+                }
+                current = next;
+                try
+                {
+                    if ( channel != null ) {
+                        beginWrite();
+                    } else {
+                        openChannel();
+                    }
+                }
+                catch(IOException e) {
+                    fail( e );
+                }
+            }
+        }
+
+        private void openChannel() throws IOException
+        {
+            reused = false;
+            channel = SocketChannel.open();
+            channel.configureBlocking( false );
+            channel.setOption( StandardSocketOptions.TCP_NODELAY , Boolean.TRUE );
+            connectStart = System.nanoTime();
+            if ( channel.connect( address ) )
+            {
+                health.connected( System.nanoTime() - connectStart );
+                key = channel.register( selector , 0 , this );
+                beginWrite();
+            } else {
+                key = channel.register( selector , SelectionKey.OP_CONNECT , this );
+            }
+        }
+
+        private void beginWrite()
+        {
+            out = ByteBuffer.wrap( current.frame );
+            header.clear();
+            payload = null;
+            responseStarted = false;
+            writeStart = System.nanoTime();
+            key.interestOps( SelectionKey.OP_WRITE );
+        }
+
+        public void handle(long now)
+        {
+            try
+            {
+                if ( key.isConnectable() )
+                {
+                    if ( channel.finishConnect() ) {
+                        health.connected( System.nanoTime() - connectStart );
+                        beginWrite();
+                    }
+                    return;
+                }
+                if ( key.isWritable() )
+                {
+                    channel.write( out );
+                    if ( ! out.hasRemaining() ) {
+                        key.interestOps( SelectionKey.OP_READ );
+                    }
+                    return;
+                }
+                if ( key.isReadable() ) {
+                    read( now );
+                }
+            }
+            catch(IOException e) {
+                fail( e );
+            }
+        }
+
+        private void read(long now) throws IOException
+        {
+            if ( payload == null )
+            {
+                final int read = channel.read( header );
+                if ( read == -1 ) {
+                    throw new EOFException("Connection closed by "+address);
+                }
+                if ( read > 0 ) {
+                    responseStarted = true;
+                }
+                if ( header.hasRemaining() ) {
+                    return;
+                }
+                final int length = header.getInt( 0 );
+                if ( length < 0 || length > PlugConnection.MAX_RESPONSE_SIZE ) {
+                    throw new IOException("Received invalid response length: "+length);
+                }
+                payload = ByteBuffer.allocate( length );
+            }
+            if ( payload.hasRemaining() && channel.read( payload ) == -1 ) {
+                throw new EOFException("Connection closed by "+address);
+            }
+            if ( ! payload.hasRemaining() )
+            {
+                final Request request = current;
+                health.responded( request.command , System.nanoTime() - writeStart );
+                current = null;
+                reused = true;
+                lastUsed = now;
+                key.interestOps( 0 );
+                final byte[] result = payload.array();
+                new AutokeyCipher().decrypt( result , 0 , result.length );
+                payload = null;
+                out = null;
+                request.future.complete( result );
+                startNext( now );
+            }
+        }
+
+        private void fail(IOException e)
+        {
+            // a request that has been sent completely might already have been executed by the plug
+            final boolean requestSent = out != null && ! out.hasRemaining();
+            final boolean retry = reused && ! responseStarted && ! current.retried && ( current.idempotent || ! requestSent );
+            closeChannel();
+            final Request request = current;
+            current = null;
+            if ( retry )
+            {
+                // most likely a stale connection the plug silently dropped, try again once
+                request.retried = true;
+                health.getCounter( Metrics.TPLINK_RETRIES ).increment();
+                queue.addFirst( request );
+            } else {
+                request.future.completeExceptionally( e );
+            }
+            startNext( System.currentTimeMillis() );
+        }
+
+        public void checkTimeouts(long now)
+        {
+            queue.removeIf( request ->
+            {
+                if ( now >= request.deadline ) {
+                    request.timeout();
+                    return true;
+                }
+                return false;
+            });
+            if ( current != null )
+            {
+                if ( now >= current.deadline )
+                {
+                    final Request request = current;
+                    current = null;
+                    closeChannel();
+                    request.timeout();
+                    startNext( now );
+                }
+            }
+            else if ( channel != null && ( now - lastUsed ) >= idleTimeoutMillis ) {
+                closeChannel();
+            }
+        }
+
+        /**
+         * Returns the time at which this device needs attention next.
+         *
+         * @return timestamp or {@link Long#MAX_VALUE}
+         */
+        public long nextDeadline()
+        {
+            long result = Long.MAX_VALUE;
+            for ( Request request : queue ) {
+                result = Math.min( result , request.deadline );
+            }
+            if ( current != null ) {
+                return Math.min( result , current.deadline );
+            }
+            if ( channel != null ) {
+                return Math.min( result , lastUsed + idleTimeoutMillis );
+            }
+            return result;
+        }
+
+        public boolean isUnused() {
+            return current == null && channel == null && queue.isEmpty();
+        }
+
+        private void closeChannel()
+        {
+            if ( key != null ) {
+                key.cancel();
+                key = null;
+            }
+            if ( channel != null )
+            {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                channel = null;
+            }
+            reused = false;
+        }
+
+        public void failAll(IOException e)
+        {
+            closeChannel();
+            if ( current != null ) {
+                current.future.completeExceptionally( e );
+                current = null;
+            }
+            queue.forEach( r -> r.future.completeExceptionally( e ) );
+            queue.clear();
+        }
+    }
+
+    private final class EventLoop extends Thread
+    {
+        private final Selector selector;
+        private final Queue<Request> submissions = new ConcurrentLinkedQueue<>();
+        private final Map<InetSocketAddress,Device> devices = new HashMap<>();
+        private volatile boolean running = true;
+
+        public EventLoop(int index) throws IOException
+        {
+            super("tplink-engine-"+index);
+            setDaemon( true );
+            this.selector = Selector.open();
+        }
+
+        public void submit(Request request)
+        {
+            if ( ! running ) {
+                request.future.completeExceptionally( new IOException("Engine has been closed") );
+                return;
+            }
+            submissions.add( request );
+            try {
+                selector.wakeup();
+            } catch(ClosedSelectorException e) {
+                // handled below
+            }
+            if ( ! running ) { // raced with terminate()
+                drainSubmissions( new IOException("Engine has been closed") );
+            }
+        }
+
+        public void terminate()
+        {
+            running = false;
+            try {
+                selector.wakeup();
+            } catch(ClosedSelectorException e) {
+                // ok
+            }
+            if ( ! isAlive() ) {
+                drainSubmissions( new IOException("Engine has been closed") );
+            }
+        }
+
+        private void drainSubmissions(IOException e)
+        {
+            Request r;
+            while ( ( r = submissions.poll() ) != null ) {
+                r.future.completeExceptionally( e );
+            }
+        }
+
+        /**
+         * Runs an action for a device, failing all of its requests instead of
+         * terminating the event loop if the action throws a RuntimeException.
+         */
+        private void guarded(Device device,Runnable action)
+        {
+            try {
+                action.run();
+            }
+            catch(RuntimeException e)
+            {
+                e.printStackTrace();
+                device.failAll( new IOException("Internal error while talking to "+device.address , e ) );
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while ( running )
+                {
+                    long now = System.currentTimeMillis();
+                    long next = Long.MAX_VALUE;
+                    for ( Device d : devices.values() ) {
+                        next = Math.min( next , d.nextDeadline() );
+                    }
+                    if ( next == Long.MAX_VALUE ) {
+                        selector.select();
+                    } else if ( next > now ) {
+                        selector.select( next - now );
+                    } else {
+                        selector.selectNow();
+                    }
+
+                    now = System.currentTimeMillis();
+                    Request request;
+                    while ( ( request = submissions.poll() ) != null )
+                    {
+                        final Request r = request;
+                        final long time = now;
+                        final Device device = devices.computeIfAbsent( request.address , adr -> new Device( adr , selector ) );
+                        guarded( device , () -> device.enqueue( r , time ) );
+                    }
+
+                    for ( Iterator<SelectionKey> it = selector.selectedKeys().iterator() ; it.hasNext() ; )
+                    {
+                        final SelectionKey key = it.next();
+                        it.remove();
+                        if ( key.isValid() )
+                        {
+                            final Device device = (Device) key.attachment();
+                            final long time = now;
+                            guarded( device , () -> device.handle( time ) );
+                        }
+                    }
+
+                    final long time = System.currentTimeMillis();
+                    final List<InetSocketAddress> unused = new ArrayList<>();
+                    for ( Device d : devices.values() )
+                    {
+                        guarded( d , () -> d.checkTimeouts( time ) );
+                        if ( d.isUnused() ) {
+                            unused.add( d.address );
+                        }
+                    }
+                    unused.forEach( devices::remove );
+                }
+            }
+            catch(IOException | RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                running = false;
+                final IOException closed = new IOException("Engine has been closed");
+                devices.values().forEach( d -> d.failAll( closed ) );
+                devices.clear();
+                drainSubmissions( closed );
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
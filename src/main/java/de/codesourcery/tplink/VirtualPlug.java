@@ -0,0 +1,407 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-memory emulation of a HS110 plug that answers requests the way the real device does.
+ *
+ * <p>Keeps state for relay, LED, alias/IDs, location, schedule rules and the emeter (power draw is
+ * derived from a per-plug base load and accumulated while the relay is on). Unsupported modules
+ * and methods are answered with the device's error codes.</p>
+ *
+ * <p>Used by {@link PlugSimulator} and to create realistic replies in dry-run mode.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class VirtualPlug
+{
+    public static final int ERR_MODULE_NOT_SUPPORTED = -1;
+    public static final int ERR_METHOD_NOT_SUPPORTED = -2;
+    public static final int ERR_INVALID_ARGUMENT = -3;
+
+    private final Random random;
+
+    private volatile InetSocketAddress address;
+
+    private String alias;
+    private String macAddress;
+    private String deviceId;
+    private String hardwareId;
+    private double longitude;
+    private double latitude;
+    private boolean relayOn;
+    private boolean ledOff;
+    private long relayOnSince;
+    private int rssi;
+
+    private boolean scheduleEnabled = true;
+    private final List<JSONObject> scheduleRules = new ArrayList<>();
+
+    private long basePowerMilliWatts;
+    // energy consumed up to lastEnergyUpdate, in mW*ms
+    private double energy;
+    private long lastEnergyUpdate = System.currentTimeMillis();
+
+    private int requestCount;
+
+    /**
+     * Create plug with index 0.
+     */
+    public VirtualPlug() {
+        this(0);
+    }
+
+    /**
+     * Create plug.
+     *
+     * @param index used to derive alias, MAC address, device ID and base load (plugs with the same index are identical)
+     */
+    public VirtualPlug(int index)
+    {
+        random = new Random( index );
+        alias = "plug-"+index;
+        macAddress = String.format( "50:C7:BF:%02X:%02X:%02X" , ( index >>> 16 ) & 0xff , ( index >>> 8 ) & 0xff , index & 0xff );
+        deviceId = String.format( "8006%036X" , index );
+        hardwareId = String.format( "%032X" , 0x45E0_0000L + index );
+        rssi = -40 - random.nextInt( 40 );
+        basePowerMilliWatts = 1000 + random.nextInt( 100_000 );
+    }
+
+    /**
+     * Handles a (decrypted) request.
+     *
+     * @param request JSON request, may contain several modules and methods
+     * @return JSON reply
+     */
+    public synchronized String handle(String request)
+    {
+        requestCount++;
+        final JSONObject json;
+        try {
+            json = new JSONObject( request );
+        }
+        catch(JSONException e) {
+            return error( ERR_MODULE_NOT_SUPPORTED , "module not support" ).toString();
+        }
+        final JSONObject reply = new JSONObject();
+        for ( Iterator<String> modules = json.keys() ; modules.hasNext() ; )
+        {
+            final String module = modules.next();
+            final JSONObject methods = json.optJSONObject( module );
+            if ( methods == null || ! isSupported( module ) ) {
+                reply.put( module , error( ERR_MODULE_NOT_SUPPORTED , "module not support" ) );
+                continue;
+            }
+            final JSONObject moduleReply = new JSONObject();
+            for ( Iterator<String> it = methods.keys() ; it.hasNext() ; )
+            {
+                final String method = it.next();
+                final Object arg = methods.opt( method );
+                moduleReply.put( method , handle( module , method , arg instanceof JSONObject ? (JSONObject) arg : null , arg ) );
+            }
+            reply.put( module , moduleReply );
+        }
+        return reply.toString();
+    }
+
+    private static boolean isSupported(String module)
+    {
+        switch( module )
+        {
+            case "system":
+            case "emeter":
+            case "schedule":
+            case "time":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private JSONObject handle(String module,String method,JSONObject args,Object rawArg)
+    {
+        switch( module+"."+method )
+        {
+            case "system.get_sysinfo":
+                return getSysInfo();
+            case "system.set_relay_state":
+                if ( args == null || ! args.has("state") ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                setRelayOn( args.optInt( "state" ) != 0 );
+                return ok();
+            case "system.set_led_off":
+                if ( args == null || ! args.has("off") ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                ledOff = args.optInt( "off" ) != 0;
+                return ok();
+            case "system.set_dev_alias":
+                if ( args == null || ! args.has("alias") ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                alias = args.optString( "alias" );
+                return ok();
+            case "system.set_mac_addr":
+                if ( args == null || ! args.has("mac") ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                macAddress = args.optString( "mac" ).replace( '-' , ':' );
+                return ok();
+            case "system.set_device_id":
+                if ( args == null || ! args.has("deviceId") ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                deviceId = args.optString( "deviceId" );
+                return ok();
+            case "system.set_hw_id":
+                if ( args == null || ! args.has("hwId") ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                hardwareId = args.optString( "hwId" );
+                return ok();
+            case "system.set_dev_location":
+                if ( args == null ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                longitude = args.optDouble( "longitude" , longitude );
+                latitude = args.optDouble( "latitude" , latitude );
+                return ok();
+            case "system.reboot":
+                return ok();
+            case "system.reset":
+                setRelayOn( false );
+                ledOff = false;
+                scheduleRules.clear();
+                energy = 0;
+                return ok();
+            case "emeter.get_realtime":
+                return getRealtime();
+            case "emeter.get_daystat":
+                return ok().put( "day_list" , new JSONArray() );
+            case "emeter.get_monthstat":
+                return ok().put( "month_list" , new JSONArray() );
+            case "emeter.erase_emeter_stat":
+                updateEnergy( System.currentTimeMillis() );
+                energy = 0;
+                return ok();
+            case "schedule.get_rules":
+                return ok().put( "enable" , scheduleEnabled ? 1 : 0 ).put( "version" , 2 ).put( "rule_list" , new JSONArray( scheduleRules ) );
+            case "schedule.get_next_action":
+                return ok().put( "type" , -1 );
+            case "schedule.add_rule":
+                if ( args == null ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                final String id = String.format( Locale.ROOT , "%016X%016X" , random.nextLong() , random.nextLong() );
+                scheduleRules.add( new JSONObject( args.toString() ).put( "id" , id ) );
+                return ok().put( "id" , id );
+            case "schedule.edit_rule":
+                if ( args == null || removeRule( args.optString( "id" ) ) == null ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                scheduleRules.add( new JSONObject( args.toString() ) );
+                return ok();
+            case "schedule.delete_rule":
+                if ( args == null || removeRule( args.optString( "id" ) ) == null ) {
+                    return error( ERR_INVALID_ARGUMENT , "invalid argument" );
+                }
+                return ok();
+            case "schedule.delete_all_rules":
+                scheduleRules.clear();
+                return ok();
+            case "schedule.erase_runtime_stat":
+                return ok();
+            case "schedule.set_overall_enable":
+                // sent either as {"enable":1} or as a plain number
+                scheduleEnabled = ( args != null ? args.optInt( "enable" ) : ( rawArg instanceof Number ? ((Number) rawArg).intValue() : 0 ) ) != 0;
+                return ok();
+            case "time.get_time":
+                final Calendar now = Calendar.getInstance();
+                return ok().put( "year" , now.get( Calendar.YEAR ) ).put( "month" , now.get( Calendar.MONTH ) + 1 )
+                        .put( "mday" , now.get( Calendar.DAY_OF_MONTH ) ).put( "hour" , now.get( Calendar.HOUR_OF_DAY ) )
+                        .put( "min" , now.get( Calendar.MINUTE ) ).put( "sec" , now.get( Calendar.SECOND ) );
+            default:
+                return error( ERR_METHOD_NOT_SUPPORTED , "member not support" );
+        }
+    }
+
+    private JSONObject removeRule(String id)
+    {
+        for ( Iterator<JSONObject> it = scheduleRules.iterator() ; it.hasNext() ; )
+        {
+            final JSONObject rule = it.next();
+            if ( rule.optString( "id" ).equals( id ) ) {
+                it.remove();
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private JSONObject getSysInfo()
+    {
+        final long now = System.currentTimeMillis();
+        return ok()
+            .put( "sw_ver" , "1.2.5 Build 171213 Rel.101523" )
+            .put( "hw_ver" , "1.0" )
+            .put( "type" , "IOT.SMARTPLUGSWITCH" )
+            .put( "model" , "HS110(EU)" )
+            .put( "mac" , macAddress )
+            .put( "dev_name" , "Wi-Fi Smart Plug With Energy Monitoring" )
+            .put( "alias" , alias )
+            .put( "relay_state" , relayOn ? 1 : 0 )
+            .put( "on_time" , relayOn ? ( now - relayOnSince ) / 1000 : 0 )
+            .put( "active_mode" , scheduleEnabled && ! scheduleRules.isEmpty() ? "schedule" : "none" )
+            .put( "feature" , "TIM:ENE" )
+            .put( "updating" , 0 )
+            .put( "icon_hash" , "" )
+            .put( "rssi" , rssi )
+            .put( "led_off" , ledOff ? 1 : 0 )
+            .put( "longitude" , longitude )
+            .put( "latitude" , latitude )
+            .put( "hwId" , hardwareId )
+            .put( "fwId" , "00000000000000000000000000000000" )
+            .put( "deviceId" , deviceId )
+            .put( "oemId" , "FFF22CFF774A0B89F7624BFC6F50D5DE" );
+    }
+
+    private JSONObject getRealtime()
+    {
+        final long now = System.currentTimeMillis();
+        updateEnergy( now );
+        final long voltage = 230_000 + random.nextInt( 3000 ) - 1500;
+        final long power = relayOn ? basePowerMilliWatts + ( basePowerMilliWatts * ( random.nextInt( 41 ) - 20 ) ) / 1000 : 0;
+        return ok()
+            .put( "voltage_mv" , voltage )
+            .put( "current_ma" , power * 1000 / voltage )
+            .put( "power_mw" , power )
+            .put( "total_wh" , (long) ( energy / 3.6e9 ) );
+    }
+
+    private void updateEnergy(long now)
+    {
+        if ( relayOn ) {
+            energy += basePowerMilliWatts * (double) ( now - lastEnergyUpdate );
+        }
+        lastEnergyUpdate = now;
+    }
+
+    private static JSONObject ok() {
+        return new JSONObject().put( "err_code" , 0 );
+    }
+
+    private static JSONObject error(int code,String msg) {
+        return new JSONObject().put( "err_code" , code ).put( "err_msg" , msg );
+    }
+
+    public synchronized void setRelayOn(boolean on)
+    {
+        final long now = System.currentTimeMillis();
+        updateEnergy( now );
+        if ( on && ! relayOn ) {
+            relayOnSince = now;
+        }
+        relayOn = on;
+    }
+
+    public synchronized boolean isRelayOn() {
+        return relayOn;
+    }
+
+    public synchronized boolean isLedOff() {
+        return ledOff;
+    }
+
+    public synchronized void setAlias(String alias) {
+        this.alias = alias;
+    }
+
+    public synchronized String getAlias() {
+        return alias;
+    }
+
+    public synchronized String getMacAddress() {
+        return macAddress;
+    }
+
+    public synchronized String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Sets the power drawn while the relay is on.
+     *
+     * @param milliWatts
+     */
+    public synchronized void setBasePowerMilliWatts(long milliWatts)
+    {
+        if ( milliWatts < 0 ) {
+            throw new IllegalArgumentException("Power must be >= 0");
+        }
+        updateEnergy( System.currentTimeMillis() );
+        this.basePowerMilliWatts = milliWatts;
+    }
+
+    public synchronized long getBasePowerMilliWatts() {
+        return basePowerMilliWatts;
+    }
+
+    public synchronized int getScheduleRuleCount() {
+        return scheduleRules.size();
+    }
+
+    /**
+     * Returns the number of requests handled so far.
+     *
+     * @return
+     */
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns the address this plug is listening on.
+     *
+     * @return address or <code>null</code> if the plug is not served by a {@link PlugSimulator}
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    void setAddress(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return alias+" ["+macAddress+( address != null ? " @ "+address : "" )+", relay "+( relayOn ? "on" : "off" )+"]";
+    }
+}
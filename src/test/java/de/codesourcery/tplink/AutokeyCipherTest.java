@@ -0,0 +1,136 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AutokeyCipherTest
+{
+    private static final String SYSINFO = "{\"system\":{\"get_sysinfo\":{}}}";
+
+    // payload as sent by the reference implementation
+    private static final String SYSINFO_ENCRYPTED = "0PKB+Iv/mvfV75S20bTAn+yV5o/hh+jK8Iv2i/Y=";
+
+    @Test
+    public void testEncryptFrameMatchesReference()
+    {
+        final byte[] frame = AutokeyCipher.encryptFrame( SYSINFO );
+        assertEquals( PlugConnection.HEADER_SIZE + SYSINFO.length() , frame.length );
+        assertArrayEquals( new byte[] { 0 , 0 , 0 , (byte) SYSINFO.length() } , Arrays.copyOf( frame , PlugConnection.HEADER_SIZE ) );
+        final byte[] payload = Arrays.copyOfRange( frame , PlugConnection.HEADER_SIZE , frame.length );
+        assertEquals( SYSINFO_ENCRYPTED , Base64.getEncoder().encodeToString( payload ) );
+    }
+
+    @Test
+    public void testDecryptToString()
+    {
+        final byte[] payload = Base64.getDecoder().decode( SYSINFO_ENCRYPTED );
+        assertEquals( SYSINFO , AutokeyCipher.decryptToString( payload , 0 , payload.length ) );
+    }
+
+    @Test
+    public void testRoundTripInChunks()
+    {
+        final Random rnd = new Random( 0xdeadbeef );
+        final byte[] plain = new byte[ 4096 ];
+        rnd.nextBytes( plain );
+
+        final byte[] expected = plain.clone();
+        new AutokeyCipher().encrypt( expected , 0 , expected.length );
+
+        // encrypting in arbitrary chunks must give the same result as encrypting in one go
+        final byte[] data = plain.clone();
+        final AutokeyCipher encrypter = new AutokeyCipher();
+        for ( int offset = 0 ; offset < data.length ; )
+        {
+            final int len = Math.min( data.length - offset , rnd.nextInt( 17 ) );
+            encrypter.encrypt( data , offset , len );
+            offset += len;
+        }
+        assertArrayEquals( expected , data );
+
+        final AutokeyCipher decrypter = new AutokeyCipher();
+        for ( int offset = 0 ; offset < data.length ; )
+        {
+            final int len = Math.min( data.length - offset , 1 + rnd.nextInt( 100 ) );
+            decrypter.decrypt( data , offset , len );
+            offset += len;
+        }
+        assertArrayEquals( plain , data );
+    }
+
+    @Test
+    public void testReset()
+    {
+        final byte[] first = SYSINFO.getBytes( StandardCharsets.UTF_8 );
+        final byte[] second = first.clone();
+        final AutokeyCipher cipher = new AutokeyCipher();
+        cipher.encrypt( first , 0 , first.length );
+        cipher.reset();
+        cipher.encrypt( second , 0 , second.length );
+        assertArrayEquals( first , second );
+    }
+
+    @Test
+    public void testByteBufferRoundTrip()
+    {
+        final byte[] plain = SYSINFO.getBytes( StandardCharsets.UTF_8 );
+        final byte[] expected = plain.clone();
+        new AutokeyCipher().encrypt( expected , 0 , expected.length );
+
+        for ( ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate( plain.length + 3 ) , ByteBuffer.allocateDirect( plain.length + 3 ) } )
+        {
+            buffer.put( new byte[3] ).put( plain ).flip();
+            buffer.position( 3 );
+            new AutokeyCipher().encrypt( buffer );
+            assertEquals( buffer.limit() , buffer.position() );
+
+            final byte[] actual = new byte[ plain.length ];
+            buffer.position( 3 );
+            buffer.get( actual );
+            assertArrayEquals( expected , actual );
+
+            buffer.position( 3 );
+            new AutokeyCipher().decrypt( buffer );
+            buffer.position( 3 );
+            buffer.get( actual );
+            assertArrayEquals( plain , actual );
+        }
+    }
+
+    @Test
+    public void testUTF8EncodingMatchesJDK()
+    {
+        final String[] inputs = { "" , "plain ASCII" , "K\u00fcche \u20ac" , "emoji \ud83d\udd0c" , "unpaired \ud83d surrogate" , "trailing \udd0c" };
+        for ( String input : inputs )
+        {
+            final byte[] expected = input.getBytes( StandardCharsets.UTF_8 );
+            assertEquals( input , expected.length , AutokeyCipher.utf8Length( input ) );
+            final byte[] actual = new byte[ expected.length + 2 ];
+            assertEquals( input , 1 + expected.length , AutokeyCipher.encodeUTF8( input , actual , 1 ) );
+            assertArrayEquals( input , expected , Arrays.copyOfRange( actual , 1 , 1 + expected.length ) );
+        }
+    }
+}
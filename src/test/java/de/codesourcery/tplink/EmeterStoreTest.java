@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.codesourcery.tplink.EmeterSample.Column;
+
+public class EmeterStoreTest
+{
+    private static final long START = 1_500_000_000_000L;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory( "emeterstore" );
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            files.sorted( Comparator.reverseOrder() ).forEach( file -> file.toFile().delete() );
+        }
+    }
+
+    /**
+     * Samples taken at a fixed interval with occasional jitter and gaps, values jump
+     * up and down (negative deltas) and cover the full range of var-long lengths.
+     */
+    private static List<EmeterSample> createSamples(int count)
+    {
+        final Random rnd = new Random( 42 );
+        final List<EmeterSample> result = new ArrayList<>();
+        long timestamp = START;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            if ( i % 50 == 7 ) {
+                timestamp += 3_600_000; // gap
+            } else if ( i % 10 == 3 ) {
+                timestamp += 1000 + rnd.nextInt( 200 ) - 100; // jitter
+            } else if ( i % 97 != 5 ) { // duplicate timestamp
+                timestamp += 1000;
+            }
+            final long power = i % 13 == 0 ? -rnd.nextInt( 1000 ) : rnd.nextInt( 3_000_000 );
+            final long voltage = 230_000 + rnd.nextInt( 2000 ) - 1000;
+            final long current = i % 31 == 0 ? Long.MAX_VALUE / ( 1 + i ) : rnd.nextInt( 16_000 );
+            final long total = i * 3L;
+            result.add( new EmeterSample( timestamp , power , voltage , current , total ) );
+        }
+        return result;
+    }
+
+    private static void assertSamplesEqual(List<EmeterSample> expected,List<EmeterSample> actual)
+    {
+        assertEquals( expected.size() , actual.size() );
+        for ( int i = 0 ; i < expected.size() ; i++ )
+        {
+            final EmeterSample e = expected.get( i );
+            final EmeterSample a = actual.get( i );
+            assertEquals( "timestamp of sample "+i , e.timestamp , a.timestamp );
+            for ( Column c : Column.values() ) {
+                assertEquals( c+" of sample "+i , e.get( c ) , a.get( c ) );
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTripAcrossBlocks() throws IOException
+    {
+        final List<EmeterSample> samples = createSamples( 3 * EmeterStore.BLOCK_SIZE + 17 );
+        try ( EmeterStore store = EmeterStore.open( directory ) )
+        {
+            for ( EmeterSample sample : samples ) {
+                store.append( sample );
+            }
+            assertEquals( samples.size() , store.getSampleCount() );
+            assertEquals( samples.get( samples.size() - 1 ).timestamp , store.getLastTimestamp() );
+            assertSamplesEqual( samples , store.query( Long.MIN_VALUE , Long.MAX_VALUE ) );
+        }
+    }
+
+    @Test
+    public void testRangeQueryAcrossCheckpoints() throws IOException
+    {
+        final List<EmeterSample> samples = createSamples( 3 * EmeterStore.BLOCK_SIZE );
+        try ( EmeterStore store = EmeterStore.open( directory ) )
+        {
+            for ( EmeterSample sample : samples ) {
+                store.append( sample );
+            }
+            final int[][] ranges = { 
+                { 0 , 0 } , 
+                { EmeterStore.BLOCK_SIZE - 3 , 2 * EmeterStore.BLOCK_SIZE + 5 } , 
+                { EmeterStore.BLOCK_SIZE , EmeterStore.BLOCK_SIZE } ,
+                { 2 * EmeterStore.BLOCK_SIZE + 1 , samples.size() - 1 } 
+            };
+            for ( int[] range : ranges )
+            {
+                final long from = samples.get( range[0] ).timestamp;
+                final long to = samples.get( range[1] ).timestamp;
+                final List<EmeterSample> expected = new ArrayList<>();
+                samples.stream().filter( s -> s.timestamp >= from && s.timestamp <= to ).forEach( expected::add );
+                assertSamplesEqual( expected , store.query( from , to ) );
+            }
+            assertTrue( store.query( START + 1 , START ).isEmpty() );
+            assertTrue( store.query( Long.MIN_VALUE , START - 1 ).isEmpty() );
+        }
+
+        // run of equal timestamps crossing a block boundary, the checkpoint is at the queried timestamp
+        try ( EmeterStore store = EmeterStore.open( directory.resolve( "equal" ) ) )
+        {
+            final List<EmeterSample> equal = new ArrayList<>();
+            for ( int i = 0 ; i < EmeterStore.BLOCK_SIZE - 2 ; i++ ) {
+                equal.add( new EmeterSample( START + i , i , i , i , i ) );
+            }
+            final long t = START + EmeterStore.BLOCK_SIZE;
+            for ( int i = 0 ; i < 4 ; i++ ) {
+                equal.add( new EmeterSample( t , i , i , i , i ) );
+            }
+            for ( EmeterSample sample : equal ) {
+                store.append( sample );
+            }
+            assertSamplesEqual( equal.subList( equal.size() - 4 , equal.size() ) , store.query( t , t ) );
+            assertSamplesEqual( equal.subList( equal.size() - 5 , equal.size() ) , store.query( equal.get( equal.size() - 5 ).timestamp , t ) );
+        }
+    }
+
+    @Test
+    public void testReopenContinuesEncoding() throws IOException
+    {
+        // reopen in the middle of a block and right at a block boundary
+        final List<EmeterSample> samples = createSamples( 2 * EmeterStore.BLOCK_SIZE + 10 );
+        final int[] splits = { 100 , EmeterStore.BLOCK_SIZE * 2 , samples.size() };
+        int next = 0;
+        for ( int split : splits )
+        {
+            try ( EmeterStore store = EmeterStore.open( directory ) )
+            {
+                assertEquals( next , store.getSampleCount() );
+                for ( ; next < split ; next++ ) {
+                    store.append( samples.get( next ) );
+                }
+            }
+        }
+        try ( EmeterStore store = EmeterStore.open( directory ) ) {
+            assertSamplesEqual( samples , store.query( Long.MIN_VALUE , Long.MAX_VALUE ) );
+        }
+    }
+
+    @Test
+    public void testDownsample() throws IOException
+    {
+        try ( EmeterStore store = EmeterStore.open( directory ) )
+        {
+            for ( int i = 0 ; i < 10 ; i++ ) {
+                store.append( new EmeterSample( START + i * 1000 , i * 100 , 230_000 , i , i ) );
+            }
+            final List<EmeterStore.Bucket> buckets = store.downsample( START , START + 9_000 , 5000 );
+            assertEquals( 2 , buckets.size() );
+            assertEquals( START , buckets.get(0).start );
+            assertEquals( 5 , buckets.get(0).getCount() );
+            assertEquals( 0 , buckets.get(0).getMin( Column.POWER ) );
+            assertEquals( 400 , buckets.get(0).getMax( Column.POWER ) );
+            assertEquals( 200d , buckets.get(0).getAverage( Column.POWER ) , 0d );
+            assertEquals( START + 5000 , buckets.get(1).start );
+            assertEquals( 700d , buckets.get(1).getAverage( Column.POWER ) , 0d );
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testRejectsOutOfOrderSamples() throws IOException
+    {
+        try ( EmeterStore store = EmeterStore.open( directory ) )
+        {
+            store.append( new EmeterSample( START , 1 , 2 , 3 , 4 ) );
+            store.append( new EmeterSample( START - 1 , 1 , 2 , 3 , 4 ) );
+        }
+    }
+}
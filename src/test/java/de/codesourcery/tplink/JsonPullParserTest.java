@@ -0,0 +1,153 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import de.codesourcery.tplink.JsonPullParser.Token;
+
+public class JsonPullParserTest
+{
+    private static JsonPullParser parser(String json)
+    {
+        final byte[] data = ( "xx"+json+"yy" ).getBytes( StandardCharsets.UTF_8 );
+        return new JsonPullParser( data , 2 , data.length - 4 );
+    }
+
+    @Test
+    public void testTokens() throws IOException
+    {
+        final JsonPullParser parser = parser( "{ \"a\" : [ 1 , \"x\" , true , false , null , { } ] }" );
+        final Token[] expected = { Token.START_OBJECT , Token.FIELD_NAME , Token.START_ARRAY , Token.NUMBER , Token.STRING ,
+                Token.TRUE , Token.FALSE , Token.NULL , Token.START_OBJECT , Token.END_OBJECT , Token.END_ARRAY , Token.END_OBJECT , Token.END };
+        for ( Token token : expected ) {
+            assertEquals( token , parser.next() );
+        }
+        assertEquals( Token.END , parser.next() );
+    }
+
+    @Test
+    public void testEscapes() throws IOException
+    {
+        final JsonPullParser parser = parser( "{\"na\\\"me\":\"a\\\\b\\/c\\n\\t\\r\\b\\f\\u00e4\\u20AC \\\"q\\\"\"}" );
+        parser.expect( Token.START_OBJECT );
+        assertTrue( parser.nextField() );
+        assertEquals( "na\"me" , parser.getString() );
+        assertTrue( parser.isFieldName( "na\"me" ) );
+        assertFalse( parser.isFieldName( "name" ) );
+        assertEquals( "a\\b/c\n\t\r\b\f\u00e4\u20ac \"q\"" , parser.nextString() );
+        assertFalse( parser.nextField() );
+    }
+
+    @Test
+    public void testMultiByteCharacters() throws IOException
+    {
+        final JsonPullParser parser = parser( "{\"K\u00fcche\":\"Steckdose \u20ac \ud83d\udd0c\"}" );
+        parser.expect( Token.START_OBJECT );
+        assertTrue( parser.nextField() );
+        assertTrue( parser.isFieldName( "K\u00fcche" ) );
+        assertFalse( parser.isFieldName( "Kuche" ) );
+        assertEquals( "Steckdose \u20ac \ud83d\udd0c" , parser.nextString() );
+    }
+
+    @Test
+    public void testNumbers() throws IOException
+    {
+        final JsonPullParser parser = parser( "[0,-17,123456789012345678,9223372036854775807,240.689453,-0.5,1e3,2.5E-2,0.001000]" );
+        parser.expect( Token.START_ARRAY );
+        parser.next();
+        assertEquals( 0 , parser.getLong() );
+        assertFalse( parser.getBoolean() );
+        parser.next();
+        assertEquals( -17 , parser.getLong() );
+        assertEquals( -17d , parser.getDouble() , 0d );
+        assertTrue( parser.getBoolean() );
+        parser.next();
+        assertEquals( 123456789012345678L , parser.getLong() );
+        parser.next();
+        assertEquals( Long.MAX_VALUE , parser.getLong() );
+        parser.next();
+        assertEquals( 240.689453 , parser.getDouble() , 0d );
+        assertEquals( 240 , parser.getLong() );
+        parser.next();
+        assertEquals( -0.5 , parser.getDouble() , 0d );
+        assertEquals( 0 , parser.getLong() );
+        parser.next();
+        assertEquals( 1000d , parser.getDouble() , 0d );
+        parser.next();
+        assertEquals( 0.025 , parser.getDouble() , 0d );
+        parser.next();
+        assertEquals( 0.001 , parser.getDouble() , 0d );
+        assertEquals( Token.END_ARRAY , parser.next() );
+    }
+
+    @Test
+    public void testSkipValue() throws IOException
+    {
+        final JsonPullParser parser = parser( "{\"a\":{\"b\":[1,{\"c\":[]}],\"d\":\"}\"},\"e\":2}" );
+        parser.expect( Token.START_OBJECT );
+        assertTrue( parser.nextField() );
+        parser.skipValue();
+        assertTrue( parser.nextField() );
+        assertTrue( parser.isFieldName( "e" ) );
+        parser.next();
+        assertEquals( 2 , parser.getLong() );
+        assertFalse( parser.nextField() );
+        assertEquals( Token.END , parser.next() );
+    }
+
+    @Test
+    public void testMalformedInput()
+    {
+        final String[] inputs = { "{\"a\":\"unterminated}" , "{\"a\":\"\\u12G4\"}" , "{\"a\":\"\\u12" , "{\"a\":1" , "]" , "{\"a\":tru}" , "{\"a\":x}" };
+        for ( String input : inputs )
+        {
+            try
+            {
+                final JsonPullParser parser = parser( input );
+                while ( parser.next() != Token.END ) {
+                    // consume
+                }
+                fail("Expected IOException for "+input);
+            }
+            catch(IOException e) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void testMalformedNumber() throws IOException
+    {
+        final JsonPullParser parser = parser( "[1.2.3]" );
+        parser.expect( Token.START_ARRAY );
+        parser.expect( Token.NUMBER );
+        try {
+            parser.getDouble();
+            fail("Expected IOException");
+        } catch(IOException e) {
+            // ok
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.tplink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ReplyDecoderTest
+{
+    // replies captured from a HS100(EU) hardware version 2.0 resp. a HS110(EU) hardware version 1.0
+    private static final String SYSINFO = "{\"system\":{\"get_sysinfo\":{\"sw_ver\":\"1.2.5 Build 171213 Rel.101523\",\"hw_ver\":\"2.0\","+
+            "\"type\":\"IOT.SMARTPLUGSWITCH\",\"model\":\"HS100(EU)\",\"mac\":\"50:C7:BF:A1:B2:C3\",\"dev_name\":\"Smart Wi-Fi Plug\","+
+            "\"alias\":\"Build \\\"Light\\\"\",\"relay_state\":1,\"on_time\":8931,\"active_mode\":\"none\",\"feature\":\"TIM\",\"updating\":0,"+
+            "\"icon_hash\":\"\",\"rssi\":-61,\"led_off\":0,\"longitude_i\":135000,\"latitude_i\":525000,"+
+            "\"hwId\":\"044A516EE63C875F9458DA25C2CCC5A0\",\"fwId\":\"00000000000000000000000000000000\","+
+            "\"deviceId\":\"8006AF35494E7DB13DDE9B8F40BF2E001E77AC99\",\"oemId\":\"1998A14DAA86E4E001FD7CAF42868B5E\","+
+            "\"next_action\":{\"type\":-1},\"err_code\":0}}}";
+
+    private static final String REALTIME_V1 = "{\"emeter\":{\"get_realtime\":{\"current\":0.012933,\"voltage\":240.689453,\"power\":0,\"total\":0.001000,\"err_code\":0}}}";
+
+    private static final String REALTIME_V2 = "{\"emeter\":{\"get_realtime\":{\"voltage_mv\":231011,\"current_ma\":26,\"power_mw\":2117,\"total_wh\":13,\"err_code\":0}}}";
+
+    private static final String EMETER_NOT_SUPPORTED = "{\"emeter\":{\"err_code\":-1,\"err_msg\":\"module not support\"}}";
+
+    private static final String SCHEDULE = "{\"schedule\":{\"get_rules\":{\"rule_list\":[{\"id\":\"8AA75A50A8440B17941D192BD9E01FFA\",\"name\":\"evening\","+
+            "\"enable\":1,\"wday\":[1,0,0,1,1,0,0],\"stime_opt\":0,\"smin\":1014,\"sact\":1,\"etime_opt\":-1,\"emin\":0,\"eact\":-1,\"repeat\":1}],"+
+            "\"version\":2,\"enable\":1,\"err_code\":0}}}";
+
+    private static byte[] bytes(String json) {
+        return json.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    private static <T> T decode(ReplyDecoder<T> decoder,String json) throws IOException
+    {
+        final byte[] data = bytes( "xx"+json );
+        return decoder.decode( data , 2 , data.length - 2 );
+    }
+
+    @Test
+    public void testSysInfo() throws IOException
+    {
+        final SysInfo info = decode( SysInfo.DECODER , SYSINFO );
+        assertEquals( "Build \"Light\"" , info.alias );
+        assertEquals( "Smart Wi-Fi Plug" , info.deviceName );
+        assertEquals( "HS100(EU)" , info.model );
+        assertEquals( "IOT.SMARTPLUGSWITCH" , info.type );
+        assertEquals( "50:C7:BF:A1:B2:C3" , info.macAddress );
+        assertEquals( "8006AF35494E7DB13DDE9B8F40BF2E001E77AC99" , info.deviceId );
+        assertEquals( "044A516EE63C875F9458DA25C2CCC5A0" , info.hardwareId );
+        assertEquals( "2.0" , info.hardwareVersion );
+        assertEquals( "1.2.5 Build 171213 Rel.101523" , info.softwareVersion );
+        assertTrue( info.relayOn );
+        assertFalse( info.ledOff );
+        assertEquals( 8931 , info.onTimeSeconds );
+        assertEquals( -61 , info.rssi );
+    }
+
+    @Test
+    public void testSysInfoMatchesEncryptedRoundTrip() throws IOException
+    {
+        final byte[] frame = AutokeyCipher.encryptFrame( SYSINFO );
+        final String json = AutokeyCipher.decryptToString( frame , PlugConnection.HEADER_SIZE , frame.length - PlugConnection.HEADER_SIZE );
+        assertEquals( "HS100(EU)" , decode( SysInfo.DECODER , json ).model );
+    }
+
+    @Test
+    public void testRealtimeEmeter() throws IOException
+    {
+        final RealtimeEmeter v1 = decode( RealtimeEmeter.DECODER , REALTIME_V1 );
+        assertEquals( 0 , v1.powerMilliWatts );
+        assertEquals( 240689 , v1.voltageMilliVolts );
+        assertEquals( 13 , v1.currentMilliAmps );
+        assertEquals( 1 , v1.totalWattHours );
+
+        final RealtimeEmeter v2 = decode( RealtimeEmeter.DECODER , REALTIME_V2 );
+        assertEquals( 2117 , v2.powerMilliWatts );
+        assertEquals( 231011 , v2.voltageMilliVolts );
+        assertEquals( 26 , v2.currentMilliAmps );
+        assertEquals( 13 , v2.totalWattHours );
+    }
+
+    @Test
+    public void testMethodErrorCode() throws IOException
+    {
+        try {
+            decode( SysInfo.DECODER , "{\"system\":{\"get_sysinfo\":{\"err_code\":-2,\"err_msg\":\"member not support\"}}}" );
+            fail("Expected DeviceException");
+        }
+        catch(DeviceException e)
+        {
+            assertEquals( "system" , e.module );
+            assertEquals( "get_sysinfo" , e.method );
+            assertEquals( -2 , e.errorCode );
+            assertEquals( "member not support" , e.errorMessage );
+        }
+    }
+
+    @Test
+    public void testModuleErrorCode() throws IOException
+    {
+        try {
+            decode( RealtimeEmeter.DECODER , EMETER_NOT_SUPPORTED );
+            fail("Expected DeviceException");
+        }
+        catch(DeviceException e)
+        {
+            assertEquals( "emeter" , e.module );
+            assertNull( e.method );
+            assertEquals( -1 , e.errorCode );
+            assertEquals( "module not support" , e.errorMessage );
+        }
+    }
+
+    @Test
+    public void testNullErrorMessage() throws IOException
+    {
+        try {
+            decode( SysInfo.DECODER , "{\"system\":{\"get_sysinfo\":{\"err_code\":-3,\"err_msg\":null}}}" );
+            fail("Expected DeviceException");
+        }
+        catch(DeviceException e)
+        {
+            assertEquals( -3 , e.errorCode );
+            assertNull( e.errorMessage );
+        }
+    }
+
+    @Test
+    public void testCheckErrors() throws IOException
+    {
+        assertNull( decode( ReplyDecoder.CHECK_ERRORS , "{\"system\":{\"set_relay_state\":{\"err_code\":0}}}" ) );
+        try {
+            decode( ReplyDecoder.CHECK_ERRORS , "{\"system\":{\"set_relay_state\":{\"err_code\":0}},\"cnCloud\":{\"bind\":{\"err_code\":-7,\"err_msg\":\"unknown error\"}}}" );
+            fail("Expected DeviceException");
+        }
+        catch(DeviceException e)
+        {
+            assertEquals( "cnCloud" , e.module );
+            assertEquals( "bind" , e.method );
+            assertEquals( -7 , e.errorCode );
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testMissingResult() throws IOException {
+        decode( SysInfo.DECODER , "{\"schedule\":{\"get_rules\":{\"err_code\":0}}}" );
+    }
+
+    @Test
+    public void testScheduleRules() throws IOException
+    {
+        final ScheduleRules rules = decode( ScheduleRules.DECODER , SCHEDULE );
+        assertTrue( rules.enabled );
+        assertEquals( 1 , rules.rules.size() );
+        final ScheduleRules.Rule rule = rules.rules.get(0);
+        assertEquals( "8AA75A50A8440B17941D192BD9E01FFA" , rule.id );
+        assertEquals( "evening" , rule.name );
+        assertTrue( rule.enabled );
+        assertTrue( rule.repeat );
+        assertArrayEquals( new boolean[] { true , false , false , true , true , false , false } , rule.weekdays );
+        assertEquals( 1 , rule.startAction );
+        assertEquals( 1014 , rule.startMinutes );
+        assertEquals( -1 , rule.endAction );
+    }
+
+    @Test
+    public void testScheduleRulesSkipsNonObjectElements() throws IOException
+    {
+        final ScheduleRules rules = decode( ScheduleRules.DECODER , 
+                "{\"schedule\":{\"get_rules\":{\"rule_list\":[null,{\"id\":\"A\"},[1,2],\"x\",{\"id\":\"B\"}],\"enable\":0,\"err_code\":0}}}" );
+        assertFalse( rules.enabled );
+        assertEquals( 2 , rules.rules.size() );
+        assertEquals( "A" , rules.rules.get(0).id );
+        assertEquals( "B" , rules.rules.get(1).id );
+    }
+}